@@ -0,0 +1,132 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import plus.takeout.TL_takeout;
+
+// The serializers as the cells first shipped them, kept so every later change has something to be
+// measured against. Bodies are copied unchanged apart from taking the file as a parameter.
+public final class BaselineSerializers {
+
+    public static final String CHAT_CSV_HEADER = "id, date, from_id, message\n";
+    public static final String CONTACT_CSV_HEADER = "First Name,Last Name,Phone Number,Added Date\n";
+    private static final int JSON_INDENT = 2;
+
+    private BaselineSerializers() {
+    }
+
+    // PrivateChatExportCell.saveAsCsv
+    public static void saveChatAsCsv(List<TLRPC.Message> messages, File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(CHAT_CSV_HEADER);
+            for (TLRPC.Message msg : messages) {
+                String id = String.valueOf(msg.id);
+                String date = new Date((long) msg.date * 1000).toString();
+                String fromId = msg.from_id != null ? String.valueOf(msg.from_id.user_id) : "";
+                String message = escapeCsvField(msg.message);
+                writer.write(id + "," + date + "," + fromId + "," + message + "\n");
+            }
+        }
+    }
+
+    // PrivateChatExportCell.saveAsJson
+    public static void saveChatAsJson(List<TLRPC.Message> messages, File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("[\n");
+            for (int i = 0; i < messages.size(); i++) {
+                TLRPC.Message msg = messages.get(i);
+                String json = String.format(
+                        "  {\"id\": %d, \"date\": \"%s\", \"from_id\": %s, \"message\": \"%s\"}",
+                        msg.id,
+                        new Date((long) msg.date * 1000).toString(),
+                        msg.from_id != null ? String.valueOf(msg.from_id.user_id) : "null",
+                        escapeJsonString(msg.message)
+                );
+                writer.write(json);
+                if (i < messages.size() - 1) {
+                    writer.write(",\n");
+                } else {
+                    writer.write("\n");
+                }
+            }
+            writer.write("]\n");
+        }
+    }
+
+    // ContactExportCell.generateCsvContent
+    public static String generateCsvContent(List<TL_takeout.TL_savedContact> contacts) {
+        StringBuilder csv = new StringBuilder();
+        csv.append(CONTACT_CSV_HEADER);
+
+        for (TL_takeout.TL_savedContact contact : contacts) {
+            csv.append(escapeCsvField(contact.first_name)).append(',')
+                    .append(escapeCsvField(contact.last_name)).append(',')
+                    .append(escapeCsvField(contact.phone)).append(',')
+                    .append(new Date(contact.date * 1000L)).append('\n');
+        }
+        return csv.toString();
+    }
+
+    // ContactExportCell.generateJsonContent
+    public static String generateJsonContent(List<TL_takeout.TL_savedContact> contacts) {
+        try {
+            JSONArray jsonArray = new JSONArray();
+            for (TL_takeout.TL_savedContact contact : contacts) {
+                JSONObject jsonContact = new JSONObject();
+                jsonContact.put("first_name", contact.first_name != null ? contact.first_name : "");
+                jsonContact.put("last_name", contact.last_name != null ? contact.last_name : "");
+                jsonContact.put("phone", contact.phone != null ? contact.phone : "");
+                jsonContact.put("added_date", contact.date);
+                jsonArray.put(jsonContact);
+            }
+            return jsonArray.toString(JSON_INDENT);
+        } catch (JSONException e) {
+            return "[]";
+        }
+    }
+
+    // ContactExportCell.saveContactsToFile wrote the generated string in one go
+    public static void writeString(String content, File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    public static String escapeJsonString(String str) {
+        if (str == null) {
+            return "";
+        }
+        return str.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
+    }
+
+    public static String escapeCsvField(String field) {
+        if (field == null) {
+            return "";
+        }
+        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+        return field;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.telegram.tgnet.TLRPC;
+import org.telegram.tgnet.tl.TL_stories;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportEscaper;
+
+// The serializers that still live inside the cells, which are Views and cannot be built off-device.
+// Each method is the cell method it names with the file, archive and progress handling left out;
+// keep them in step when the cell changes, or the numbers describe code that no longer ships.
+public final class CellSerializers {
+
+    public static final String STORY_CSV_HEADER = "ID,Date,Caption,Media Type,File Name\n";
+    public static final String PROFILE_PICTURE_CSV_HEADER = "ID,Date,Size (KB),Dimensions,File Name\n";
+    public static final String PERSONAL_INFO_CSV_HEADER = "Field Name,Value\n";
+
+    private static final int JSON_INDENT = 2;
+    private static final int BYTES_PER_KB = 1024;
+    private static final String PHOTO_EXTENSION = ".jpg";
+    private static final String DEFAULT_EXTENSION = ".dat";
+    private static final String MIME_VIDEO_PREFIX = "video/";
+    private static final String MIME_AUDIO_PREFIX = "audio/";
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+
+    private CellSerializers() {
+    }
+
+    // StoryExportCell.saveMetadata builds one entry per story before saving
+    public static Map<String, Object> createStoryEntry(TL_stories.StoryItem story) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("id", story.id);
+        entry.put("date", new Date(story.date * 1000L));
+        entry.put("caption", story.caption != null ? story.caption : "");
+        entry.put("media_type", getMediaType(story.media));
+
+        String fileName = "story_" + story.id;
+        if (story.media != null) {
+            if (story.media.photo != null) {
+                fileName += PHOTO_EXTENSION;
+            } else if (story.media.document != null) {
+                fileName += getDocumentExtension(story.media.document);
+            }
+        }
+        entry.put("file_name", fileName);
+
+        return entry;
+    }
+
+    // StoryExportCell.saveAsCsv
+    public static void saveStoriesAsCsv(File file, List<Map<String, Object>> metadata) throws IOException {
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            writer.write(STORY_CSV_HEADER);
+            for (Map<String, Object> entry : metadata) {
+                ExportEscaper.appendCsvField(writer, entry.get("id").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, entry.get("date").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("caption"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("media_type"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("file_name"));
+                writer.write('\n');
+            }
+        }
+    }
+
+    // StoryExportCell.saveAsJson
+    public static void saveStoriesAsJson(File file, List<Map<String, Object>> metadata) throws IOException, JSONException {
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            JSONArray jsonArray = new JSONArray();
+            for (Map<String, Object> entry : metadata) {
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put("id", entry.get("id"));
+                jsonEntry.put("date", entry.get("date").toString());
+                jsonEntry.put("caption", entry.get("caption"));
+                jsonEntry.put("media_type", entry.get("media_type"));
+                jsonEntry.put("file_name", entry.get("file_name"));
+                jsonArray.put(jsonEntry);
+            }
+            writer.write(jsonArray.toString(JSON_INDENT));
+        }
+    }
+
+    // ProfilePictureExportCell.saveMetadata builds one entry per photo before saving
+    public static Map<String, Object> createPhotoEntry(TLRPC.Photo photo) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("id", photo.id);
+        entry.put("date", new Date(photo.date * 1000L));
+        entry.put("size", getPhotoSize(photo));
+        entry.put("dimensions", getPhotoDimensions(photo));
+        entry.put("file_name", "profile_" + DATE_FORMAT.format(new Date(photo.date * 1000L)) + PHOTO_EXTENSION);
+        return entry;
+    }
+
+    // ProfilePictureExportCell.saveAsCsv
+    public static void saveProfilePicturesAsCsv(File file, List<Map<String, Object>> metadata) throws IOException {
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            writer.write(PROFILE_PICTURE_CSV_HEADER);
+            for (Map<String, Object> entry : metadata) {
+                ExportEscaper.appendCsvField(writer, entry.get("id").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, DATE_FORMAT.format(entry.get("date")));
+                writer.write(',');
+                writer.write(String.valueOf(entry.get("size")));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("dimensions"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("file_name"));
+                writer.write('\n');
+            }
+        }
+    }
+
+    // ProfilePictureExportCell.saveAsJson
+    public static void saveProfilePicturesAsJson(File file, List<Map<String, Object>> metadata) throws IOException, JSONException {
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            JSONArray jsonArray = new JSONArray();
+            for (Map<String, Object> entry : metadata) {
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put("id", entry.get("id"));
+                jsonEntry.put("date", DATE_FORMAT.format(entry.get("date")));
+                jsonEntry.put("size_kb", entry.get("size"));
+                jsonEntry.put("dimensions", entry.get("dimensions"));
+                jsonEntry.put("file_name", entry.get("file_name"));
+                jsonArray.put(jsonEntry);
+            }
+            writer.write(jsonArray.toString(JSON_INDENT));
+        }
+    }
+
+    // PersonalInfoExportCell.saveAsCsv
+    public static void savePersonalInfoAsCsv(File file, Map<String, String> data) throws IOException {
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            writer.write(PERSONAL_INFO_CSV_HEADER);
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                ExportEscaper.appendCsvField(writer, entry.getKey());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, entry.getValue());
+                writer.write('\n');
+            }
+        }
+    }
+
+    // PersonalInfoExportCell.saveAsJson
+    public static void savePersonalInfoAsJson(File file, Map<String, String> data) throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            json.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : "");
+        }
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            writer.write(json.toString(JSON_INDENT));
+        }
+    }
+
+    private static String getMediaType(TLRPC.MessageMedia media) {
+        if (media == null) {
+            return "unknown";
+        }
+        if (media.photo != null) {
+            return "photo";
+        }
+        if (media.document != null) {
+            if (media.document.mime_type != null) {
+                if (media.document.mime_type.startsWith(MIME_VIDEO_PREFIX)) {
+                    return "video";
+                }
+                if (media.document.mime_type.startsWith(MIME_AUDIO_PREFIX)) {
+                    return "audio";
+                }
+            }
+        }
+        return "other";
+    }
+
+    private static String getDocumentExtension(TLRPC.Document document) {
+        if (document == null || document.mime_type == null) {
+            return DEFAULT_EXTENSION;
+        }
+
+        String mimeType = document.mime_type;
+        if ("video/mp4".equals(mimeType)) {
+            return ".mp4";
+        } else if ("image/png".equals(mimeType)) {
+            return ".png";
+        } else if ("image/jpeg".equals(mimeType)) {
+            return ".jpg";
+        } else if ("image/webp".equals(mimeType)) {
+            return ".webp";
+        } else if ("audio/ogg".equals(mimeType)) {
+            return ".ogg";
+        }
+
+        if (mimeType.contains("/")) {
+            return "." + mimeType.split("/")[1];
+        }
+        return DEFAULT_EXTENSION;
+    }
+
+    // FileLoader.getClosestPhotoSizeWithSize(sizes, Integer.MAX_VALUE) is the largest size, and
+    // FileLoader cannot be loaded off-device either
+    private static TLRPC.PhotoSize getLargestSize(TLRPC.Photo photo) {
+        TLRPC.PhotoSize largest = null;
+        for (TLRPC.PhotoSize size : photo.sizes) {
+            if (largest == null || size.w > largest.w || size.h > largest.h) {
+                largest = size;
+            }
+        }
+        return largest;
+    }
+
+    private static int getPhotoSize(TLRPC.Photo photo) {
+        TLRPC.PhotoSize size = getLargestSize(photo);
+        if (size != null) {
+            return (int) (size.size / BYTES_PER_KB);
+        }
+        return 0;
+    }
+
+    private static String getPhotoDimensions(TLRPC.Photo photo) {
+        TLRPC.PhotoSize size = getLargestSize(photo);
+        if (size != null) {
+            return size.w + "x" + size.h;
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.StreamingMessageWriter;
+
+// Private, group and channel chats all write through ChatExportSink, which appends one history page
+// at a time to a StreamingMessageWriter; the baseline is the cells' original saveAsCsv / saveAsJson.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ChatMessageBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    private static final String CSV_HEADER = "id, date, from_id, message\n";
+
+    @Param("10000")
+    public int messageCount;
+
+    private List<TLRPC.Message> messages;
+
+    @Setup
+    public void generate() {
+        messages = Corpus.messages(messageCount, Corpus.SEED);
+    }
+
+    @Benchmark
+    public long baselineCsv(OutputFile output) throws IOException {
+        File file = output.get("chat.csv");
+        BaselineSerializers.saveChatAsCsv(messages, file);
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long baselineJson(OutputFile output) throws IOException {
+        File file = output.get("chat.json");
+        BaselineSerializers.saveChatAsJson(messages, file);
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long streamingCsv(OutputFile output) throws IOException {
+        return stream(output, StreamingMessageWriter.FORMAT_CSV);
+    }
+
+    @Benchmark
+    public long streamingJson(OutputFile output) throws IOException {
+        return stream(output, StreamingMessageWriter.FORMAT_JSON);
+    }
+
+    @Benchmark
+    public long streamingJsonl(OutputFile output) throws IOException {
+        return stream(output, StreamingMessageWriter.FORMAT_JSONL);
+    }
+
+    @Benchmark
+    public long streamingColumnar(OutputFile output) throws IOException {
+        return stream(output, StreamingMessageWriter.FORMAT_COLUMNAR);
+    }
+
+    private long stream(OutputFile output, int format) throws IOException {
+        File file = output.get("chat" + StreamingMessageWriter.getExtension(format));
+        try (StreamingMessageWriter writer = new StreamingMessageWriter(file, format, ExportCompression.CODEC_NONE, CSV_HEADER)) {
+            for (int i = 0; i < messages.size(); i += PAGE_SIZE) {
+                writer.append(messages.subList(i, Math.min(messages.size(), i + PAGE_SIZE)));
+            }
+        }
+        return output.written(file);
+    }
+}
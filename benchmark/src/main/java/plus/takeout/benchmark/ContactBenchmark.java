@@ -0,0 +1,84 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import plus.takeout.TL_takeout;
+import plus.takeout.engine.ContactSerializer;
+import plus.takeout.engine.ExportCompression;
+
+// ContactExportCell streams through ContactSerializer; the baseline built the whole file in
+// generateCsvContent / generateJsonContent and wrote the string.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ContactBenchmark {
+
+    @Param("5000")
+    public int contactCount;
+
+    private List<TL_takeout.TL_savedContact> contacts;
+
+    @Setup
+    public void generate() {
+        contacts = Corpus.contacts(contactCount, Corpus.SEED);
+    }
+
+    @Benchmark
+    public long baselineCsv(OutputFile output) throws IOException {
+        File file = output.get("contacts.csv");
+        BaselineSerializers.writeString(BaselineSerializers.generateCsvContent(contacts), file);
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long baselineJson(OutputFile output) throws IOException {
+        File file = output.get("contacts.json");
+        BaselineSerializers.writeString(BaselineSerializers.generateJsonContent(contacts), file);
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long writeCsv(OutputFile output) throws IOException {
+        File file = output.get("contacts.csv");
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            ContactSerializer.writeCsv(writer, contacts);
+        }
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long writeJson(OutputFile output) throws IOException {
+        File file = output.get("contacts.json");
+        try (Writer writer = ExportCompression.openWriter(file, ExportCompression.CODEC_NONE)) {
+            ContactSerializer.writeJson(writer, contacts);
+        }
+        return output.written(file);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.telegram.tgnet.TLRPC;
+import org.telegram.tgnet.tl.TL_stories;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import plus.takeout.TL_takeout;
+
+// Synthetic, seeded corpora in the shape the takeout API returns them. Message texts mix the cases
+// the escapers care about: plain ASCII, separators and quotes, line breaks, other scripts, emoji
+// (surrogate pairs) and the odd control character.
+public final class Corpus {
+
+    public static final long SEED = 42;
+
+    private static final int FIRST_DATE = 1_600_000_000;
+    private static final long FIRST_USER_ID = 1_000_000L;
+    private static final int USER_COUNT = 500;
+
+    private static final String[] WORDS = {
+            "the", "export", "message", "tomorrow", "ok", "see", "you", "at", "photo", "meeting",
+            "link", "thanks", "where", "is", "it", "lol", "yes", "no", "maybe", "later",
+            "call", "me", "when", "done", "https://t.me/telegram", "price", "12.50", "address", "room", "404"
+    };
+    private static final String[] OTHER_SCRIPT_WORDS = {
+            "привет", "спасибо", "завтра", "ሰላም", "እሺ", "你好", "谢谢", "مرحبا", "שלום", "γεια"
+    };
+    private static final String[] EMOJI = {
+            "\uD83D\uDE02", "\uD83D\uDC4D", "\u2764\uFE0F", "\uD83D\uDE0A", "\uD83D\uDD25", "\uD83C\uDF89"
+    };
+    private static final String[] FIRST_NAMES = {"Abebe", "Anna", "Chen", "Dawit", "Elena", "Hana", "Ivan", "Lea", "Omar", "Sara"};
+    private static final String[] LAST_NAMES = {"Bekele", "Ivanova", "Li", "O'Brien", "Smith, Jr.", "Tesfaye", "Müller", "\"Kim\"", "", "Nguyen"};
+    private static final String[] MIME_TYPES = {"video/mp4", "image/png", "image/jpeg", "audio/ogg", "application/pdf"};
+
+    private Corpus() {
+    }
+
+    public static String text(Random random) {
+        int kind = random.nextInt(100);
+        int words = 1 + random.nextInt(kind < 70 ? 12 : 40);
+        StringBuilder text = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            if (kind >= 80 && kind < 90) {
+                text.append(OTHER_SCRIPT_WORDS[random.nextInt(OTHER_SCRIPT_WORDS.length)]);
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (kind >= 70 && kind < 75 && random.nextInt(4) == 0) {
+                text.append(',');
+            } else if (kind >= 75 && kind < 80 && random.nextInt(6) == 0) {
+                text.append(" \"").append(WORDS[random.nextInt(WORDS.length)]).append('"');
+            } else if (kind >= 90 && kind < 97 && random.nextInt(5) == 0) {
+                text.append(EMOJI[random.nextInt(EMOJI.length)]);
+            } else if (kind >= 97 && random.nextInt(5) == 0) {
+                text.append(random.nextBoolean() ? '\n' : '\t');
+            }
+        }
+        if (kind == 99) {
+            text.append('\u0007').append("\\path\r\n");
+        }
+        return text.toString();
+    }
+
+    public static List<String> texts(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> texts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            texts.add(text(random));
+        }
+        return texts;
+    }
+
+    // newest first, the order the history pages arrive in
+    public static List<TLRPC.Message> messages(int count, long seed) {
+        Random random = new Random(seed);
+        List<TLRPC.Message> messages = new ArrayList<>(count);
+        for (int i = count; i > 0; i--) {
+            TLRPC.TL_message message = new TLRPC.TL_message();
+            message.id = i;
+            message.date = FIRST_DATE + i * 37;
+            TLRPC.TL_peerUser from = new TLRPC.TL_peerUser();
+            from.user_id = FIRST_USER_ID + random.nextInt(USER_COUNT);
+            message.from_id = from;
+            int media = random.nextInt(10);
+            if (media == 0) {
+                TLRPC.TL_messageMediaPhoto photo = new TLRPC.TL_messageMediaPhoto();
+                photo.photo = photo(random, message.date);
+                message.media = photo;
+                message.message = random.nextBoolean() ? text(random) : "";
+            } else if (media == 1) {
+                TLRPC.TL_messageMediaDocument document = new TLRPC.TL_messageMediaDocument();
+                document.document = document(random);
+                message.media = document;
+                message.message = "";
+            } else {
+                message.message = text(random);
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    public static List<TL_takeout.TL_savedContact> contacts(int count, long seed) {
+        Random random = new Random(seed);
+        List<TL_takeout.TL_savedContact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            TL_takeout.TL_savedContact contact = new TL_takeout.TL_savedContact();
+            contact.first_name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            contact.last_name = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            contact.phone = "+251" + (900_000_000 + random.nextInt(99_999_999));
+            contact.date = FIRST_DATE + random.nextInt(100_000_000);
+            contacts.add(contact);
+        }
+        return contacts;
+    }
+
+    public static List<TL_stories.StoryItem> stories(int count, long seed) {
+        Random random = new Random(seed);
+        List<TL_stories.StoryItem> stories = new ArrayList<>(count);
+        for (int i = count; i > 0; i--) {
+            TL_stories.TL_storyItem story = new TL_stories.TL_storyItem();
+            story.id = i;
+            story.date = FIRST_DATE + i * 86_400;
+            story.caption = random.nextInt(3) == 0 ? "" : text(random);
+            if (random.nextInt(3) == 0) {
+                TLRPC.TL_messageMediaDocument media = new TLRPC.TL_messageMediaDocument();
+                media.document = document(random);
+                story.media = media;
+            } else {
+                TLRPC.TL_messageMediaPhoto media = new TLRPC.TL_messageMediaPhoto();
+                media.photo = photo(random, story.date);
+                story.media = media;
+            }
+            stories.add(story);
+        }
+        return stories;
+    }
+
+    public static List<TLRPC.Photo> photos(int count, long seed) {
+        Random random = new Random(seed);
+        List<TLRPC.Photo> photos = new ArrayList<>(count);
+        for (int i = count; i > 0; i--) {
+            photos.add(photo(random, FIRST_DATE + i * 604_800));
+        }
+        return photos;
+    }
+
+    public static Map<String, String> personalInfo() {
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("First Name", "Tesfamariam");
+        data.put("Last Name", "Gebre");
+        data.put("Username", "takeout_user");
+        data.put("Phone", "+251911000000");
+        data.put("Bio", "Exports, \"backups\" and\nother things \uD83D\uDCE6");
+        return data;
+    }
+
+    private static TLRPC.Photo photo(Random random, int date) {
+        TLRPC.TL_photo photo = new TLRPC.TL_photo();
+        photo.id = random.nextLong();
+        photo.date = date;
+        int[] sides = {90, 320, 800, 1280};
+        for (int side : sides) {
+            TLRPC.TL_photoSize size = new TLRPC.TL_photoSize();
+            size.type = side == 90 ? "s" : side == 320 ? "m" : side == 800 ? "x" : "y";
+            size.w = side;
+            size.h = side * 3 / 4;
+            size.size = side * side / 8 + random.nextInt(4096);
+            photo.sizes.add(size);
+        }
+        return photo;
+    }
+
+    private static TLRPC.Document document(Random random) {
+        TLRPC.TL_document document = new TLRPC.TL_document();
+        document.id = random.nextLong();
+        document.mime_type = MIME_TYPES[random.nextInt(MIME_TYPES.length)];
+        document.size = 1024 + random.nextInt(50 * 1024 * 1024);
+        return document;
+    }
+}
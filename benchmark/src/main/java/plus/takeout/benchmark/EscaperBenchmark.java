@@ -0,0 +1,127 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import plus.takeout.engine.ExportEscaper;
+
+// The original escapers, which build a new string per field, against ExportEscaper, which writes
+// straight into the output. Both write into the same Writer, so the score is messages per second
+// and gc.alloc.rate.norm is bytes allocated per message.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+@OperationsPerInvocation(EscaperBenchmark.MESSAGE_COUNT)
+public class EscaperBenchmark {
+
+    static final int MESSAGE_COUNT = 1_000_000;
+
+    // stands in for the export file's BufferedWriter; counts what it is given and keeps nothing
+    static class CountingWriter extends Writer {
+        long chars;
+
+        @Override
+        public void write(int c) {
+            chars++;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public void write(String str, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public Writer append(char c) {
+            chars++;
+            return this;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) {
+            chars += end - start;
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private List<String> texts;
+    private final CountingWriter writer = new CountingWriter();
+
+    @Setup
+    public void generate() {
+        texts = Corpus.texts(MESSAGE_COUNT, Corpus.SEED);
+    }
+
+    @Benchmark
+    public long baselineCsv() throws IOException {
+        writer.chars = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            writer.write(BaselineSerializers.escapeCsvField(texts.get(i)));
+        }
+        return writer.chars;
+    }
+
+    @Benchmark
+    public long escaperCsv() throws IOException {
+        writer.chars = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            ExportEscaper.appendCsvField(writer, texts.get(i));
+        }
+        return writer.chars;
+    }
+
+    @Benchmark
+    public long baselineJson() throws IOException {
+        writer.chars = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            writer.write(BaselineSerializers.escapeJsonString(texts.get(i)));
+        }
+        return writer.chars;
+    }
+
+    @Benchmark
+    public long escaperJson() throws IOException {
+        writer.chars = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            ExportEscaper.appendJsonString(writer, texts.get(i));
+        }
+        return writer.chars;
+    }
+}
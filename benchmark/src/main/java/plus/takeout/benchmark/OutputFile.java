@@ -0,0 +1,62 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// The file a benchmark writes, overwritten on every call. The cells write real files, so the
+// benchmarks do too; bytes is reported next to the score as the bytes written per second.
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class OutputFile {
+
+    public long bytes;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("takeout-benchmark").toFile();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    File get(String name) {
+        return new File(dir, name);
+    }
+
+    long written(File file) {
+        long length = file.length();
+        bytes += length;
+        return length;
+    }
+}
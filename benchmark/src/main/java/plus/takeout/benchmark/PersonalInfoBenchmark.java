@@ -0,0 +1,57 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// PersonalInfoExportCell writes five fields, so this mostly measures opening and closing the file.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersonalInfoBenchmark {
+
+    private Map<String, String> data;
+
+    @Setup
+    public void generate() {
+        data = Corpus.personalInfo();
+    }
+
+    @Benchmark
+    public long saveAsCsv(OutputFile output) throws IOException {
+        File file = output.get("personal_info.csv");
+        CellSerializers.savePersonalInfoAsCsv(file, data);
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long saveAsJson(OutputFile output) throws IOException, JSONException {
+        File file = output.get("personal_info.json");
+        CellSerializers.savePersonalInfoAsJson(file, data);
+        return output.written(file);
+    }
+}
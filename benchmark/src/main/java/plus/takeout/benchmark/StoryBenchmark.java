@@ -0,0 +1,72 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.benchmark;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.tgnet.tl.TL_stories;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// StoryExportCell.saveMetadata: one metadata entry per story, then the whole list is saved.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class StoryBenchmark {
+
+    @Param("1000")
+    public int storyCount;
+
+    private List<TL_stories.StoryItem> stories;
+
+    @Setup
+    public void generate() {
+        stories = Corpus.stories(storyCount, Corpus.SEED);
+    }
+
+    @Benchmark
+    public long saveAsCsv(OutputFile output) throws IOException {
+        File file = output.get("metadata.csv");
+        CellSerializers.saveStoriesAsCsv(file, createMetadata());
+        return output.written(file);
+    }
+
+    @Benchmark
+    public long saveAsJson(OutputFile output) throws IOException, JSONException {
+        File file = output.get("metadata.json");
+        CellSerializers.saveStoriesAsJson(file, createMetadata());
+        return output.written(file);
+    }
+
+    private List<Map<String, Object>> createMetadata() {
+        List<Map<String, Object>> metadata = new ArrayList<>();
+        for (TL_stories.StoryItem story : stories) {
+            metadata.add(CellSerializers.createStoryEntry(story));
+        }
+        return metadata;
+    }
+}
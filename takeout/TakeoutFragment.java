@@ -28,7 +28,6 @@ import org.json.JSONObject;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.R;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.tgnet.tl.TL_account;
 import org.telegram.ui.ActionBar.ActionBar;
@@ -41,8 +40,12 @@ import org.telegram.ui.Components.RecyclerListView;
 import org.telegram.ui.Components.SeekBarView;
 
 import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import plus.takeout.cells.ChannelChatExportCell;
 import plus.takeout.cells.ContactExportCell;
@@ -55,18 +58,32 @@ import plus.takeout.cells.PrivateChatExportCell;
 import plus.takeout.cells.ProfilePictureExportCell;
 import plus.takeout.cells.SavedMessageExportCell;
 import plus.takeout.cells.StoryExportCell;
+import plus.takeout.engine.DialogIndex;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.FileExporter;
+import plus.takeout.engine.PeerDirectory;
+import plus.takeout.engine.SearchIndexWriter;
+import plus.takeout.engine.StreamingMessageWriter;
+import plus.takeout.engine.TakeoutJournal;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class TakeoutFragment extends BaseFragment {
 
     private static final String EXPORT_DIR_NAME = "Exported Data";
+    private static final String FILES_DIR_NAME = "Files";
     private static final int DEFAULT_FILE_SIZE_MB = 10;
     private static final int MIN_FILE_SIZE_MB = 10;
     private static final int MAX_FILE_SIZE_MB = 100;
     private static final long BYTES_PER_MB = 1024L * 1024L;
+    private static final SimpleDateFormat ARCHIVE_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
 
     public static final String EXPORT_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + EXPORT_DIR_NAME;
 
-    private boolean exportAsCsv = true;
+    private int exportFormat = StreamingMessageWriter.FORMAT_CSV;
 
     private ContactExportCell contactExportCell;
     private PersonalInfoExportCell personalInfoExportCell;
@@ -78,7 +95,63 @@ public class TakeoutFragment extends BaseFragment {
     private ChannelChatExportCell channelChatExportCell;
     private ExportTypeRadioCell exportTypeRadioCell;
     private ExportButtonCell exportButtonCell;
+    private ExportArchive exportArchive;
+    private ExportDatabase exportDatabase;
+    private SearchIndexWriter exportSearchIndex;
+    private int outputPendingCategories;
 
+    // the archive, the database and the search index are shared by all categories and closed after the last one
+    private final ExportProgressBus.Listener outputListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {}
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {}
+
+        @Override
+        public void onProgress(ExportProgress progress) {}
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            outputPendingCategories &= ~(1 << category);
+            if (outputPendingCategories == 0) {
+                closeOutputs();
+            }
+        }
+    };
+
+    // the stored takeout is only forgotten once every category of the session finished without an error
+    private final ExportProgressBus.Listener sessionListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {}
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {}
+
+        @Override
+        public void onProgress(ExportProgress progress) {}
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if ((sessionPendingCategories & (1 << category)) == 0) {
+                return;
+            }
+            sessionPendingCategories &= ~(1 << category);
+            // cells finish a failed category in red
+            if (colorKey == Theme.key_color_red) {
+                sessionFailed = true;
+            }
+            if (sessionPendingCategories == 0) {
+                ExportProgressBus.getInstance(currentAccount).removeListener(sessionListener);
+                if (!sessionFailed && currentTakeoutId == TakeoutJournal.getActiveTakeoutId(currentAccount)) {
+                    TakeoutJournal.clearActiveTakeout(currentAccount);
+                }
+            }
+        }
+    };
+
+    private int sessionPendingCategories;
+    private boolean sessionFailed;
     private boolean saveContactChecked;
     private boolean storiesChecked;
     private boolean personalInfoChecked;
@@ -89,6 +162,11 @@ public class TakeoutFragment extends BaseFragment {
     private boolean groupMessagesChecked;
     private boolean channelMessagesChecked;
     private boolean fileChecked;
+    private boolean deltaChecked;
+    private boolean compressChecked;
+    private boolean archiveChecked;
+    private boolean databaseChecked;
+    private boolean searchIndexChecked;
 
     private int currentFileSizeMB = DEFAULT_FILE_SIZE_MB;
     private long currentTakeoutId;
@@ -107,6 +185,11 @@ public class TakeoutFragment extends BaseFragment {
     private int privateMessagesRow;
     private int groupMessagesRow;
     private int channelMessagesRow;
+    private int deltaRow;
+    private int compressRow;
+    private int archiveRow;
+    private int databaseRow;
+    private int searchIndexRow;
     private int filesCheckRow;
     private int filesSizeRow;
     private int formatRow;
@@ -133,9 +216,15 @@ public class TakeoutFragment extends BaseFragment {
         privateMessagesRow = rowCount++;
         groupMessagesRow = rowCount++;
         channelMessagesRow = rowCount++;
-        filesCheckRow = -1;
-        filesSizeRow = -1;
-        formatRow = -1;
+        filesCheckRow = rowCount++;
+        // the size limit only applies to files, so it is shown while files are selected
+        filesSizeRow = fileChecked ? rowCount++ : -1;
+        deltaRow = rowCount++;
+        compressRow = rowCount++;
+        archiveRow = rowCount++;
+        databaseRow = rowCount++;
+        searchIndexRow = rowCount++;
+        formatRow = rowCount++;
         exportButtonRow = rowCount++;
         finalDividerRow = rowCount++;
         if (listAdapter != null) {
@@ -146,7 +235,11 @@ public class TakeoutFragment extends BaseFragment {
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
-        if (currentTakeoutId != 0) {
+        // exports keep running after the screen is closed; outputListener closes the outputs after the last one
+        if (outputPendingCategories == 0) {
+            closeOutputs();
+        }
+        if (currentTakeoutId != 0 && sessionPendingCategories == 0 && !TakeoutJournal.get(currentTakeoutId).hasPending()) {
             finishTakeoutSession(currentTakeoutId, true);
         }
     }
@@ -219,6 +312,16 @@ public class TakeoutFragment extends BaseFragment {
                 savedMessageChecked = !savedMessageChecked;
             } else if (position == sessionsRow) {
                 sessionsChecked = !sessionsChecked;
+            } else if (position == deltaRow) {
+                deltaChecked = !deltaChecked;
+            } else if (position == compressRow) {
+                compressChecked = !compressChecked;
+            } else if (position == archiveRow) {
+                archiveChecked = !archiveChecked;
+            } else if (position == databaseRow) {
+                databaseChecked = !databaseChecked;
+            } else if (position == searchIndexRow) {
+                searchIndexChecked = !searchIndexChecked;
             } else if (position == hintRow) {
                 HintInnerCell hintInnerCell = (HintInnerCell) view;
                 hintInnerCell.openExportDirectory(context);
@@ -234,6 +337,18 @@ public class TakeoutFragment extends BaseFragment {
     }
 
     private void startTakeout() {
+        int categories = getSelectedCategories();
+        long fileMaxSize = fileChecked ? currentFileSizeMB * BYTES_PER_MB : 0;
+        long resumeTakeoutId = TakeoutJournal.getActiveTakeoutId(currentAccount);
+        if (resumeTakeoutId != 0) {
+            if (TakeoutJournal.isActiveTakeoutFor(currentAccount, categories, fileMaxSize)) {
+                resumeTakeout(resumeTakeoutId);
+                return;
+            }
+            // the stored session was opened for a different selection and cannot serve this one
+            finishTakeoutSession(resumeTakeoutId, false);
+        }
+
         TL_takeout.TL_account_initTakeoutSession req = new TL_takeout.TL_account_initTakeoutSession();
         req.flags = 0;
 
@@ -251,10 +366,10 @@ public class TakeoutFragment extends BaseFragment {
         }
         if (fileChecked) {
             req.files = true;
-            req.file_max_size = currentFileSizeMB * BYTES_PER_MB;
+            req.file_max_size = fileMaxSize;
         }
 
-        ConnectionsManager.getInstance(currentAccount).sendRequest(req, (response, error) -> {
+        TakeoutRequestLimiter.getInstance(currentAccount).sendRequest(req, (response, error) -> {
             AndroidUtilities.runOnUIThread(() -> {
                 if (error != null) {
                     FileLog.e("Takeout initialization failed: " + error.text);
@@ -269,41 +384,371 @@ public class TakeoutFragment extends BaseFragment {
 
                 TL_takeout.TL_account_takeout takeout = (TL_takeout.TL_account_takeout) response;
                 currentTakeoutId = takeout.id;
+                TakeoutJournal.setActiveTakeout(currentAccount, takeout.id, categories, fileMaxSize);
+                startExports(takeout.id);
+            });
+        });
+    }
 
-                if (saveContactChecked && contactExportCell != null) {
-                    contactExportCell.exportContacts(takeout.id);
-                }
-                if (storiesChecked && storyExportCell != null) {
-                    storyExportCell.exportStory(takeout.id);
-                }
-                if (personalInfoChecked && personalInfoExportCell != null) {
-                    personalInfoExportCell.exportPersonalInfo(takeout.id);
-                }
-                if (profilePicturesChecked && profilePictureExportCell != null) {
-                    profilePictureExportCell.exportProfilePicture(takeout.id);
-                }
-                if (savedMessageChecked && savedMessageExportCell != null) {
-                    savedMessageExportCell.exportSavedMessages(takeout.id);
-                }
-                if (sessionsChecked) {
-                    exportSessions(takeout.id);
-                }
-                if (privateMessagesChecked && privateChatExportCell != null) {
-                    privateChatExportCell.exportPrivateChatMessages(takeout.id);
-                }
-                if (groupMessagesChecked && groupChatExportCell != null) {
-                    groupChatExportCell.exportGroupMessages(takeout.id);
-                }
-                if (channelMessagesChecked && channelChatExportCell != null) {
-                    channelChatExportCell.exportChannelMessages(takeout.id);
+    private void resumeTakeout(long takeoutId) {
+        TL_takeout.TL_invokeWithTakeout probeRequest = new TL_takeout.TL_invokeWithTakeout();
+        probeRequest.takeout_id = takeoutId;
+        probeRequest.query = new TL_takeout.TL_messages_getSplitRanges();
+
+        TakeoutRequestLimiter.getInstance(currentAccount).sendRequest(probeRequest, (response, error) -> {
+            AndroidUtilities.runOnUIThread(() -> {
+                if (error != null && error.text != null && error.text.startsWith("TAKEOUT_")) {
+                    FileLog.e("Stored takeout session is no longer valid: " + error.text);
+                    TakeoutJournal.clearActiveTakeout(currentAccount);
+                    startTakeout();
+                    return;
                 }
-                if (fileChecked) {
-                    exportFiles(takeout.id);
+                currentTakeoutId = takeoutId;
+                startExports(takeoutId);
+            });
+        });
+    }
+
+    private void openArchive() {
+        try {
+            exportArchive = ExportArchive.create(new File(EXPORT_DIR), "telegram_export_" + ARCHIVE_DATE_FORMAT.format(new Date()));
+        } catch (IOException e) {
+            FileLog.e("Failed to create export archive", e);
+            Toast.makeText(getContext(), "Failed to create archive, exporting separate files", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        applyArchive(exportArchive);
+    }
+
+    // inside the archive the database is spooled and added once it is closed
+    private void openDatabase() {
+        File dir = exportArchive != null ? exportArchive.getDir("") : new File(EXPORT_DIR);
+        try {
+            exportDatabase = ExportDatabase.open(currentAccount, dir);
+        } catch (IOException e) {
+            FileLog.e("Failed to open export database", e);
+            Toast.makeText(getContext(), "Failed to create database, exporting files only", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        applyDatabase(exportDatabase);
+    }
+
+    private void openSearchIndex() {
+        File dir = exportArchive != null ? exportArchive.getDir("") : new File(EXPORT_DIR);
+        try {
+            exportSearchIndex = SearchIndexWriter.create(dir, "search_" + ARCHIVE_DATE_FORMAT.format(new Date()));
+        } catch (IOException e) {
+            FileLog.e("Failed to create search index", e);
+            Toast.makeText(getContext(), "Failed to create search index, exporting files only", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        applySearchIndex(exportSearchIndex);
+    }
+
+    private void closeOutputs() {
+        ExportProgressBus.getInstance(currentAccount).removeListener(outputListener);
+        ExportArchive archive = exportArchive;
+        ExportDatabase database = exportDatabase;
+        SearchIndexWriter searchIndex = exportSearchIndex;
+        exportArchive = null;
+        exportDatabase = null;
+        exportSearchIndex = null;
+        applyArchive(null);
+        applyDatabase(null);
+        applySearchIndex(null);
+        Runnable closeSearchIndex = () -> {
+            if (searchIndex == null) {
+                closeArchive(archive);
+                return;
+            }
+            searchIndex.close(() -> {
+                if (archive != null && searchIndex.getFile().exists()) {
+                    archive.add(searchIndex.getFile());
                 }
+                closeArchive(archive);
             });
+        };
+        if (database == null) {
+            closeSearchIndex.run();
+            return;
+        }
+        database.close(() -> {
+            if (archive != null) {
+                archive.add(database.getFile());
+            }
+            closeSearchIndex.run();
         });
     }
 
+    private void closeArchive(ExportArchive archive) {
+        if (archive == null) {
+            return;
+        }
+        String name = archive.getFile().getName();
+        archive.close(() -> AndroidUtilities.runOnUIThread(() -> {
+            if (getContext() != null) {
+                String text = archive.isLoose() ? "Saved " + name + ", storage ran low so the rest are separate files" : "Saved " + name;
+                Toast.makeText(getContext(), text, Toast.LENGTH_SHORT).show();
+            }
+        }));
+    }
+
+    private int getSelectedCategories() {
+        int categories = 0;
+        if (saveContactChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_CONTACTS;
+        }
+        if (storiesChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_STORIES;
+        }
+        if (personalInfoChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PERSONAL_INFO;
+        }
+        if (profilePicturesChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PROFILE_PICTURES;
+        }
+        if (savedMessageChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_SAVED_MESSAGES;
+        }
+        if (privateMessagesChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PRIVATE_CHATS;
+        }
+        if (groupMessagesChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_GROUPS;
+        }
+        if (channelMessagesChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_CHANNELS;
+        }
+        if (fileChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_FILES;
+        }
+        return categories;
+    }
+
+    private int getExportedCategories() {
+        int categories = 0;
+        if (saveContactChecked && contactExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_CONTACTS;
+        }
+        if (storiesChecked && storyExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_STORIES;
+        }
+        if (personalInfoChecked && personalInfoExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PERSONAL_INFO;
+        }
+        if (profilePicturesChecked && profilePictureExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PROFILE_PICTURES;
+        }
+        if (savedMessageChecked && savedMessageExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_SAVED_MESSAGES;
+        }
+        if (privateMessagesChecked && privateChatExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_PRIVATE_CHATS;
+        }
+        if (groupMessagesChecked && groupChatExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_GROUPS;
+        }
+        if (channelMessagesChecked && channelChatExportCell != null) {
+            categories |= 1 << ExportProgressBus.CATEGORY_CHANNELS;
+        }
+        if (fileChecked) {
+            categories |= 1 << ExportProgressBus.CATEGORY_FILES;
+        }
+        return categories;
+    }
+
+    private void applyArchive(ExportArchive archive) {
+        if (contactExportCell != null) {
+            contactExportCell.setArchive(archive);
+        }
+        if (personalInfoExportCell != null) {
+            personalInfoExportCell.setArchive(archive);
+        }
+        if (storyExportCell != null) {
+            storyExportCell.setArchive(archive);
+        }
+        if (profilePictureExportCell != null) {
+            profilePictureExportCell.setArchive(archive);
+        }
+        if (savedMessageExportCell != null) {
+            savedMessageExportCell.setArchive(archive);
+        }
+        if (privateChatExportCell != null) {
+            privateChatExportCell.setArchive(archive);
+        }
+        if (groupChatExportCell != null) {
+            groupChatExportCell.setArchive(archive);
+        }
+        if (channelChatExportCell != null) {
+            channelChatExportCell.setArchive(archive);
+        }
+    }
+
+    private void applyDatabase(ExportDatabase database) {
+        if (contactExportCell != null) {
+            contactExportCell.setDatabase(database);
+        }
+        if (storyExportCell != null) {
+            storyExportCell.setDatabase(database);
+        }
+        if (profilePictureExportCell != null) {
+            profilePictureExportCell.setDatabase(database);
+        }
+        if (savedMessageExportCell != null) {
+            savedMessageExportCell.setDatabase(database);
+        }
+        if (privateChatExportCell != null) {
+            privateChatExportCell.setDatabase(database);
+        }
+        if (groupChatExportCell != null) {
+            groupChatExportCell.setDatabase(database);
+        }
+        if (channelChatExportCell != null) {
+            channelChatExportCell.setDatabase(database);
+        }
+    }
+
+    private void applySearchIndex(SearchIndexWriter searchIndex) {
+        if (privateChatExportCell != null) {
+            privateChatExportCell.setSearchIndex(searchIndex);
+        }
+        if (groupChatExportCell != null) {
+            groupChatExportCell.setSearchIndex(searchIndex);
+        }
+        if (channelChatExportCell != null) {
+            channelChatExportCell.setSearchIndex(searchIndex);
+        }
+        if (savedMessageExportCell != null) {
+            savedMessageExportCell.setSearchIndex(searchIndex);
+        }
+    }
+
+    private void applyCompression(int compression) {
+        if (contactExportCell != null) {
+            contactExportCell.setCompression(compression);
+        }
+        if (personalInfoExportCell != null) {
+            personalInfoExportCell.setCompression(compression);
+        }
+        if (storyExportCell != null) {
+            storyExportCell.setCompression(compression);
+        }
+        if (profilePictureExportCell != null) {
+            profilePictureExportCell.setCompression(compression);
+        }
+        if (savedMessageExportCell != null) {
+            savedMessageExportCell.setCompression(compression);
+        }
+        if (privateChatExportCell != null) {
+            privateChatExportCell.setCompression(compression);
+        }
+        if (groupChatExportCell != null) {
+            groupChatExportCell.setCompression(compression);
+        }
+        if (channelChatExportCell != null) {
+            channelChatExportCell.setCompression(compression);
+        }
+    }
+
+    // JSON Lines and columnar only apply to message exports; the other categories fall back to JSON
+    private void setExportFormat(int format) {
+        exportFormat = format;
+        boolean csv = format == StreamingMessageWriter.FORMAT_CSV;
+        if (contactExportCell != null) {
+            contactExportCell.setExportAsCsv(csv);
+        }
+        if (personalInfoExportCell != null) {
+            personalInfoExportCell.setExportAsCsv(csv);
+        }
+        if (storyExportCell != null) {
+            storyExportCell.setExportAsCsv(csv);
+        }
+        if (profilePictureExportCell != null) {
+            profilePictureExportCell.setExportAsCsv(csv);
+        }
+        if (savedMessageExportCell != null) {
+            savedMessageExportCell.setExportFormat(format);
+        }
+        if (privateChatExportCell != null) {
+            privateChatExportCell.setExportFormat(format);
+        }
+        if (groupChatExportCell != null) {
+            groupChatExportCell.setExportFormat(format);
+        }
+        if (channelChatExportCell != null) {
+            channelChatExportCell.setExportFormat(format);
+        }
+    }
+
+    private void startExports(long takeoutId) {
+        int compression = compressChecked ? ExportCompression.CODEC_GZIP : ExportCompression.CODEC_NONE;
+        applyCompression(compression);
+        if (archiveChecked) {
+            openArchive();
+        }
+        if (exportArchive != null) {
+            // an archive run starts from scratch, so its manifest holds this session only and is done
+            File dir = exportArchive.getDir("");
+            ExportCompression.recordSession(dir, takeoutId, compression);
+            exportArchive.add(new File(dir, ExportCompression.MANIFEST_FILE));
+        } else {
+            ExportCompression.recordSession(new File(EXPORT_DIR), takeoutId, compression);
+        }
+        if (databaseChecked) {
+            openDatabase();
+        }
+        if (searchIndexChecked) {
+            openSearchIndex();
+        }
+        sessionPendingCategories = getExportedCategories();
+        sessionFailed = false;
+        if (sessionPendingCategories != 0) {
+            ExportProgressBus.getInstance(currentAccount).addListener(sessionListener);
+        }
+        if (exportArchive != null || exportDatabase != null || exportSearchIndex != null) {
+            outputPendingCategories = getExportedCategories();
+            if (outputPendingCategories == 0) {
+                closeOutputs();
+            } else {
+                ExportProgressBus.getInstance(currentAccount).addListener(outputListener);
+            }
+        }
+        if (saveContactChecked && contactExportCell != null) {
+            contactExportCell.exportContacts(takeoutId);
+        }
+        if (storiesChecked && storyExportCell != null) {
+            storyExportCell.exportStory(takeoutId);
+        }
+        if (personalInfoChecked && personalInfoExportCell != null) {
+            personalInfoExportCell.exportPersonalInfo(takeoutId);
+        }
+        if (profilePicturesChecked && profilePictureExportCell != null) {
+            profilePictureExportCell.exportProfilePicture(takeoutId);
+        }
+        if (savedMessageChecked && savedMessageExportCell != null) {
+            savedMessageExportCell.setDeltaExport(deltaChecked);
+            savedMessageExportCell.exportSavedMessages(takeoutId);
+        }
+        if (sessionsChecked) {
+            exportSessions(takeoutId);
+        }
+        if (privateMessagesChecked && privateChatExportCell != null) {
+            privateChatExportCell.setDeltaExport(deltaChecked);
+            privateChatExportCell.exportPrivateChatMessages(takeoutId);
+        }
+        if (groupMessagesChecked && groupChatExportCell != null) {
+            groupChatExportCell.setDeltaExport(deltaChecked);
+            groupChatExportCell.exportGroupMessages(takeoutId);
+        }
+        if (channelMessagesChecked && channelChatExportCell != null) {
+            channelChatExportCell.setDeltaExport(deltaChecked);
+            channelChatExportCell.exportChannelMessages(takeoutId);
+        }
+        if (fileChecked) {
+            exportFiles(takeoutId, compression);
+        }
+    }
+
     private void updateMaxFileSize(int sizeMB) {
         currentFileSizeMB = sizeMB;
     }
@@ -390,6 +835,7 @@ public class TakeoutFragment extends BaseFragment {
                     break;
                 case VIEW_TYPE_FORMAT_INFO:
                     view = exportTypeRadioCell = new ExportTypeRadioCell(context);
+                    exportTypeRadioCell.setOnFormatSelected(TakeoutFragment.this::setExportFormat);
                     view.setBackgroundColor(Theme.getColor(Theme.key_windowBackgroundWhite));
                     break;
                 case VIEW_TYPE_EXPORT_BUTTON:
@@ -417,10 +863,12 @@ public class TakeoutFragment extends BaseFragment {
             TextView currentSize = new TextView(context);
             currentSize.setTextColor(Theme.getColor(Theme.key_windowBackgroundWhiteBlueText));
             currentSize.setTextSize(TypedValue.COMPLEX_UNIT_DIP, 14);
+            currentSize.setText(currentFileSizeMB + " MB");
             linearLayout.addView(currentSize, LayoutHelper.createLinear(LayoutHelper.WRAP_CONTENT, LayoutHelper.WRAP_CONTENT, 0, 4, 0, 8));
 
             SeekBarView seekBar = new SeekBarView(context);
             seekBar.setReportChanges(true);
+            seekBar.setProgress((float) (currentFileSizeMB - MIN_FILE_SIZE_MB) / (MAX_FILE_SIZE_MB - MIN_FILE_SIZE_MB));
             seekBar.setDelegate(new SeekBarView.SeekBarViewDelegate() {
                 @Override
                 public void onSeekBarDrag(boolean stop, float progress) {
@@ -476,65 +924,76 @@ public class TakeoutFragment extends BaseFragment {
                         textCheckCell.setTextAndCheck("Files", fileChecked, true);
                     } else if (position == sessionsRow) {
                         textCheckCell.setTextAndCheck("Sessions", sessionsChecked, true);
+                    } else if (position == deltaRow) {
+                        textCheckCell.setTextAndCheck("Only new messages since last export", deltaChecked, true);
+                    } else if (position == compressRow) {
+                        textCheckCell.setTextAndCheck("Compress exported files (gzip)", compressChecked, true);
+                    } else if (position == archiveRow) {
+                        textCheckCell.setTextAndCheck("Export as a single ZIP archive", archiveChecked, true);
+                    } else if (position == databaseRow) {
+                        textCheckCell.setTextAndCheck("Build a searchable database (SQLite)", databaseChecked, true);
+                    } else if (position == searchIndexRow) {
+                        textCheckCell.setTextAndCheck("Build a keyword index for chats", searchIndexChecked, true);
                     }
                     break;
                 }
                 case VIEW_TYPE_FORMAT_INFO: {
                     ExportTypeRadioCell exportTypeRadioCell1 = (ExportTypeRadioCell) holder.itemView;
-                    exportTypeRadioCell1.setFormat(exportAsCsv);
+                    exportTypeRadioCell1.setFormat(exportFormat);
                     break;
                 }
                 case VIEW_TYPE_CONTACT_INFO: {
                     contactExportCell = (ContactExportCell) holder.itemView;
-                    contactExportCell.setExportAsCsv(exportAsCsv);
+                    contactExportCell.setExportAsCsv(exportFormat == StreamingMessageWriter.FORMAT_CSV);
                     contactExportCell.setExportData("Saved Contacts", saveContactChecked);
                     contactExportCell.setContactExportStatusDelegate(createContactExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_PERSONAL_INFO: {
                     personalInfoExportCell = (PersonalInfoExportCell) holder.itemView;
-                    personalInfoExportCell.setExportAsCsv(exportAsCsv);
+                    personalInfoExportCell.setExportAsCsv(exportFormat == StreamingMessageWriter.FORMAT_CSV);
                     personalInfoExportCell.setExportData("Personal Info", personalInfoChecked);
                     personalInfoExportCell.setPersonalInfoExportDelegate(createPersonalInfoExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_STORY_INFO: {
                     storyExportCell = (StoryExportCell) holder.itemView;
-                    storyExportCell.setExportAsCsv(exportAsCsv);
+                    storyExportCell.setExportAsCsv(exportFormat == StreamingMessageWriter.FORMAT_CSV);
                     storyExportCell.setExportData("Stories", storiesChecked);
                     storyExportCell.setStoryExportDelegate(createStoryExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_PROFILE_PICTURE_INFO: {
                     profilePictureExportCell = (ProfilePictureExportCell) holder.itemView;
-                    profilePictureExportCell.setExportAsCsv(exportAsCsv);
+                    profilePictureExportCell.setExportAsCsv(exportFormat == StreamingMessageWriter.FORMAT_CSV);
                     profilePictureExportCell.setExportData("Profile Pictures", profilePicturesChecked);
                     profilePictureExportCell.setProfilePictureExportDelegate(createProfilePictureExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_SAVED_MESSAGE_INFO: {
                     savedMessageExportCell = (SavedMessageExportCell) holder.itemView;
-                    savedMessageExportCell.setExportAsCsv(exportAsCsv);
+                    savedMessageExportCell.setExportFormat(exportFormat);
                     savedMessageExportCell.setExportData("Saved Messages", savedMessageChecked);
                     savedMessageExportCell.setSavedMessageExportDelegate(createSavedMessageExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_PRIVATE_CHAT_INFO: {
                     privateChatExportCell = (PrivateChatExportCell) holder.itemView;
-                    privateChatExportCell.setExportAsCsv(exportAsCsv);
+                    privateChatExportCell.setExportFormat(exportFormat);
                     privateChatExportCell.setExportData("Private Messages", privateMessagesChecked);
                     privateChatExportCell.setPrivateChatExportDelegate(createPrivateChatExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_GROUP_MESSAGE_INFO: {
                     groupChatExportCell = (GroupChatExportCell) holder.itemView;
+                    groupChatExportCell.setExportFormat(exportFormat);
                     groupChatExportCell.setExportData("Group Messages", groupMessagesChecked);
                     groupChatExportCell.setGroupChatExportDelegate(createGroupChatExportDelegate());
                     break;
                 }
                 case VIEW_TYPE_CHANNEL_MESSAGE_INFO: {
                     channelChatExportCell = (ChannelChatExportCell) holder.itemView;
-                    channelChatExportCell.setExportAsCsv(exportAsCsv);
+                    channelChatExportCell.setExportFormat(exportFormat);
                     channelChatExportCell.setExportData("Channel Messages", channelMessagesChecked);
                     channelChatExportCell.setChannelChatExportDelegate(createChannelChatExportDelegate());
                     break;
@@ -845,7 +1304,7 @@ public class TakeoutFragment extends BaseFragment {
 
         @Override
         public int getItemViewType(int position) {
-            if (position == filesCheckRow || position == sessionsRow) {
+            if (position == filesCheckRow || position == sessionsRow || position == deltaRow || position == compressRow || position == archiveRow || position == databaseRow || position == searchIndexRow) {
                 return VIEW_TYPE_TEXT_CHECK;
             } else if (position == filesSizeRow) {
                 return VIEW_TYPE_FILE_SIZE;
@@ -893,7 +1352,12 @@ public class TakeoutFragment extends BaseFragment {
         TL_takeout.TL_account_finishTakeoutSession req = new TL_takeout.TL_account_finishTakeoutSession();
         req.flags = 1;
         req.success = success;
-        ConnectionsManager.getInstance(currentAccount).sendRequest(req, null);
+        TakeoutRequestLimiter.getInstance(currentAccount).sendRequest(req, null);
+        DialogIndex.release(takeoutId);
+        PeerDirectory.getInstance(currentAccount).clear();
+        if (takeoutId == TakeoutJournal.getActiveTakeoutId(currentAccount)) {
+            TakeoutJournal.clearActiveTakeout(currentAccount);
+        }
     }
 
     private void exportSessions(long takeoutId) {
@@ -904,7 +1368,7 @@ public class TakeoutFragment extends BaseFragment {
         authInvoke.takeout_id = takeoutId;
         authInvoke.query = authRequest;
 
-        ConnectionsManager.getInstance(currentAccount).sendRequest(authInvoke, (authResponse, authError) -> {
+        TakeoutRequestLimiter.getInstance(currentAccount).sendRequest(authInvoke, (authResponse, authError) -> {
             AndroidUtilities.runOnUIThread(() -> {
                 if (authError != null) {
                     FileLog.e("Authorization export failed: " + authError.text);
@@ -934,7 +1398,7 @@ public class TakeoutFragment extends BaseFragment {
                 webInvoke.takeout_id = takeoutId;
                 webInvoke.query = webRequest;
 
-                ConnectionsManager.getInstance(currentAccount).sendRequest(webInvoke, (webResponse, webError) -> {
+                TakeoutRequestLimiter.getInstance(currentAccount).sendRequest(webInvoke, (webResponse, webError) -> {
                     AndroidUtilities.runOnUIThread(() -> {
                         if (webError != null) {
                             FileLog.e("Web authorization export failed: " + webError.text);
@@ -964,46 +1428,27 @@ public class TakeoutFragment extends BaseFragment {
         });
     }
 
-    private void exportFiles(long takeoutId) {
-        TLRPC.TL_messages_search searchRequest = new TLRPC.TL_messages_search();
-        searchRequest.peer = new TLRPC.TL_inputPeerEmpty();
-        searchRequest.q = "";
-        searchRequest.filter = new TLRPC.TL_inputMessagesFilterDocument();
-        searchRequest.limit = 100;
-
-        TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
-        invokeRequest.takeout_id = takeoutId;
-        invokeRequest.query = searchRequest;
-
-        ConnectionsManager.getInstance(currentAccount).sendRequest(invokeRequest, (response, error) -> {
-            AndroidUtilities.runOnUIThread(() -> {
-                if (error != null) {
-                    FileLog.e("File search failed: " + error.text);
-                    Toast.makeText(getContext(), "File search failed: " + error.text, Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                if (!(response instanceof TLRPC.messages_Messages)) {
-                    FileLog.e("Invalid file search response type");
-                    Toast.makeText(getContext(), "Invalid response", Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                TLRPC.messages_Messages messages = (TLRPC.messages_Messages) response;
-                List<TLRPC.Document> files = new ArrayList<>();
-
-                for (TLRPC.Message msg : messages.messages) {
-                    if (msg.media != null && msg.media.document != null) {
-                        files.add(msg.media.document);
-                    }
-                }
+    // documents over the file_max_size the session was opened with are listed in the manifest but not downloaded
+    private void exportFiles(long takeoutId, int compression) {
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(currentAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_FILES);
+        progressBus.setStatus(ExportProgressBus.CATEGORY_FILES, "Searching files...", Theme.key_dialogTextGray3);
+
+        File baseDir = exportArchive != null ? exportArchive.getDir(FILES_DIR_NAME) : new File(EXPORT_DIR, FILES_DIR_NAME);
+        File filesDir = new File(baseDir, "files_" + ARCHIVE_DATE_FORMAT.format(new Date()));
+        if (!filesDir.exists() && !filesDir.mkdirs()) {
+            FileLog.e("Failed to create files export directory: " + filesDir.getAbsolutePath());
+            Toast.makeText(getContext(), "Failed to create files folder", Toast.LENGTH_SHORT).show();
+            progressBus.finish(ExportProgressBus.CATEGORY_FILES, "Export failed", Theme.key_color_red);
+            return;
+        }
 
-                File filesDir = new File(Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_DOWNLOADS), "TakeoutExports/files");
-                if (!filesDir.exists() && !filesDir.mkdirs()) {
-                    FileLog.e("Failed to create files export directory");
-                }
-            });
-        });
+        FileExporter exporter = new FileExporter(currentAccount, takeoutId, currentFileSizeMB * BYTES_PER_MB);
+        exporter.export(filesDir, exportFormat == StreamingMessageWriter.FORMAT_CSV, compression, exportArchive, (success, status) -> AndroidUtilities.runOnUIThread(() -> {
+            progressBus.finish(ExportProgressBus.CATEGORY_FILES, status, success ? Theme.key_chat_attachFileText : Theme.key_color_red);
+            if (getContext() != null) {
+                Toast.makeText(getContext(), status, Toast.LENGTH_SHORT).show();
+            }
+        }));
     }
 }
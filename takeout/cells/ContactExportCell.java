@@ -19,15 +19,11 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.Vector;
 import org.telegram.ui.ActionBar.Theme;
 import org.telegram.ui.Cells.TextCheckCell;
@@ -35,8 +31,8 @@ import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -44,14 +40,18 @@ import java.util.List;
 import java.util.Locale;
 
 import plus.takeout.TL_takeout;
+import plus.takeout.engine.ContactSerializer;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class ContactExportCell extends FrameLayout {
 
     private static final String EXPORT_DIR_NAME = "Exported Data/Contacts";
-    private static final int STEP_DELAY_MS = 30;
-    private static final String CSV_HEADER = "First Name,Last Name,Phone Number,Added Date\n";
     private static final String DATE_FORMAT_PATTERN = "yyyyMMdd_HHmmss";
-    private static final int JSON_INDENT = 2;
 
     public static final String EXPORT_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + EXPORT_DIR_NAME;
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DATE_FORMAT_PATTERN, Locale.US);
@@ -69,6 +69,39 @@ public class ContactExportCell extends FrameLayout {
     public LineProgressView progressView;
     private boolean needDivider;
     private boolean exportAsCsv = true;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+    private ExportDatabase database;
+
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category == ExportProgressBus.CATEGORY_CONTACTS && delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category == ExportProgressBus.CATEGORY_CONTACTS && delegate != null) {
+                delegate.onContactExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {}
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_CONTACTS) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            if (delegate != null) {
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
 
     public ContactExportCell(@NonNull Context context) {
         super(context);
@@ -112,6 +145,18 @@ public class ContactExportCell extends FrameLayout {
         this.exportAsCsv = exportAsCsv;
     }
 
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
+    public void setDatabase(ExportDatabase database) {
+        this.database = database;
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         if (needDivider) {
@@ -122,98 +167,60 @@ public class ContactExportCell extends FrameLayout {
     }
 
     public void exportContacts(long takeoutId) {
-        contactExportQueue.postRunnable(() -> {
-            AndroidUtilities.runOnUIThread(() -> {
-                if (delegate != null) {
-                    delegate.onExportStatusUpdate("Starting export...", Theme.getColor(Theme.key_dialogTextGray3));
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_CONTACTS);
+        progressBus.addListener(progressListener);
+        progressBus.setStatus(ExportProgressBus.CATEGORY_CONTACTS, "Starting export...", Theme.key_dialogTextGray3);
+
+        TL_takeout.TL_contacts_getSaved contactsRequest = new TL_takeout.TL_contacts_getSaved();
+        TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
+        invokeRequest.takeout_id = takeoutId;
+        invokeRequest.query = contactsRequest;
+
+        TakeoutRequestLimiter.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
+            contactExportQueue.postRunnable(() -> {
+                if (error != null) {
+                    FileLog.e("Contact export failed: " + error.text);
+                    progressBus.finish(ExportProgressBus.CATEGORY_CONTACTS, "Contacts export failed", Theme.key_color_red);
+                    return;
                 }
-            });
 
-            TL_takeout.TL_contacts_getSaved contactsRequest = new TL_takeout.TL_contacts_getSaved();
-            TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
-            invokeRequest.takeout_id = takeoutId;
-            invokeRequest.query = contactsRequest;
-
-            ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
-                contactExportQueue.postRunnable(() -> {
-                    if (error != null) {
-                        FileLog.e("Contact export failed: " + error.text);
-                        AndroidUtilities.runOnUIThread(() -> {
-                            if (delegate != null) {
-                                delegate.onExportStatusUpdate("Contacts export failed", Theme.getColor(Theme.key_color_red));
-                            }
-                        });
-                        return;
-                    }
-
-                    if (!(response instanceof Vector)) {
-                        FileLog.e("Invalid contact export response type");
-                        return;
-                    }
-
-                    Vector vector = (Vector) response;
-                    List<TL_takeout.TL_savedContact> contacts = new ArrayList<>();
-
-                    contactExportQueue.postRunnable(() -> {
-                        AndroidUtilities.runOnUIThread(() -> {
-                            if (delegate != null) {
-                                delegate.onExportStatusUpdate("Export ID = " + takeoutId, Theme.getColor(Theme.key_dialogTextGray3));
-                            }
-                        });
-
-                        contactExportQueue.postRunnable(() -> {
-                            AndroidUtilities.runOnUIThread(() -> {
-                                if (delegate != null) {
-                                    delegate.onExportStatusUpdate("Exporting " + vector.objects.size() + " Contacts", Theme.getColor(Theme.key_chat_attachFileText));
-                                }
-                            });
-
-                            for (int i = 0; i < vector.objects.size(); i++) {
-                                final int index = i;
-                                contactExportQueue.postRunnable(() -> {
-                                    TL_takeout.TL_savedContact contact = (TL_takeout.TL_savedContact) vector.objects.get(index);
-                                    contacts.add(contact);
-
-                                    String contactName = (contact.first_name != null ? contact.first_name : "") +
-                                            (contact.last_name != null ? " " + contact.last_name : "").trim();
-
-                                    AndroidUtilities.runOnUIThread(() -> {
-                                        if (delegate != null) {
-                                            delegate.onContactExported(
-                                                    index + 1,
-                                                    contactName,
-                                                    Theme.getColor(Theme.key_chat_attachFileText),
-                                                    vector.objects.size()
-                                            );
-                                        }
-                                    });
-
-                                    if (index == vector.objects.size() - 1) {
-                                        contactExportQueue.postRunnable(() -> {
-                                            boolean success = saveContactsToFile(contacts, exportAsCsv);
-                                            AndroidUtilities.runOnUIThread(() -> {
-                                                if (delegate != null) {
-                                                    if (success) {
-                                                        delegate.onExportFinished("Export Done! " + vector.objects.size() + " Contacts Exported.", Theme.getColor(Theme.key_chat_attachFileText));
-                                                    } else {
-                                                        delegate.onExportStatusUpdate("Failed to save file", Theme.getColor(Theme.key_color_red));
-                                                    }
-                                                }
-                                            });
-                                        }, STEP_DELAY_MS);
-                                    }
-                                }, (i + 1) * STEP_DELAY_MS);
-                            }
-                        }, STEP_DELAY_MS);
-                    }, STEP_DELAY_MS);
-                });
+                if (!(response instanceof Vector)) {
+                    FileLog.e("Invalid contact export response type");
+                    progressBus.finish(ExportProgressBus.CATEGORY_CONTACTS, "Invalid response format", Theme.key_color_red);
+                    return;
+                }
+
+                Vector vector = (Vector) response;
+                int total = vector.objects.size();
+                List<TL_takeout.TL_savedContact> contacts = new ArrayList<>(total);
+
+                progressBus.setStatus(ExportProgressBus.CATEGORY_CONTACTS, "Exporting " + total + " Contacts", Theme.key_chat_attachFileText);
+
+                for (int i = 0; i < total; i++) {
+                    TL_takeout.TL_savedContact contact = (TL_takeout.TL_savedContact) vector.objects.get(i);
+                    contacts.add(contact);
+
+                    String contactName = (contact.first_name != null ? contact.first_name : "") +
+                            (contact.last_name != null ? " " + contact.last_name : "").trim();
+                    progressBus.setItem(ExportProgressBus.CATEGORY_CONTACTS, i + 1, contactName, total);
+                }
+
+                if (database != null) {
+                    database.insertContacts(contacts);
+                }
+                if (saveContactsToFile(contacts, exportAsCsv)) {
+                    progressBus.finish(ExportProgressBus.CATEGORY_CONTACTS, "Export Done! " + total + " Contacts Exported.", Theme.key_chat_attachFileText);
+                } else {
+                    progressBus.finish(ExportProgressBus.CATEGORY_CONTACTS, "Failed to save file", Theme.key_color_red);
+                }
             });
-        }, STEP_DELAY_MS);
+        });
     }
 
     private boolean saveContactsToFile(List<TL_takeout.TL_savedContact> contacts, boolean asCSV) {
         try {
-            File exportDir = new File(EXPORT_DIR);
+            File exportDir = archive != null ? archive.getDir(new File(EXPORT_DIR).getName()) : new File(EXPORT_DIR);
             if (!exportDir.exists() && !exportDir.mkdirs()) {
                 FileLog.e("Failed to create contact export directory: " + EXPORT_DIR);
                 return false;
@@ -221,62 +228,26 @@ public class ContactExportCell extends FrameLayout {
 
             String timestamp = DATE_FORMAT.format(new Date());
             String extension = asCSV ? ".csv" : ".json";
-            String fileName = "contacts_" + timestamp + extension;
+            String fileName = "contacts_" + timestamp + extension + ExportCompression.getExtension(compression);
             File file = new File(exportDir, fileName);
 
-            String fileContent = asCSV ? generateCsvContent(contacts) : generateJsonContent(contacts);
-
-            try (FileWriter writer = new FileWriter(file)) {
-                writer.write(fileContent);
-                return true;
+            try (Writer writer = ExportCompression.openWriter(file, compression)) {
+                if (asCSV) {
+                    ContactSerializer.writeCsv(writer, contacts);
+                } else {
+                    ContactSerializer.writeJson(writer, contacts);
+                }
             } catch (IOException e) {
                 FileLog.e(e);
                 return false;
             }
+            if (archive != null) {
+                archive.add(file);
+            }
+            return true;
         } catch (Exception e) {
             FileLog.e(e);
             return false;
         }
     }
-
-    private String generateCsvContent(List<TL_takeout.TL_savedContact> contacts) {
-        StringBuilder csv = new StringBuilder();
-        csv.append(CSV_HEADER);
-
-        for (TL_takeout.TL_savedContact contact : contacts) {
-            csv.append(escapeCsvField(contact.first_name)).append(',')
-                    .append(escapeCsvField(contact.last_name)).append(',')
-                    .append(escapeCsvField(contact.phone)).append(',')
-                    .append(new Date(contact.date * 1000L)).append('\n');
-        }
-        return csv.toString();
-    }
-
-    private String generateJsonContent(List<TL_takeout.TL_savedContact> contacts) {
-        try {
-            JSONArray jsonArray = new JSONArray();
-            for (TL_takeout.TL_savedContact contact : contacts) {
-                JSONObject jsonContact = new JSONObject();
-                jsonContact.put("first_name", contact.first_name != null ? contact.first_name : "");
-                jsonContact.put("last_name", contact.last_name != null ? contact.last_name : "");
-                jsonContact.put("phone", contact.phone != null ? contact.phone : "");
-                jsonContact.put("added_date", contact.date);
-                jsonArray.put(jsonContact);
-            }
-            return jsonArray.toString(JSON_INDENT);
-        } catch (JSONException e) {
-            FileLog.e(e);
-            return "[]";
-        }
-    }
-
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
-    }
 }
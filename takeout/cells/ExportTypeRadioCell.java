@@ -14,10 +14,13 @@ import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
 
+import org.telegram.messenger.Utilities;
 import org.telegram.ui.ActionBar.Theme;
 import org.telegram.ui.Cells.HeaderCell;
 import org.telegram.ui.Cells.RadioColorCell;
 
+import plus.takeout.engine.StreamingMessageWriter;
+
 import static org.telegram.messenger.AndroidUtilities.dp;
 
 public class ExportTypeRadioCell extends FrameLayout {
@@ -26,17 +29,19 @@ public class ExportTypeRadioCell extends FrameLayout {
     private static final int HEADER_TOP_MARGIN = 14;
     private static final int HEADER_BOTTOM_MARGIN = 14;
     private static final int CELL_PADDING = 4;
-    private static final int CSV_INDEX = 0;
-    private static final int JSON_INDEX = 1;
 
     private HeaderCell headerCell;
     private final RadioColorCell[] radioCells;
     private LinearLayout linearLayout;
     private final int[] selected = new int[1];
+    private Utilities.Callback<Integer> onFormatSelected;
 
+    // indexed by StreamingMessageWriter.FORMAT_*
     private String[] descriptions = new String[]{
             "CSV",
-            "JSON"
+            "JSON",
+            "JSON Lines",
+            "Columnar (binary, messages only)"
     };
 
     public ExportTypeRadioCell(@NonNull Context context) {
@@ -58,7 +63,7 @@ public class ExportTypeRadioCell extends FrameLayout {
             cell.setPadding(dp(CELL_PADDING), 0, dp(CELL_PADDING), 0);
             cell.setTag(a);
             cell.setCheckColor(Theme.getColor(Theme.key_radioBackground), Theme.getColor(Theme.key_dialogRadioBackgroundChecked));
-            cell.setTextAndValue(descriptions[a], a == CSV_INDEX);
+            cell.setTextAndValue(descriptions[a], a == StreamingMessageWriter.FORMAT_CSV);
             radioCells[a] = cell;
 
             cell.setOnClickListener(v -> {
@@ -68,26 +73,32 @@ public class ExportTypeRadioCell extends FrameLayout {
                 for (int i = 0; i < radioCells.length; i++) {
                     radioCells[i].setChecked(i == index, true);
                 }
+                if (onFormatSelected != null) {
+                    onFormatSelected.run(index);
+                }
             });
 
             linearLayout.addView(cell);
         }
 
-        selected[0] = CSV_INDEX;
-        radioCells[CSV_INDEX].setChecked(true, false);
+        selected[0] = StreamingMessageWriter.FORMAT_CSV;
+        radioCells[StreamingMessageWriter.FORMAT_CSV].setChecked(true, false);
 
         addView(linearLayout);
     }
 
-    public boolean isCsvSelected() {
-        return selected[0] == CSV_INDEX;
+    public void setOnFormatSelected(Utilities.Callback<Integer> onFormatSelected) {
+        this.onFormatSelected = onFormatSelected;
+    }
+
+    public int getFormat() {
+        return selected[0];
     }
 
-    public void setFormat(boolean csvSelected) {
-        int index = csvSelected ? CSV_INDEX : JSON_INDEX;
-        selected[0] = index;
+    public void setFormat(int format) {
+        selected[0] = format;
         for (int i = 0; i < radioCells.length; i++) {
-            radioCells[i].setChecked(i == index, true);
+            radioCells[i].setChecked(i == format, true);
         }
     }
 }
@@ -20,40 +20,42 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 
 import org.telegram.messenger.AndroidUtilities;
-import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
-import org.telegram.tgnet.Vector;
 import org.telegram.ui.ActionBar.Theme;
 import org.telegram.ui.Cells.TextCheckCell;
 import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import plus.takeout.TL_takeout;
+import plus.takeout.engine.ChatExportSink;
+import plus.takeout.engine.DialogIndex;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.ExportWatermarks;
+import plus.takeout.engine.HistoryFetcher;
+import plus.takeout.engine.PeerDirectory;
+import plus.takeout.engine.PeerRanges;
+import plus.takeout.engine.PeerScheduler;
+import plus.takeout.engine.RangeExecutor;
+import plus.takeout.engine.SearchIndexWriter;
+import plus.takeout.engine.ShardedMessageWriter;
+import plus.takeout.engine.StreamingMessageWriter;
+import plus.takeout.engine.TakeoutJournal;
 
 public class GroupChatExportCell extends FrameLayout {
 
     private static final String EXPORT_DIR_NAME = "Exported Data/Groups";
-    private static final int DIALOGS_LIMIT = 100;
-    private static final int MESSAGES_LIMIT = 100;
-    private static final String DATE_FORMAT_PATTERN = "yyyyMMdd_HHmmss";
     private static final String CSV_HEADER = "id,date,from_id,message\n";
-    private static final String FILENAME_REGEX = "[^a-zA-Z0-9]";
 
     public static final String EXPORT_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + EXPORT_DIR_NAME;
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DATE_FORMAT_PATTERN, Locale.US);
 
     public interface GroupChatExportDelegate {
         void onExportStatusUpdate(String status, int color);
@@ -66,10 +68,61 @@ public class GroupChatExportCell extends FrameLayout {
     public TextView statusTextView;
     public LineProgressView progressView;
     private boolean needDivider;
-    private boolean exportAsCsv = true;
-    private final AtomicInteger pendingRanges = new AtomicInteger(0);
+    private int exportFormat = StreamingMessageWriter.FORMAT_CSV;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+    private ExportDatabase database;
+    private SearchIndexWriter searchIndex;
     private final AtomicInteger pendingDialogs = new AtomicInteger(0);
-    private int totalDialogs = 0;
+    private final AtomicInteger failedDialogs = new AtomicInteger(0);
+    private int maxConcurrentPeers = PeerScheduler.DEFAULT_WINDOW;
+    private int rangeParallelism = RangeExecutor.DEFAULT_PARALLELISM;
+    private int shardMaxMessages = ShardedMessageWriter.DEFAULT_MAX_MESSAGES;
+    private long shardMaxBytes = ShardedMessageWriter.DEFAULT_MAX_BYTES;
+    private PeerScheduler peerScheduler;
+    private boolean deltaExport;
+    private ExportWatermarks.Batch watermarkBatch;
+
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_GROUPS) {
+                return;
+            }
+            if (delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category != ExportProgressBus.CATEGORY_GROUPS) {
+                return;
+            }
+            if (delegate != null) {
+                delegate.onGroupChatExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {
+            if (progress.category == ExportProgressBus.CATEGORY_GROUPS && progress.total > 0) {
+                progressView.setProgress(progress.fraction, true);
+            }
+        }
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_GROUPS) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            progressView.setProgress(1f, true);
+            if (delegate != null) {
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
 
     public GroupChatExportCell(@NonNull Context context) {
         super(context);
@@ -112,8 +165,41 @@ public class GroupChatExportCell extends FrameLayout {
         needDivider = true;
     }
 
-    public void setExportAsCsv(boolean exportAsCsv) {
-        this.exportAsCsv = exportAsCsv;
+    public void setExportFormat(int exportFormat) {
+        this.exportFormat = exportFormat;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
+    public void setDatabase(ExportDatabase database) {
+        this.database = database;
+    }
+
+    public void setSearchIndex(SearchIndexWriter searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public void setDeltaExport(boolean deltaExport) {
+        this.deltaExport = deltaExport;
+    }
+
+    public void setMaxConcurrentPeers(int maxConcurrentPeers) {
+        this.maxConcurrentPeers = maxConcurrentPeers;
+    }
+
+    public void setRangeParallelism(int rangeParallelism) {
+        this.rangeParallelism = rangeParallelism;
+    }
+
+    public void setShardLimits(int maxMessages, long maxBytes) {
+        shardMaxMessages = maxMessages;
+        shardMaxBytes = maxBytes;
     }
 
     @Override
@@ -126,382 +212,112 @@ public class GroupChatExportCell extends FrameLayout {
     }
 
     public void exportGroupMessages(long takeoutId) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onExportStatusUpdate("Starting export...", Theme.getColor(Theme.key_chat_attachFileText));
-            }
-        });
+        peerScheduler = new PeerScheduler(maxConcurrentPeers);
+        watermarkBatch = new ExportWatermarks.Batch();
 
-        TL_takeout.TL_messages_getSplitRanges getSplitRanges = new TL_takeout.TL_messages_getSplitRanges();
-        TL_takeout.TL_invokeWithTakeout invokeSplitRangesRequest = new TL_takeout.TL_invokeWithTakeout();
-        invokeSplitRangesRequest.takeout_id = takeoutId;
-        invokeSplitRangesRequest.query = getSplitRanges;
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_GROUPS);
+        progressBus.addListener(progressListener);
 
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeSplitRangesRequest, (response, error) -> {
+        progressBus.setStatus(ExportProgressBus.CATEGORY_GROUPS, "Fetching dialogs...", Theme.key_chat_attachFileText);
+        DialogIndex.get(UserConfig.selectedAccount, takeoutId).load(rangeParallelism, (index, error) -> {
             if (error != null) {
-                FileLog.e("Failed to get split ranges: " + error.text);
-                handleError("Failed to get split ranges: " + error.text, "Export failed");
-                return;
-            }
-            if (!(response instanceof Vector)) {
-                FileLog.e("Unexpected response type for split ranges");
-                handleError("Unexpected response type", "Export failed");
+                finishExport("Export failed", Theme.key_color_red);
                 return;
             }
-
-            Vector<TLRPC.TL_messageRange> ranges = (Vector<TLRPC.TL_messageRange>) response;
-            pendingRanges.set(ranges.objects.size());
-            if (ranges.objects.isEmpty()) {
+            if (index.getRanges().isEmpty()) {
                 finishExport("No ranges found", Theme.key_color_red);
                 return;
             }
-
-            for (TLRPC.TL_messageRange range : ranges.objects) {
-                processRangeRecursive(takeoutId, range, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
-            }
-        });
-    }
-
-    private void processRangeRecursive(long takeoutId,
-                                       TLRPC.TL_messageRange range,
-                                       List<TLRPC.Dialog> dialogs,
-                                       List<TLRPC.User> users,
-                                       List<TLRPC.Chat> chats) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onExportStatusUpdate("Fetching dialogs...", Theme.getColor(Theme.key_chat_attachFileText));
-            }
+            exportPeers(takeoutId, collectPeers(index));
         });
-
-        getMeToMessagesDialogsRecursive(
-                takeoutId, range, dialogs, users, chats,
-                0, 0, new TLRPC.TL_inputPeerEmpty(),
-                () -> {
-                    List<TLRPC.Dialog> groupDialogs = filterGroupDialogs(dialogs);
-                    totalDialogs += groupDialogs.size();
-                    pendingRanges.decrementAndGet();
-                    if (groupDialogs.isEmpty()) {
-                        checkExportFinished();
-                    } else {
-                        AndroidUtilities.runOnUIThread(() -> {
-                            if (delegate != null) {
-                                delegate.onExportStatusUpdate("Processing group chats...", Theme.getColor(Theme.key_chat_attachFileText));
-                            }
-                        });
-                        processFilteredDialogs(takeoutId, range, groupDialogs, users, chats);
-                    }
-                }
-        );
     }
 
-    private List<TLRPC.Dialog> filterGroupDialogs(List<TLRPC.Dialog> dialogs) {
-        List<TLRPC.Dialog> groupDialogs = new ArrayList<>();
-        for (TLRPC.Dialog dialog : dialogs) {
-            if (dialog.peer instanceof TLRPC.TL_peerChat) {
-                groupDialogs.add(dialog);
+    private List<PeerRanges> collectPeers(DialogIndex index) {
+        List<DialogIndex.Entry> entries = index.getDialogs(DialogIndex.BUCKET_GROUPS);
+        List<PeerRanges> peers = new ArrayList<>(entries.size());
+        PeerDirectory directory = PeerDirectory.getInstance(UserConfig.selectedAccount);
+        for (int i = 0; i < entries.size(); i++) {
+            DialogIndex.Entry entry = entries.get(i);
+            TLRPC.InputPeer peer = getInputPeerFromDialog(entry.dialog, directory);
+            if (peer != null) {
+                peers.add(new PeerRanges(entry, getChatName(entry.dialog, directory), peer));
             }
         }
-        return groupDialogs;
+        return peers;
     }
 
-    private void processFilteredDialogs(long takeoutId,
-                                        TLRPC.TL_messageRange range,
-                                        List<TLRPC.Dialog> filteredDialogs,
-                                        List<TLRPC.User> users,
-                                        List<TLRPC.Chat> chats) {
-        for (int i = 0; i < filteredDialogs.size(); i++) {
-            TLRPC.Dialog dialog = filteredDialogs.get(i);
-            TLRPC.InputPeer peer = getInputPeerFromDialog(dialog, users, chats);
-            if (peer != null) {
-                pendingDialogs.incrementAndGet();
-                List<TLRPC.Message> messages = new ArrayList<>();
-                String chatName = getChatName(dialog, users, chats);
-                AndroidUtilities.runOnUIThread(() -> {
-                    if (delegate != null) {
-                        delegate.onExportStatusUpdate("Exporting messages for " + chatName, Theme.getColor(Theme.key_chat_attachFileText));
+    private void exportPeers(long takeoutId, List<PeerRanges> peers) {
+        if (peers.isEmpty()) {
+            completeExport();
+            return;
+        }
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.setStatus(ExportProgressBus.CATEGORY_GROUPS, "Processing group chats...", Theme.key_chat_attachFileText);
+        progressBus.addTotal(ExportProgressBus.CATEGORY_GROUPS, peers.size());
+        pendingDialogs.set(peers.size());
+        failedDialogs.set(0);
+
+        HistoryFetcher historyFetcher = new HistoryFetcher(UserConfig.selectedAccount, takeoutId);
+        TakeoutJournal journal = TakeoutJournal.get(takeoutId);
+        ChatExportSink.Target target = new ChatExportSink.Target(UserConfig.selectedAccount, ExportProgressBus.CATEGORY_GROUPS, EXPORT_DIR, CSV_HEADER);
+        target.format = exportFormat;
+        target.compression = compression;
+        target.archive = archive;
+        target.database = database;
+        target.searchIndex = searchIndex;
+        target.deltaExport = deltaExport;
+        target.watermarkBatch = watermarkBatch;
+        target.shardMaxMessages = shardMaxMessages;
+        target.shardMaxBytes = shardMaxBytes;
+        for (int i = 0; i < peers.size(); i++) {
+            PeerRanges peer = peers.get(i);
+            int order = i + 1;
+            peerScheduler.enqueue(peer.topMessage, done -> {
+                progressBus.setStatus(ExportProgressBus.CATEGORY_GROUPS, "Exporting messages for " + peer.name, Theme.key_chat_attachFileText);
+
+                new ChatExportSink(target, peer, journal, historyFetcher, (complete, messageCount) -> {
+                    if (!complete) {
+                        failedDialogs.incrementAndGet();
                     }
-                });
-
-                getMeToMessagesHistoryRecursive(
-                        takeoutId, range, peer,
-                        0, 0, messages,
-                        () -> {
-                            saveMessagesToFile(messages, chatName);
-                            AndroidUtilities.runOnUIThread(() -> {
-                                if (delegate != null) {
-                                    delegate.onGroupChatExported(filteredDialogs.indexOf(dialog) + 1, chatName, Theme.getColor(Theme.key_chat_attachFileText), messages.size());
-                                }
-                            });
-                            pendingDialogs.decrementAndGet();
-                            updateProgress();
-                            checkExportFinished();
-                        }
-                );
-            }
+                    progressBus.setItem(ExportProgressBus.CATEGORY_GROUPS, order, peer.name, messageCount);
+                    progressBus.addCompleted(ExportProgressBus.CATEGORY_GROUPS, 1);
+                    if (pendingDialogs.decrementAndGet() == 0) {
+                        completeExport();
+                    }
+                    done.run();
+                }).start();
+            });
         }
+        peerScheduler.start();
     }
 
-    private void updateProgress() {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (totalDialogs > 0) {
-                float progress = 1f - ((float) pendingDialogs.get() / totalDialogs);
-                progressView.setProgress(progress, true);
-            }
-        });
-    }
-
-    private void checkExportFinished() {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (pendingRanges.get() == 0 && pendingDialogs.get() == 0) {
-                progressView.setProgress(1f, true);
-                if (delegate != null) {
-                    delegate.onExportFinished("Export completed successfully", Theme.getColor(Theme.key_chat_attachFileText));
-                }
-            }
-        });
+    private void completeExport() {
+        ExportWatermarks.getInstance(UserConfig.selectedAccount).commit(watermarkBatch);
+        int failed = failedDialogs.get();
+        if (failed > 0) {
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_GROUPS, "Export failed for " + failed + " groups", Theme.key_color_red);
+        } else {
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_GROUPS, "Export completed successfully", Theme.key_chat_attachFileText);
+        }
     }
 
-    private String getChatName(TLRPC.Dialog dialog, List<TLRPC.User> users, List<TLRPC.Chat> chats) {
+    private String getChatName(TLRPC.Dialog dialog, PeerDirectory directory) {
         if (dialog.peer instanceof TLRPC.TL_peerChat) {
             long chatId = ((TLRPC.TL_peerChat) dialog.peer).chat_id;
-            for (TLRPC.Chat c : chats) {
-                if (c.id == chatId) {
-                    return c.title != null ? c.title : "Group_" + chatId;
-                }
+            TLRPC.Chat c = directory.getChat(chatId);
+            if (c != null) {
+                return c.title != null ? c.title : "Group_" + chatId;
             }
         }
         return "UnknownGroup";
     }
 
-    private void saveMessagesToFile(List<TLRPC.Message> messages, String chatName) {
-        if (exportAsCsv) {
-            saveAsCsv(messages, chatName);
-        } else {
-            saveAsJson(messages, chatName);
-        }
-    }
-
-    private void saveAsCsv(List<TLRPC.Message> messages, String chatName) {
-        ensureExportDirectory();
-        String fileName = generateFileName(chatName, true);
-        File file = new File(EXPORT_DIR, fileName);
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(CSV_HEADER);
-            for (TLRPC.Message msg : messages) {
-                String id = String.valueOf(msg.id);
-                String date = new Date((long) msg.date * 1000).toString();
-                String fromId = msg.from_id != null ? String.valueOf(msg.from_id.user_id) : "";
-                String message = escapeCsvField(msg.message);
-                writer.write(id + "," + date + "," + fromId + "," + message + "\n");
-            }
-        } catch (IOException e) {
-            FileLog.e("Failed to save CSV for group: " + chatName, e);
-        } catch (Exception e) {
-            FileLog.e("Failed to save CSV for group: " + chatName, e);
-        }
-    }
-
-    private void saveAsJson(List<TLRPC.Message> messages, String chatName) {
-        ensureExportDirectory();
-        String fileName = generateFileName(chatName, false);
-        File file = new File(EXPORT_DIR, fileName);
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write("[\n");
-            for (int i = 0; i < messages.size(); i++) {
-                TLRPC.Message msg = messages.get(i);
-                String json = String.format(
-                        "  {\"id\": %d, \"date\": \"%s\", \"from_id\": %s, \"message\": \"%s\"}",
-                        msg.id,
-                        new Date((long) msg.date * 1000).toString(),
-                        msg.from_id != null ? String.valueOf(msg.from_id.user_id) : "null",
-                        escapeJsonString(msg.message)
-                );
-                writer.write(json);
-                if (i < messages.size() - 1) {
-                    writer.write(",\n");
-                } else {
-                    writer.write("\n");
-                }
-            }
-            writer.write("]\n");
-        } catch (IOException e) {
-            FileLog.e("Failed to save JSON for group: " + chatName, e);
-        } catch (Exception e) {
-            FileLog.e("Failed to save JSON for group: " + chatName, e);
-        }
-    }
-
-    private String escapeJsonString(String str) {
-        if (str == null) {
-            return "";
-        }
-        return str.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
-    }
-
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
-    }
-
-    private void ensureExportDirectory() {
-        File dir = new File(EXPORT_DIR);
-        if (!dir.exists() && !dir.mkdirs()) {
-            FileLog.e("Failed to create group chat export directory: " + EXPORT_DIR);
-        }
-    }
-
-    private String generateFileName(String chatName, boolean isCsv) {
-        String timestamp = DATE_FORMAT.format(new Date());
-        String extension = isCsv ? ".csv" : ".json";
-        return chatName.replaceAll(FILENAME_REGEX, "_") + "_" + timestamp + extension;
-    }
-
-    private void handleError(String logMessage, String statusMessage) {
-        FileLog.e(logMessage);
-        finishExport(statusMessage, Theme.key_color_red);
-    }
-
     private void finishExport(String message, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            statusTextView.setText(message);
-            progressView.setProgress(1f, true);
-            if (delegate != null) {
-                delegate.onExportFinished(message, Theme.getColor(colorKey));
-            }
-        });
-    }
-
-    private void getMeToMessagesDialogsRecursive(
-            long takeoutId,
-            TLRPC.TL_messageRange range,
-            List<TLRPC.Dialog> accumulatedDialogs,
-            List<TLRPC.User> accumulatedUsers,
-            List<TLRPC.Chat> accumulatedChats,
-            int offsetDate,
-            int offsetId,
-            TLRPC.InputPeer offsetPeer,
-            Runnable onComplete) {
-        TLRPC.TL_messages_getDialogs getDialogs = new TLRPC.TL_messages_getDialogs();
-        getDialogs.offset_date = offsetDate;
-        getDialogs.offset_id = offsetId;
-        getDialogs.offset_peer = offsetPeer;
-        getDialogs.limit = DIALOGS_LIMIT;
-        getDialogs.hash = 0;
-
-        TL_takeout.TL_invokeWithMessagesRange rangeRequest = new TL_takeout.TL_invokeWithMessagesRange();
-        rangeRequest.range = range;
-        rangeRequest.query = getDialogs;
-
-        TL_takeout.TL_invokeWithTakeout takeoutRequest = new TL_takeout.TL_invokeWithTakeout();
-        takeoutRequest.takeout_id = takeoutId;
-        takeoutRequest.query = rangeRequest;
-
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(takeoutRequest, (response, error) -> {
-            if (error != null) {
-                FileLog.e("Dialog fetch failed: " + error.text);
-                onComplete.run();
-                return;
-            }
-
-            if (response instanceof TLRPC.TL_messages_dialogsSlice) {
-                TLRPC.TL_messages_dialogsSlice slice = (TLRPC.TL_messages_dialogsSlice) response;
-                accumulatedDialogs.addAll(slice.dialogs);
-                accumulatedUsers.addAll(slice.users);
-                accumulatedChats.addAll(slice.chats);
-
-                if (accumulatedDialogs.size() < slice.count && !slice.dialogs.isEmpty()) {
-                    TLRPC.Dialog lastDialog = slice.dialogs.get(slice.dialogs.size() - 1);
-                    int newOffsetId = lastDialog.top_message;
-                    int newOffsetDate = lastDialog.last_message_date;
-                    TLRPC.InputPeer newOffsetPeer = getInputPeerFromDialog(lastDialog, slice.users, slice.chats);
-
-                    getMeToMessagesDialogsRecursive(
-                            takeoutId, range,
-                            accumulatedDialogs, accumulatedUsers, accumulatedChats,
-                            newOffsetDate, newOffsetId, newOffsetPeer,
-                            onComplete
-                    );
-                } else {
-                    onComplete.run();
-                }
-            } else if (response instanceof TLRPC.TL_messages_dialogs) {
-                TLRPC.TL_messages_dialogs dialogsResponse = (TLRPC.TL_messages_dialogs) response;
-                accumulatedDialogs.addAll(dialogsResponse.dialogs);
-                accumulatedUsers.addAll(dialogsResponse.users);
-                accumulatedChats.addAll(dialogsResponse.chats);
-                onComplete.run();
-            } else {
-                onComplete.run();
-            }
-        });
-    }
-
-    private void getMeToMessagesHistoryRecursive(
-            long takeoutId,
-            TLRPC.TL_messageRange range,
-            TLRPC.InputPeer peer,
-            int offsetId,
-            int offsetDate,
-            List<TLRPC.Message> accumulatedMessages,
-            Runnable onComplete) {
-        TLRPC.TL_messages_getHistory getHistory = new TLRPC.TL_messages_getHistory();
-        getHistory.peer = peer;
-        getHistory.offset_id = offsetId;
-        getHistory.offset_date = offsetDate;
-        getHistory.add_offset = 0;
-        getHistory.limit = MESSAGES_LIMIT;
-
-        TL_takeout.TL_invokeWithMessagesRange rangeRequest = new TL_takeout.TL_invokeWithMessagesRange();
-        rangeRequest.range = range;
-        rangeRequest.query = getHistory;
-
-        TL_takeout.TL_invokeWithTakeout takeoutRequest = new TL_takeout.TL_invokeWithTakeout();
-        takeoutRequest.takeout_id = takeoutId;
-        takeoutRequest.query = rangeRequest;
-
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(takeoutRequest, (response, error) -> {
-            if (error != null) {
-                FileLog.e("History fetch failed: " + error.text);
-                onComplete.run();
-                return;
-            }
-
-            if (response instanceof TLRPC.messages_Messages) {
-                TLRPC.messages_Messages messages = (TLRPC.messages_Messages) response;
-                List<TLRPC.Message> batch = messages.messages;
-
-                if (!batch.isEmpty()) {
-                    accumulatedMessages.addAll(batch);
-                    if (batch.size() == getHistory.limit) {
-                        TLRPC.Message lastMessage = batch.get(batch.size() - 1);
-                        getMeToMessagesHistoryRecursive(
-                                takeoutId, range, peer,
-                                lastMessage.id, lastMessage.date,
-                                accumulatedMessages,
-                                onComplete
-                        );
-                    } else {
-                        onComplete.run();
-                    }
-                } else {
-                    onComplete.run();
-                }
-            } else {
-                onComplete.run();
-            }
-        });
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_GROUPS, message, colorKey);
     }
 
-    private TLRPC.InputPeer getInputPeerFromDialog(TLRPC.Dialog dialog, List<TLRPC.User> users, List<TLRPC.Chat> chats) {
+    private TLRPC.InputPeer getInputPeerFromDialog(TLRPC.Dialog dialog, PeerDirectory directory) {
         if (dialog.peer instanceof TLRPC.TL_peerChat) {
             TLRPC.TL_inputPeerChat inp = new TLRPC.TL_inputPeerChat();
             inp.chat_id = ((TLRPC.TL_peerChat) dialog.peer).chat_id;
@@ -11,7 +11,6 @@ package plus.takeout.cells;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.os.Environment;
-import android.os.Handler;
 import android.text.TextUtils;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -26,7 +25,6 @@ import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.ui.ActionBar.Theme;
 import org.telegram.ui.Cells.TextCheckCell;
@@ -34,24 +32,25 @@ import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 import plus.takeout.TL_takeout;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportEscaper;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class PersonalInfoExportCell extends FrameLayout {
 
     private static final String EXPORT_DIR_NAME = "Exported Data/Personal Info";
-    private static final int INITIAL_DELAY_MS = 500;
-    private static final int STEP_DELAY_MS = 300;
-    private static final int FIELD_DELAY_MS = 150;
     private static final String CSV_HEADER = "Field Name,Value\n";
     private static final String DATE_FORMAT_PATTERN = "yyyyMMdd_HHmmss";
     private static final int JSON_INDENT = 2;
@@ -72,6 +71,39 @@ public class PersonalInfoExportCell extends FrameLayout {
     public LineProgressView progressView;
     private boolean needDivider;
     private boolean exportAsCsv = true;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category == ExportProgressBus.CATEGORY_PERSONAL_INFO && delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category == ExportProgressBus.CATEGORY_PERSONAL_INFO && delegate != null) {
+                delegate.onPersonalInfoExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {}
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_PERSONAL_INFO) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            if (delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
 
     public PersonalInfoExportCell(@NonNull Context context) {
         super(context);
@@ -115,6 +147,14 @@ public class PersonalInfoExportCell extends FrameLayout {
         this.exportAsCsv = exportAsCsv;
     }
 
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         if (needDivider) {
@@ -125,144 +165,109 @@ public class PersonalInfoExportCell extends FrameLayout {
     }
 
     public void exportPersonalInfo(long takeoutId) {
-        exportQueue.postRunnable(() -> {
-            updateStatus("Starting export...", Theme.key_dialogTextGray3);
-
-            TLRPC.TL_users_getFullUser userRequest = new TLRPC.TL_users_getFullUser();
-            userRequest.id = new TLRPC.TL_inputUserSelf();
-
-            TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
-            invokeRequest.takeout_id = takeoutId;
-            invokeRequest.query = userRequest;
-
-            ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
-                exportQueue.postRunnable(() -> {
-                    if (error != null) {
-                        FileLog.e("Personal info export failed: " + error.text);
-                        updateStatus("Export failed: " + error.text, Theme.key_color_red);
-                        return;
-                    }
-
-                    if (!(response instanceof TLRPC.TL_users_userFull)) {
-                        FileLog.e("Invalid personal info export response type");
-                        updateStatus("Invalid response format", Theme.key_color_red);
-                        return;
-                    }
-
-                    TLRPC.TL_users_userFull userFull = (TLRPC.TL_users_userFull) response;
-                    TLRPC.User user = UserConfig.getInstance(UserConfig.selectedAccount).getCurrentUser();
-                    if (user == null) {
-                        FileLog.e("Current user is null");
-                        updateStatus("User not found", Theme.key_color_red);
-                        return;
-                    }
-
-                    List<String> fields = Arrays.asList("First Name", "Last Name", "Username", "Phone", "Bio");
-                    processFieldsWithDelay(exportQueue.getHandler(), user, userFull, fields, 0);
-                });
-            });
-        }, INITIAL_DELAY_MS);
-    }
-
-    private void updateStatus(String text, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onExportStatusUpdate(text, Theme.getColor(colorKey));
-            }
-        });
-    }
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_PERSONAL_INFO);
+        progressBus.addListener(progressListener);
+        updateStatus("Starting export...", Theme.key_dialogTextGray3);
+
+        TLRPC.TL_users_getFullUser userRequest = new TLRPC.TL_users_getFullUser();
+        userRequest.id = new TLRPC.TL_inputUserSelf();
+
+        TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
+        invokeRequest.takeout_id = takeoutId;
+        invokeRequest.query = userRequest;
+
+        TakeoutRequestLimiter.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
+            exportQueue.postRunnable(() -> {
+                if (error != null) {
+                    FileLog.e("Personal info export failed: " + error.text);
+                    finishExport("Export failed: " + error.text, Theme.key_color_red);
+                    return;
+                }
 
-    private void processFieldsWithDelay(Handler handler, TLRPC.User user,
-                                        TLRPC.TL_users_userFull userFull,
-                                        List<String> fields, int index) {
-        if (index >= fields.size()) {
-            saveFinalFile(handler, user, userFull);
-            return;
-        }
+                if (!(response instanceof TLRPC.TL_users_userFull)) {
+                    FileLog.e("Invalid personal info export response type");
+                    finishExport("Invalid response format", Theme.key_color_red);
+                    return;
+                }
 
-        handler.postDelayed(() -> {
-            String fieldName = fields.get(index);
-            updateFieldProgress(index + 1, fieldName, fields.size());
-            processFieldsWithDelay(handler, user, userFull, fields, index + 1);
-        }, FIELD_DELAY_MS);
-    }
+                TLRPC.TL_users_userFull userFull = (TLRPC.TL_users_userFull) response;
+                TLRPC.User user = UserConfig.getInstance(UserConfig.selectedAccount).getCurrentUser();
+                if (user == null) {
+                    FileLog.e("Current user is null");
+                    updateStatus("User not found", Theme.key_color_red);
+                    return;
+                }
 
-    private void updateFieldProgress(int order, String fieldName, int total) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onPersonalInfoExported(
-                        order,
-                        fieldName,
-                        Theme.getColor(Theme.key_chat_attachFileText),
-                        total
-                );
-            }
-        });
-    }
+                Map<String, String> data = new LinkedHashMap<>();
+                data.put("First Name", user.first_name != null ? user.first_name : "");
+                data.put("Last Name", user.last_name != null ? user.last_name : "");
+                data.put("Username", user.username != null ? user.username : "");
+                data.put("Phone", user.phone != null ? user.phone : "");
+                data.put("Bio", userFull.full_user != null && userFull.full_user.about != null ? userFull.full_user.about : "");
 
-    private void saveFinalFile(Handler handler, TLRPC.User user, TLRPC.TL_users_userFull userFull) {
-        handler.postDelayed(() -> {
-            updateStatus("Saving to file...", Theme.key_dialogTextGray3);
+                int order = 0;
+                for (String fieldName : data.keySet()) {
+                    updateFieldProgress(++order, fieldName, data.size());
+                }
 
-            new Thread(() -> {
+                updateStatus("Saving to file...", Theme.key_dialogTextGray3);
+                boolean success;
                 try {
-                    Map<String, String> data = new LinkedHashMap<>();
-                    data.put("First Name", user.first_name != null ? user.first_name : "");
-                    data.put("Last Name", user.last_name != null ? user.last_name : "");
-                    data.put("Username", user.username != null ? user.username : "");
-                    data.put("Phone", user.phone != null ? user.phone : "");
-                    data.put("Bio", userFull.full_user != null && userFull.full_user.about != null ? userFull.full_user.about : "");
-
-                    boolean success = exportAsCsv ? saveAsCsv(data) : saveAsJson(data);
-
-                    handler.post(() -> {
-                        if (success) {
-                            updateStatus("Export completed!", Theme.key_chat_attachFileText);
-                            if (delegate != null) {
-                                delegate.onExportFinished("Export completed!", Theme.getColor(Theme.key_chat_attachFileText));
-                            }
-                        } else {
-                            updateStatus("File save failed", Theme.key_color_red);
-                            if (delegate != null) {
-                                delegate.onExportFinished("File save failed", Theme.getColor(Theme.key_color_red));
-                            }
-                        }
-                    });
+                    success = exportAsCsv ? saveAsCsv(data) : saveAsJson(data);
                 } catch (Exception e) {
                     FileLog.e(e);
-                    handler.post(() -> {
-                        updateStatus("Error: " + e.getMessage(), Theme.key_color_red);
-                        if (delegate != null) {
-                            delegate.onExportFinished("Error: " + e.getMessage(), Theme.getColor(Theme.key_color_red));
-                        }
-                    });
+                    finishExport("Error: " + e.getMessage(), Theme.key_color_red);
+                    return;
+                }
+                if (success) {
+                    finishExport("Export completed!", Theme.key_chat_attachFileText);
+                } else {
+                    finishExport("File save failed", Theme.key_color_red);
                 }
-            }).start();
-        }, STEP_DELAY_MS);
+            });
+        });
+    }
+
+    private void updateStatus(String text, int colorKey) {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setStatus(ExportProgressBus.CATEGORY_PERSONAL_INFO, text, colorKey);
+    }
+
+    private void updateFieldProgress(int order, String fieldName, int total) {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setItem(ExportProgressBus.CATEGORY_PERSONAL_INFO, order, fieldName, total);
+    }
+
+    private void finishExport(String text, int colorKey) {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_PERSONAL_INFO, text, colorKey);
     }
 
     private boolean saveAsCsv(Map<String, String> data) {
         try {
-            File exportDir = new File(EXPORT_DIR);
+            File exportDir = archive != null ? archive.getDir(new File(EXPORT_DIR).getName()) : new File(EXPORT_DIR);
             if (!exportDir.exists() && !exportDir.mkdirs()) {
                 FileLog.e("Failed to create personal info export directory: " + EXPORT_DIR);
                 return false;
             }
 
             String timestamp = DATE_FORMAT.format(new Date());
-            File file = new File(exportDir, "personal_info_" + timestamp + ".csv");
+            File file = new File(exportDir, "personal_info_" + timestamp + ".csv" + ExportCompression.getExtension(compression));
 
-            try (FileWriter writer = new FileWriter(file)) {
+            try (Writer writer = ExportCompression.openWriter(file, compression)) {
                 writer.write(CSV_HEADER);
                 for (Map.Entry<String, String> entry : data.entrySet()) {
-                    writer.write(escapeCsvField(entry.getKey()) + ",");
-                    writer.write(escapeCsvField(entry.getValue()) + "\n");
+                    ExportEscaper.appendCsvField(writer, entry.getKey());
+                    writer.write(',');
+                    ExportEscaper.appendCsvField(writer, entry.getValue());
+                    writer.write('\n');
                 }
-                return true;
             } catch (IOException e) {
                 FileLog.e(e);
                 return false;
             }
+            if (archive != null) {
+                archive.add(file);
+            }
+            return true;
         } catch (Exception e) {
             FileLog.e(e);
             return false;
@@ -276,35 +281,28 @@ public class PersonalInfoExportCell extends FrameLayout {
                 json.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : "");
             }
 
-            File exportDir = new File(EXPORT_DIR);
+            File exportDir = archive != null ? archive.getDir(new File(EXPORT_DIR).getName()) : new File(EXPORT_DIR);
             if (!exportDir.exists() && !exportDir.mkdirs()) {
                 FileLog.e("Failed to create personal info export directory: " + EXPORT_DIR);
                 return false;
             }
 
             String timestamp = DATE_FORMAT.format(new Date());
-            File file = new File(exportDir, "personal_info_" + timestamp + ".json");
+            File file = new File(exportDir, "personal_info_" + timestamp + ".json" + ExportCompression.getExtension(compression));
 
-            try (FileWriter writer = new FileWriter(file)) {
+            try (Writer writer = ExportCompression.openWriter(file, compression)) {
                 writer.write(json.toString(JSON_INDENT));
-                return true;
             } catch (IOException e) {
                 FileLog.e(e);
                 return false;
             }
+            if (archive != null) {
+                archive.add(file);
+            }
+            return true;
         } catch (Exception e) {
             FileLog.e(e);
             return false;
         }
     }
-
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
-    }
 }
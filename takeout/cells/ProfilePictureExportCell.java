@@ -22,14 +22,11 @@ import androidx.annotation.NonNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.telegram.messenger.AndroidUtilities;
-import org.telegram.messenger.FileLoadOperation;
 import org.telegram.messenger.FileLoader;
 import org.telegram.messenger.FileLog;
-import org.telegram.messenger.FilePathDatabase;
 import org.telegram.messenger.ImageLocation;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.ui.ActionBar.Theme;
 import org.telegram.ui.Cells.TextCheckCell;
@@ -37,8 +34,8 @@ import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -49,6 +46,14 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import plus.takeout.TL_takeout;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportEscaper;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.MediaDownloader;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class ProfilePictureExportCell extends FrameLayout {
 
@@ -77,8 +82,52 @@ public class ProfilePictureExportCell extends FrameLayout {
     private File exportFolder;
     private List<TLRPC.Photo> photosList;
     private final AtomicInteger pendingDownloads = new AtomicInteger(0);
+    private MediaDownloader.RetryBudget retryBudget;
     private int totalPhotos;
     private boolean exportAsCsv = true;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+    private ExportDatabase database;
+
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_PROFILE_PICTURES) {
+                return;
+            }
+            if (delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category != ExportProgressBus.CATEGORY_PROFILE_PICTURES) {
+                return;
+            }
+            if (delegate != null) {
+                delegate.onProfilePictureExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {
+            if (progress.category == ExportProgressBus.CATEGORY_PROFILE_PICTURES && progress.total > 0) {
+                progressView.setProgress(progress.fraction, true);
+            }
+        }
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_PROFILE_PICTURES) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            if (delegate != null) {
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
 
     public ProfilePictureExportCell(@NonNull Context context) {
         super(context);
@@ -122,6 +171,23 @@ public class ProfilePictureExportCell extends FrameLayout {
         this.exportAsCsv = exportAsCsv;
     }
 
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
+    public void setDatabase(ExportDatabase database) {
+        this.database = database;
+    }
+
+    // the download window is shared by all media exports of the account
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        MediaDownloader.getInstance(UserConfig.selectedAccount).setMaxInFlight(maxConcurrentDownloads);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         if (needDivider) {
@@ -132,6 +198,9 @@ public class ProfilePictureExportCell extends FrameLayout {
     }
 
     public void exportProfilePicture(long takeoutId) {
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_PROFILE_PICTURES);
+        progressBus.addListener(progressListener);
         updateStatus("Fetching profile pictures...", Theme.key_dialogTextGray3);
 
         TLRPC.TL_photos_getUserPhotos request = new TLRPC.TL_photos_getUserPhotos();
@@ -143,37 +212,29 @@ public class ProfilePictureExportCell extends FrameLayout {
         invokeRequest.takeout_id = takeoutId;
         invokeRequest.query = request;
 
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
+        TakeoutRequestLimiter.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
             if (error != null) {
                 FileLog.e("Profile picture export failed: " + error.text);
-                updateStatus("Export failed: " + error.text, Theme.key_color_red);
-                if (delegate != null) {
-                    delegate.onExportFinished("Export failed: " + error.text, Theme.getColor(Theme.key_color_red));
-                }
+                finishExport("Export failed: " + error.text, Theme.key_color_red);
                 return;
             }
 
             if (!(response instanceof TLRPC.TL_photos_photos)) {
                 FileLog.e("Invalid profile picture export response type");
-                updateStatus("Invalid response format", Theme.key_color_red);
-                if (delegate != null) {
-                    delegate.onExportFinished("Invalid response format", Theme.getColor(Theme.key_color_red));
-                }
+                finishExport("Invalid response format", Theme.key_color_red);
                 return;
             }
 
             TLRPC.TL_photos_photos photos = (TLRPC.TL_photos_photos) response;
             photosList = new ArrayList<>(photos.photos);
             totalPhotos = photosList.size();
+            progressBus.addTotal(ExportProgressBus.CATEGORY_PROFILE_PICTURES, totalPhotos);
 
             String folderName = "profile_pictures_" + DATE_FORMAT.format(new Date());
-            exportFolder = new File(EXPORT_DIR, folderName);
+            exportFolder = new File(archive != null ? archive.getDir(new File(EXPORT_DIR).getName()) : new File(EXPORT_DIR), folderName);
             if (!exportFolder.exists() && !exportFolder.mkdirs()) {
                 FileLog.e("Failed to create profile picture export folder: " + exportFolder.getAbsolutePath());
-                updateStatus("Failed to create folder", Theme.key_color_red);
-                if (delegate != null) {
-                    delegate.onExportFinished("Failed to create folder", Theme.getColor(Theme.key_color_red));
-                }
+                finishExport("Failed to create folder", Theme.key_color_red);
                 return;
             }
 
@@ -183,29 +244,22 @@ public class ProfilePictureExportCell extends FrameLayout {
                 return;
             }
 
-            processPhotosWithDelay(photosList, 0);
+            MediaDownloader downloader = MediaDownloader.getInstance(UserConfig.selectedAccount);
+            retryBudget = new MediaDownloader.RetryBudget();
+            for (int i = 0; i < totalPhotos; i++) {
+                TLRPC.Photo photo = photosList.get(i);
+                updatePhotoProgress(i + 1, photo, totalPhotos);
+                // the current picture is listed first and is fetched first
+                downloadAndSavePhoto(downloader, photo, exportFolder, totalPhotos - i);
+            }
         });
     }
 
-    private void processPhotosWithDelay(List<TLRPC.Photo> photos, int index) {
-        if (index >= photos.size()) {
-            checkExportFinished();
-            return;
-        }
-
-        TLRPC.Photo photo = photos.get(index);
-        updatePhotoProgress(index + 1, photo, photos.size());
-        pendingDownloads.incrementAndGet();
-        downloadAndSavePhoto(photo, exportFolder, index + 1, photos.size());
-        processPhotosWithDelay(photos, index + 1);
-    }
-
-    private void downloadAndSavePhoto(TLRPC.Photo photo, File folder, int order, int total) {
+    private void downloadAndSavePhoto(MediaDownloader downloader, TLRPC.Photo photo, File folder, long priority) {
         TLRPC.PhotoSize photoSize = FileLoader.getClosestPhotoSizeWithSize(photo.sizes, Integer.MAX_VALUE);
         if (photoSize == null) {
             FileLog.e("No valid photo size for photo " + photo.id);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
             return;
         }
 
@@ -215,72 +269,26 @@ public class ProfilePictureExportCell extends FrameLayout {
 
         if (destFile.exists()) {
             FileLog.d("File already exists: " + destFile.getAbsolutePath());
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
             return;
         }
 
-        FileLoadOperation operation = new FileLoadOperation(imageLocation, photo, null, 0);
-        operation.setPriority(FileLoader.PRIORITY_HIGH);
-        operation.setPaths(
-                UserConfig.selectedAccount,
-                fileName,
-                operation.getQueue(),
-                folder,
-                folder,
-                fileName
-        );
-
-        operation.setDelegate(new FileLoadOperation.FileLoadOperationDelegate() {
-            @Override
-            public void didPreFinishLoading(FileLoadOperation operation, File finalFile) {}
-
-            @Override
-            public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
-                if (finalFile.exists()) {
-                    FileLog.d("Saved photo for photo " + photo.id + " at " + finalFile.getAbsolutePath());
-                } else {
-                    FileLog.e("File not found for photo " + photo.id + " at " + finalFile.getAbsolutePath());
+        downloader.download(imageLocation, photo, folder, fileName, priority, retryBudget, finalFile -> {
+            if (finalFile != null && finalFile.exists()) {
+                FileLog.d("Saved photo for photo " + photo.id + " at " + finalFile.getAbsolutePath());
+                if (archive != null) {
+                    archive.add(finalFile);
                 }
-                pendingDownloads.decrementAndGet();
-                updateProgress();
-                checkExportFinished();
-            }
-
-            @Override
-            public void didFailedLoadingFile(FileLoadOperation operation, int state) {
-                FileLog.e("Failed to save photo for photo " + photo.id + ": state=" + state);
-                pendingDownloads.decrementAndGet();
-                updateProgress();
-                checkExportFinished();
-            }
-
-            @Override
-            public void didChangedLoadProgress(FileLoadOperation operation, long uploadedSize, long totalSize) {}
-
-            @Override
-            public void saveFilePath(FilePathDatabase.PathData pathSaveData, File cacheFileFinal) {}
-
-            @Override
-            public boolean hasAnotherRefOnFile(String path) {
-                return false;
-            }
-
-            @Override
-            public boolean isLocallyCreatedFile(String path) {
-                return false;
+            } else {
+                FileLog.e("Failed to save photo for photo " + photo.id);
             }
+            onDownloadDone();
         });
-
-        if (!operation.start()) {
-            FileLog.e("Failed to start download for photo " + photo.id);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
-        }
     }
 
-    private void checkExportFinished() {
-        if (pendingDownloads.get() == 0) {
+    private void onDownloadDone() {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).addCompleted(ExportProgressBus.CATEGORY_PROFILE_PICTURES, 1);
+        if (pendingDownloads.decrementAndGet() == 0) {
             saveMetadata();
         }
     }
@@ -294,30 +302,20 @@ public class ProfilePictureExportCell extends FrameLayout {
                 for (TLRPC.Photo photo : photosList) {
                     metadata.add(createPhotoEntry(photo));
                 }
+                if (database != null) {
+                    database.insertProfilePhotos(metadata);
+                }
 
                 boolean success = exportAsCsv ? saveAsCsv(metadata) : saveAsJson(metadata);
 
-                AndroidUtilities.runOnUIThread(() -> {
-                    if (success) {
-                        updateStatus("Exported " + photosList.size() + " photos", Theme.key_chat_attachFileText);
-                        if (delegate != null) {
-                            delegate.onExportFinished("Exported " + photosList.size() + " photos", Theme.getColor(Theme.key_chat_attachFileText));
-                        }
-                    } else {
-                        updateStatus("Metadata save failed", Theme.key_color_red);
-                        if (delegate != null) {
-                            delegate.onExportFinished("Metadata save failed", Theme.getColor(Theme.key_color_red));
-                        }
-                    }
-                });
+                if (success) {
+                    finishExport("Exported " + photosList.size() + " photos", Theme.key_chat_attachFileText);
+                } else {
+                    finishExport("Metadata save failed", Theme.key_color_red);
+                }
             } catch (Exception e) {
                 FileLog.e("Error saving profile picture metadata", e);
-                AndroidUtilities.runOnUIThread(() -> {
-                    updateStatus("Error: " + e.getMessage(), Theme.key_color_red);
-                    if (delegate != null) {
-                        delegate.onExportFinished("Error: " + e.getMessage(), Theme.getColor(Theme.key_color_red));
-                    }
-                });
+                finishExport("Error: " + e.getMessage(), Theme.key_color_red);
             }
         }).start();
     }
@@ -333,18 +331,21 @@ public class ProfilePictureExportCell extends FrameLayout {
     }
 
     private boolean saveAsCsv(List<Map<String, Object>> metadata) {
-        try (FileWriter writer = new FileWriter(new File(exportFolder, "metadata.csv"))) {
+        File file = new File(exportFolder, "metadata.csv" + ExportCompression.getExtension(compression));
+        try (Writer writer = ExportCompression.openWriter(file, compression)) {
             writer.write(CSV_HEADER);
             for (Map<String, Object> entry : metadata) {
-                writer.write(String.format(Locale.US, "%s,%s,%s,%s,%s\n",
-                        escapeCsvField(entry.get("id").toString()),
-                        escapeCsvField(DATE_FORMAT.format(entry.get("date"))),
-                        entry.get("size"),
-                        escapeCsvField((String) entry.get("dimensions")),
-                        escapeCsvField((String) entry.get("file_name"))
-                ));
+                ExportEscaper.appendCsvField(writer, entry.get("id").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, DATE_FORMAT.format(entry.get("date")));
+                writer.write(',');
+                writer.write(String.valueOf(entry.get("size")));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("dimensions"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("file_name"));
+                writer.write('\n');
             }
-            return true;
         } catch (IOException e) {
             FileLog.e("Failed to save CSV", e);
             return false;
@@ -352,10 +353,15 @@ public class ProfilePictureExportCell extends FrameLayout {
             FileLog.e("Failed to save CSV", e);
             return false;
         }
+        if (archive != null) {
+            archive.add(file);
+        }
+        return true;
     }
 
     private boolean saveAsJson(List<Map<String, Object>> metadata) {
-        try (FileWriter writer = new FileWriter(new File(exportFolder, "metadata.json"))) {
+        File file = new File(exportFolder, "metadata.json" + ExportCompression.getExtension(compression));
+        try (Writer writer = ExportCompression.openWriter(file, compression)) {
             JSONArray jsonArray = new JSONArray();
             for (Map<String, Object> entry : metadata) {
                 JSONObject jsonEntry = new JSONObject();
@@ -367,7 +373,6 @@ public class ProfilePictureExportCell extends FrameLayout {
                 jsonArray.put(jsonEntry);
             }
             writer.write(jsonArray.toString(JSON_INDENT));
-            return true;
         } catch (IOException e) {
             FileLog.e("Failed to save JSON", e);
             return false;
@@ -375,6 +380,10 @@ public class ProfilePictureExportCell extends FrameLayout {
             FileLog.e("Failed to save JSON", e);
             return false;
         }
+        if (archive != null) {
+            archive.add(file);
+        }
+        return true;
     }
 
     private String getPhotoFileName(TLRPC.Photo photo) {
@@ -398,40 +407,14 @@ public class ProfilePictureExportCell extends FrameLayout {
     }
 
     private void updatePhotoProgress(int order, TLRPC.Photo photo, int total) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onProfilePictureExported(
-                        order,
-                        "Photo " + DATE_FORMAT.format(new Date(photo.date * 1000L)),
-                        Theme.getColor(Theme.key_chat_attachFileText),
-                        total
-                );
-            }
-        });
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setItem(ExportProgressBus.CATEGORY_PROFILE_PICTURES, order, "Photo " + DATE_FORMAT.format(new Date(photo.date * 1000L)), total);
     }
 
     private void updateStatus(String text, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onExportStatusUpdate(text, Theme.getColor(colorKey));
-            }
-        });
-    }
-
-    private void updateProgress() {
-        if (totalPhotos > 0) {
-            float progress = 1f - ((float) pendingDownloads.get() / totalPhotos);
-            AndroidUtilities.runOnUIThread(() -> progressView.setProgress(progress, true));
-        }
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setStatus(ExportProgressBus.CATEGORY_PROFILE_PICTURES, text, colorKey);
     }
 
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
+    private void finishExport(String text, int colorKey) {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_PROFILE_PICTURES, text, colorKey);
     }
 }
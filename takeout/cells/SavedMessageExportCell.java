@@ -8,8 +8,6 @@
 
 package plus.takeout.cells;
 
-import static org.telegram.messenger.MediaDataController.getMediaType;
-
 import android.content.Context;
 import android.graphics.Canvas;
 import android.os.Environment;
@@ -21,14 +19,11 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.tgnet.Vector;
 import org.telegram.ui.ActionBar.Theme;
@@ -36,32 +31,33 @@ import org.telegram.ui.Cells.TextCheckCell;
 import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 import plus.takeout.TL_takeout;
+import plus.takeout.engine.ChatExportSink;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.ExportWatermarks;
+import plus.takeout.engine.HistoryFetcher;
+import plus.takeout.engine.PeerRanges;
+import plus.takeout.engine.RangeExecutor;
+import plus.takeout.engine.SearchIndexWriter;
+import plus.takeout.engine.ShardedMessageWriter;
+import plus.takeout.engine.StreamingMessageWriter;
+import plus.takeout.engine.TakeoutJournal;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class SavedMessageExportCell extends FrameLayout {
 
     private static final String EXPORT_DIR_NAME = "Exported Data/Saved Message";
-    private static final int INITIAL_DELAY_MS = 500;
-    private static final int STEP_DELAY_MS = 300;
-    private static final int FIELD_DELAY_MS = 150;
-    private static final int MESSAGE_LIMIT = 100;
     private static final float PROGRESS_INCREMENT = 0.3f;
     private static final float MAX_PROGRESS = 0.95f;
-    private static final String CSV_HEADER = "ID,Date,Message,MediaType\n";
-    private static final String DATE_FORMAT_PATTERN = "yyyyMMdd_HHmmss";
-    private static final int JSON_INDENT = 2;
+    private static final String CSV_HEADER = "id,date,from_id,message\n";
 
     public static final String EXPORT_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + EXPORT_DIR_NAME;
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DATE_FORMAT_PATTERN, Locale.US);
     private static final DispatchQueue exportQueue = new DispatchQueue("SavedMessageExportQueue");
 
     public interface SavedMessageExportDelegate {
@@ -75,10 +71,54 @@ public class SavedMessageExportCell extends FrameLayout {
     public TextView statusTextView;
     public LineProgressView progressView;
     private boolean needDivider;
-    private List<TLRPC.Message> allMessages = new ArrayList<>();
-    private int processedMessages = 0;
-    private int processedBatches = 0;
-    private boolean exportAsCsv = true;
+    private int exportFormat = StreamingMessageWriter.FORMAT_CSV;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+    private ExportDatabase database;
+    private SearchIndexWriter searchIndex;
+    private boolean deltaExport;
+    private ExportWatermarks.Batch watermarkBatch;
+    private int rangeParallelism = RangeExecutor.DEFAULT_PARALLELISM;
+    private int shardMaxMessages = ShardedMessageWriter.DEFAULT_MAX_MESSAGES;
+    private long shardMaxBytes = ShardedMessageWriter.DEFAULT_MAX_BYTES;
+
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category == ExportProgressBus.CATEGORY_SAVED_MESSAGES && delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category == ExportProgressBus.CATEGORY_SAVED_MESSAGES && delegate != null) {
+                delegate.onSavedMessageExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {
+            if (progress.category != ExportProgressBus.CATEGORY_SAVED_MESSAGES) {
+                return;
+            }
+            float remaining = 1f - progressView.getCurrentProgress();
+            float increment = remaining * PROGRESS_INCREMENT;
+            progressView.setProgress(Math.min(progressView.getCurrentProgress() + increment, MAX_PROGRESS), true);
+        }
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_SAVED_MESSAGES) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            progressView.setProgress(1, true);
+            if (delegate != null) {
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
 
     public SavedMessageExportCell(@NonNull Context context) {
         super(context);
@@ -118,8 +158,37 @@ public class SavedMessageExportCell extends FrameLayout {
         needDivider = true;
     }
 
-    public void setExportAsCsv(boolean exportAsCsv) {
-        this.exportAsCsv = exportAsCsv;
+    public void setExportFormat(int exportFormat) {
+        this.exportFormat = exportFormat;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
+    public void setDatabase(ExportDatabase database) {
+        this.database = database;
+    }
+
+    public void setSearchIndex(SearchIndexWriter searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public void setDeltaExport(boolean deltaExport) {
+        this.deltaExport = deltaExport;
+    }
+
+    public void setRangeParallelism(int rangeParallelism) {
+        this.rangeParallelism = rangeParallelism;
+    }
+
+    public void setShardLimits(int maxMessages, long maxBytes) {
+        shardMaxMessages = maxMessages;
+        shardMaxBytes = maxBytes;
     }
 
     @Override
@@ -132,6 +201,9 @@ public class SavedMessageExportCell extends FrameLayout {
     }
 
     public void exportSavedMessages(long takeoutId) {
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_SAVED_MESSAGES);
+        progressBus.addListener(progressListener);
         updateStatus("Initializing export...", Theme.key_chat_attachFileText);
 
         TL_takeout.TL_messages_getSplitRanges getSplitRanges = new TL_takeout.TL_messages_getSplitRanges();
@@ -139,230 +211,67 @@ public class SavedMessageExportCell extends FrameLayout {
         invokeSplitRangesRequest.takeout_id = takeoutId;
         invokeSplitRangesRequest.query = getSplitRanges;
 
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeSplitRangesRequest, (response, error) -> {
+        TakeoutRequestLimiter.getInstance(UserConfig.selectedAccount).sendRequest(invokeSplitRangesRequest, (response, error) -> {
             exportQueue.postRunnable(() -> {
                 if (error != null) {
                     FileLog.e("Saved message export failed: " + error.text);
                     updateStatus("Export failed: " + error.text, Theme.key_color_red);
-                    if (delegate != null) {
-                        delegate.onExportFinished("Export failed: " + error.text, Theme.getColor(Theme.key_color_red));
-                    }
+                    finishExport("Export failed: " + error.text, Theme.key_color_red);
                     return;
                 }
 
                 if (response instanceof Vector) {
                     Vector<TLRPC.TL_messageRange> ranges = (Vector<TLRPC.TL_messageRange>) response;
-                    exportQueue.postRunnable(() -> {
-                        processRangesSequentially(takeoutId, ranges, 0);
-                    }, FIELD_DELAY_MS);
+                    exportRanges(takeoutId, ranges.objects);
                 } else {
                     FileLog.e("Invalid saved message export response type");
                     updateStatus("Invalid response format", Theme.key_color_red);
-                    if (delegate != null) {
-                        delegate.onExportFinished("Invalid response format", Theme.getColor(Theme.key_color_red));
-                    }
-                }
-            });
-        });
-    }
-
-    private void processRangesSequentially(long takeoutId, Vector<TLRPC.TL_messageRange> ranges, int index) {
-        if (index >= ranges.objects.size()) {
-            saveMessagesToFile();
-            return;
-        }
-
-        TLRPC.TL_messageRange range = ranges.objects.get(index);
-        List<TLRPC.Message> rangeMessages = new ArrayList<>();
-
-        processSavedMessagesRange(takeoutId, range, 0, rangeMessages, () -> {
-            processedBatches++;
-            allMessages.addAll(rangeMessages);
-            processedMessages += rangeMessages.size();
-            updateProgress();
-            processRangesSequentially(takeoutId, ranges, index + 1);
-        });
-    }
-
-    private void processSavedMessagesRange(long takeoutId, TLRPC.TL_messageRange range, int offsetId,
-                                           List<TLRPC.Message> accumulatedMessages, Runnable completion) {
-        TLRPC.TL_messages_search searchQuery = new TLRPC.TL_messages_search();
-        searchQuery.peer = new TLRPC.TL_inputPeerSelf();
-        searchQuery.filter = new TLRPC.TL_inputMessagesFilterEmpty();
-        searchQuery.offset_id = offsetId;
-        searchQuery.add_offset = 0;
-        searchQuery.limit = MESSAGE_LIMIT;
-        searchQuery.max_id = 0;
-        searchQuery.min_id = 0;
-
-        TL_takeout.TL_invokeWithMessagesRange rangeRequest = new TL_takeout.TL_invokeWithMessagesRange();
-        rangeRequest.range = range;
-        rangeRequest.query = searchQuery;
-
-        TL_takeout.TL_invokeWithTakeout takeoutRequest = new TL_takeout.TL_invokeWithTakeout();
-        takeoutRequest.takeout_id = takeoutId;
-        takeoutRequest.query = rangeRequest;
-
-        ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(takeoutRequest, (response, error) -> {
-            exportQueue.postRunnable(() -> {
-                if (error != null) {
-                    FileLog.e("Range request failed: " + error.text);
-                    updateStatus("Range request failed: " + error.text, Theme.key_color_red);
-                    completion.run();
-                    return;
-                }
-
-                if (response instanceof TLRPC.messages_Messages) {
-                    TLRPC.messages_Messages messages = (TLRPC.messages_Messages) response;
-                    List<TLRPC.Message> batch = messages.messages;
-
-                    if (!batch.isEmpty()) {
-                        accumulatedMessages.addAll(batch);
-                        updateProgress();
-
-                        AndroidUtilities.runOnUIThread(() -> {
-                            if (delegate != null) {
-                                delegate.onSavedMessageExported(
-                                        accumulatedMessages.size(),
-                                        "Processing batch...",
-                                        Theme.getColor(Theme.key_chat_attachFileText),
-                                        batch.size()
-                                );
-                            }
-                        });
-
-                        int nextOffset = batch.get(batch.size() - 1).id - 1;
-
-                        if (batch.size() == searchQuery.limit) {
-                            processSavedMessagesRange(takeoutId, range, nextOffset, accumulatedMessages, completion);
-                        } else {
-                            completion.run();
-                        }
-                    } else {
-                        completion.run();
-                    }
-                } else {
-                    FileLog.e("Invalid range response type");
-                    completion.run();
+                    finishExport("Invalid response format", Theme.key_color_red);
                 }
             });
         });
     }
 
-    private void saveMessagesToFile() {
-        exportQueue.postRunnable(() -> {
-            updateStatus("Saving messages...", Theme.key_chat_attachFileText);
-
-            new Thread(() -> {
-                boolean success = exportAsCsv ? saveAsCsv(allMessages) : saveAsJson(allMessages);
-
-                exportQueue.postRunnable(() -> {
-                    if (success) {
-                        updateStatus("Exported " + allMessages.size() + " messages", Theme.key_chat_attachFileText);
-                        AndroidUtilities.runOnUIThread(() -> {
-                            progressView.setProgress(1, true);
-                            if (delegate != null) {
-                                delegate.onExportFinished("Export completed", Theme.getColor(Theme.key_chat_attachFileText));
-                            }
-                        });
-                    } else {
-                        updateStatus("Save failed", Theme.key_color_red);
-                        AndroidUtilities.runOnUIThread(() -> {
-                            if (delegate != null) {
-                                delegate.onExportFinished("Export failed", Theme.getColor(Theme.key_color_red));
-                            }
-                        });
-                    }
-                });
-            }).start();
-        }, STEP_DELAY_MS);
-    }
-
-    private boolean saveAsCsv(List<TLRPC.Message> messages) {
-        try (FileWriter writer = new FileWriter(getExportFile(".csv"))) {
-            writer.write(CSV_HEADER);
-            for (TLRPC.Message message : messages) {
-                writer.write(String.format(Locale.US, "%d,%s,%s,%s\n",
-                        message.id,
-                        DATE_FORMAT.format(new Date(message.date * 1000L)),
-                        escapeCsvField(message.message),
-                        getMediaType(message)
-                ));
+    private void exportRanges(long takeoutId, List<TLRPC.TL_messageRange> ranges) {
+        updateStatus("Exporting saved messages...", Theme.key_chat_attachFileText);
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).addTotal(ExportProgressBus.CATEGORY_SAVED_MESSAGES, 1);
+        watermarkBatch = new ExportWatermarks.Batch();
+
+        ChatExportSink.Target target = new ChatExportSink.Target(UserConfig.selectedAccount, ExportProgressBus.CATEGORY_SAVED_MESSAGES, EXPORT_DIR, CSV_HEADER);
+        target.format = exportFormat;
+        target.compression = compression;
+        target.archive = archive;
+        target.database = database;
+        target.searchIndex = searchIndex;
+        target.deltaExport = deltaExport;
+        target.watermarkBatch = watermarkBatch;
+        target.shardMaxMessages = shardMaxMessages;
+        target.shardMaxBytes = shardMaxBytes;
+        target.rangeParallelism = rangeParallelism;
+
+        PeerRanges peer = PeerRanges.savedMessages(UserConfig.getInstance(UserConfig.selectedAccount).getClientUserId(), ranges);
+        HistoryFetcher historyFetcher = new HistoryFetcher(UserConfig.selectedAccount, takeoutId);
+        new ChatExportSink(target, peer, TakeoutJournal.get(takeoutId), historyFetcher, (complete, messageCount) -> {
+            ExportWatermarks.getInstance(UserConfig.selectedAccount).commit(watermarkBatch);
+            ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+            progressBus.setItem(ExportProgressBus.CATEGORY_SAVED_MESSAGES, 1, peer.name, messageCount);
+            progressBus.addCompleted(ExportProgressBus.CATEGORY_SAVED_MESSAGES, 1);
+            if (complete) {
+                updateStatus("Exported " + messageCount + " messages", Theme.key_chat_attachFileText);
+                finishExport("Export completed", Theme.key_chat_attachFileText);
+            } else {
+                // the journal keeps what was written, so exporting again resumes from there
+                updateStatus("Exported " + messageCount + " messages before a failure", Theme.key_color_red);
+                finishExport("Export failed", Theme.key_color_red);
             }
-            return true;
-        } catch (IOException e) {
-            FileLog.e("CSV save failed", e);
-            return false;
-        } catch (Exception e) {
-            FileLog.e("CSV save failed", e);
-            return false;
-        }
-    }
-
-    private boolean saveAsJson(List<TLRPC.Message> messages) {
-        try (FileWriter writer = new FileWriter(getExportFile(".json"))) {
-            JSONArray jsonArray = new JSONArray();
-            for (TLRPC.Message message : messages) {
-                JSONObject jsonMessage = new JSONObject();
-                jsonMessage.put("id", message.id);
-                jsonMessage.put("date", DATE_FORMAT.format(new Date(message.date * 1000L)));
-                jsonMessage.put("message", message.message != null ? message.message : "");
-                jsonMessage.put("media_type", getMediaType(message));
-                jsonArray.put(jsonMessage);
-            }
-            writer.write(jsonArray.toString(JSON_INDENT));
-            return true;
-        } catch (IOException e) {
-            FileLog.e("JSON save failed", e);
-            return false;
-        } catch (Exception e) {
-            FileLog.e("JSON save failed", e);
-            return false;
-        }
-    }
-
-    private File getExportFile(String extension) {
-        String fileName = "saved_messages_" + DATE_FORMAT.format(new Date()) + extension;
-        File dir = new File(EXPORT_DIR);
-        if (!dir.exists() && !dir.mkdirs()) {
-            FileLog.e("Failed to create saved message export directory: " + EXPORT_DIR);
-        }
-        return new File(dir, fileName);
-    }
-
-    private void updateProgress() {
-        AndroidUtilities.runOnUIThread(() -> {
-            float remaining = 1f - progressView.getCurrentProgress();
-            float increment = remaining * PROGRESS_INCREMENT;
-            float newProgress = Math.min(progressView.getCurrentProgress() + increment, MAX_PROGRESS);
-            progressView.setProgress(newProgress, true);
-
-            if (delegate != null) {
-                delegate.onSavedMessageExported(
-                        processedBatches,
-                        "Processing messages...",
-                        Theme.getColor(Theme.key_chat_attachFileText),
-                        0
-                );
-            }
-        });
+        }).start();
     }
 
     private void updateStatus(String text, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            if (delegate != null) {
-                delegate.onExportStatusUpdate(text, Theme.getColor(colorKey));
-            }
-        });
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setStatus(ExportProgressBus.CATEGORY_SAVED_MESSAGES, text, colorKey);
     }
 
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
+    private void finishExport(String text, int colorKey) {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_SAVED_MESSAGES, text, colorKey);
     }
 }
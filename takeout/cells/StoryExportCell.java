@@ -23,15 +23,11 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.DispatchQueue;
-import org.telegram.messenger.FileLoadOperation;
 import org.telegram.messenger.FileLoader;
 import org.telegram.messenger.FileLog;
-import org.telegram.messenger.FilePathDatabase;
 import org.telegram.messenger.ImageLocation;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.UserConfig;
-import org.telegram.messenger.Utilities;
-import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.tgnet.tl.TL_stories;
 import org.telegram.ui.ActionBar.Theme;
@@ -40,7 +36,7 @@ import org.telegram.ui.Components.LayoutHelper;
 import org.telegram.ui.Components.LineProgressView;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -49,17 +45,21 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import plus.takeout.TL_takeout;
+import plus.takeout.engine.ExportArchive;
+import plus.takeout.engine.ExportCompression;
+import plus.takeout.engine.ExportDatabase;
+import plus.takeout.engine.ExportEscaper;
+import plus.takeout.engine.ExportProgress;
+import plus.takeout.engine.ExportProgressBus;
+import plus.takeout.engine.MediaDownloader;
+import plus.takeout.engine.TakeoutRequestLimiter;
 
 public class StoryExportCell extends FrameLayout {
 
     private static final String EXPORT_DIR_NAME = "Exported Data/Story";
-    private static final long DOWNLOAD_TIMEOUT_SECONDS = 30;
     private static final String DATE_FORMAT_PATTERN = "yyyyMMdd_HHmmss";
     private static final String CSV_HEADER = "ID,Date,Caption,Media Type,File Name\n";
     private static final int JSON_INDENT = 2;
@@ -84,12 +84,60 @@ public class StoryExportCell extends FrameLayout {
     public LineProgressView progressView;
     private boolean needDivider;
     private boolean exportAsCsv = true;
+    private int compression = ExportCompression.CODEC_NONE;
+    private ExportArchive archive;
+    private ExportDatabase database;
     private File exportFolder;
     private final AtomicInteger pendingDownloads = new AtomicInteger(0);
+    private MediaDownloader.RetryBudget retryBudget;
     private List<TL_stories.StoryItem> storiesToExport = new ArrayList<>();
     private int totalStories = 0;
     private final HashMap<Integer, String> storyIdToFileName = new HashMap<>();
 
+    private final ExportProgressBus.Listener progressListener = new ExportProgressBus.Listener() {
+        @Override
+        public void onStatus(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_STORIES) {
+                return;
+            }
+            statusTextView.setText(status);
+            if (delegate != null) {
+                delegate.onExportStatusUpdate(status, Theme.getColor(colorKey));
+            }
+        }
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {
+            if (category != ExportProgressBus.CATEGORY_STORIES) {
+                return;
+            }
+            statusTextView.setText("Processing story " + (order + 1) + " of " + total);
+            if (delegate != null) {
+                delegate.onStoryExported(order, name, Theme.getColor(Theme.key_chat_attachFileText), total);
+            }
+        }
+
+        @Override
+        public void onProgress(ExportProgress progress) {
+            if (progress.category == ExportProgressBus.CATEGORY_STORIES && progress.total > 0) {
+                progressView.setProgress(progress.fraction, true);
+            }
+        }
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            if (category != ExportProgressBus.CATEGORY_STORIES) {
+                return;
+            }
+            ExportProgressBus.getInstance(UserConfig.selectedAccount).removeListener(this);
+            statusTextView.setText(status);
+            progressView.setProgress(1f, true);
+            if (delegate != null) {
+                delegate.onExportFinished(status, Theme.getColor(colorKey));
+            }
+        }
+    };
+
     public StoryExportCell(@NonNull Context context) {
         super(context);
         initializeViews();
@@ -135,6 +183,23 @@ public class StoryExportCell extends FrameLayout {
         this.exportAsCsv = exportAsCsv;
     }
 
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public void setArchive(ExportArchive archive) {
+        this.archive = archive;
+    }
+
+    public void setDatabase(ExportDatabase database) {
+        this.database = database;
+    }
+
+    // the download window is shared by all media exports of the account
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        MediaDownloader.getInstance(UserConfig.selectedAccount).setMaxInFlight(maxConcurrentDownloads);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         if (needDivider) {
@@ -145,6 +210,9 @@ public class StoryExportCell extends FrameLayout {
     }
 
     public void exportStory(long takeoutId) {
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(UserConfig.selectedAccount);
+        progressBus.reset(ExportProgressBus.CATEGORY_STORIES);
+        progressBus.addListener(progressListener);
         exportQueue.postRunnable(() -> {
             updateStatus("Initializing story export...", Theme.key_dialogTextGray3);
 
@@ -155,7 +223,7 @@ public class StoryExportCell extends FrameLayout {
             invokeRequest.takeout_id = takeoutId;
             invokeRequest.query = storiesRequest;
 
-            ConnectionsManager.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
+            TakeoutRequestLimiter.getInstance(UserConfig.selectedAccount).sendRequest(invokeRequest, (response, error) -> {
                 exportQueue.postRunnable(() -> {
                     if (error != null) {
                         FileLog.e("Story export failed: " + error.text);
@@ -173,6 +241,7 @@ public class StoryExportCell extends FrameLayout {
                     storiesToExport = new ArrayList<>(tlStories.stories);
                     totalStories = storiesToExport.size();
                     pendingDownloads.set(totalStories);
+                    progressBus.addTotal(ExportProgressBus.CATEGORY_STORIES, totalStories);
                     storyIdToFileName.clear();
 
                     if (storiesToExport.isEmpty()) {
@@ -181,8 +250,8 @@ public class StoryExportCell extends FrameLayout {
                     }
 
                     String folderName = "stories_" + DATE_FORMAT.format(new Date());
-                    exportFolder = new File(EXPORT_DIR, folderName);
-                    File baseDir = new File(EXPORT_DIR);
+                    File baseDir = archive != null ? archive.getDir(new File(EXPORT_DIR).getName()) : new File(EXPORT_DIR);
+                    exportFolder = new File(baseDir, folderName);
                     if (!baseDir.exists() && !baseDir.mkdirs()) {
                         FileLog.e("Failed to create story export directory: " + EXPORT_DIR);
                         handleError("Failed to create export directory", "Export failed");
@@ -194,38 +263,37 @@ public class StoryExportCell extends FrameLayout {
                         return;
                     }
 
+                    MediaDownloader downloader = MediaDownloader.getInstance(UserConfig.selectedAccount);
+                    retryBudget = new MediaDownloader.RetryBudget();
                     for (int i = 0; i < storiesToExport.size(); i++) {
                         TL_stories.StoryItem story = storiesToExport.get(i);
                         updateStoryProgress(i + 1, story, totalStories);
-                        saveMediaFile(story, exportFolder);
+                        saveMediaFile(downloader, story, exportFolder);
                     }
                 });
             });
         });
     }
 
-    private void saveMediaFile(TL_stories.StoryItem story, File folder) {
+    private void saveMediaFile(MediaDownloader downloader, TL_stories.StoryItem story, File folder) {
         if (story.media == null || !story.isPublic) {
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
             return;
         }
 
         if (story.media.photo != null) {
-            savePhotoFile(story.media.photo, folder, story.id);
+            savePhotoFile(downloader, story.media.photo, folder, story.id);
         } else if (story.media.document != null) {
-            saveDocumentFile(story.media.document, folder, story.id);
+            saveDocumentFile(downloader, story.media.document, folder, story.id);
         } else {
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
         }
     }
 
-    private void savePhotoFile(TLRPC.Photo photo, File folder, int storyId) {
+    private void savePhotoFile(MediaDownloader downloader, TLRPC.Photo photo, File folder, int storyId) {
         if (photo == null) {
             FileLog.e("No photo found for story " + storyId);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
             return;
         }
 
@@ -233,27 +301,24 @@ public class StoryExportCell extends FrameLayout {
             TLRPC.PhotoSize photoSize = FileLoader.getClosestPhotoSizeWithSize(photo.sizes, Integer.MAX_VALUE);
             if (photoSize == null) {
                 FileLog.e("No valid photo size for story " + storyId);
-                pendingDownloads.decrementAndGet();
-                checkExportFinished();
+                onDownloadDone();
                 return;
             }
 
             ImageLocation imageLocation = ImageLocation.getForPhoto(photoSize, photo);
             String fileExtension = getPhotoExtension(photoSize);
             String fileName = "story_" + storyId + fileExtension;
-            downloadMediaFile(imageLocation, photo, folder, fileName, storyId);
+            downloadMediaFile(downloader, imageLocation, photo, folder, fileName, storyId);
         } catch (Exception e) {
             FileLog.e("Failed to save photo for story " + storyId, e);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
         }
     }
 
-    private void saveDocumentFile(TLRPC.Document document, File folder, int storyId) {
+    private void saveDocumentFile(MediaDownloader downloader, TLRPC.Document document, File folder, int storyId) {
         if (document == null) {
             FileLog.e("No document found for story " + storyId);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
             return;
         }
 
@@ -261,96 +326,25 @@ public class StoryExportCell extends FrameLayout {
             ImageLocation imageLocation = ImageLocation.getForDocument(document);
             String fileExtension = getDocumentExtension(document);
             String fileName = "story_" + storyId + fileExtension;
-            downloadMediaFile(imageLocation, document, folder, fileName, storyId);
+            downloadMediaFile(downloader, imageLocation, document, folder, fileName, storyId);
         } catch (Exception e) {
             FileLog.e("Failed to save document for story " + storyId, e);
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
+            onDownloadDone();
         }
     }
 
-    private void downloadMediaFile(ImageLocation imageLocation, Object parent, File folder, String fileName, int storyId) {
-        FileLoadOperation operation = new FileLoadOperation(
-                imageLocation,
-                parent,
-                null,
-                0
-        );
-
-        operation.setPriority(FileLoader.PRIORITY_HIGH);
-        operation.setPaths(
-                UserConfig.selectedAccount,
-                fileName,
-                operation.getQueue(),
-                folder,
-                folder,
-                fileName
-        );
-
-        operation.setDelegate(new FileLoadOperation.FileLoadOperationDelegate() {
-            @Override
-            public void didPreFinishLoading(FileLoadOperation operation, File finalFile) {}
-
-            @Override
-            public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
+    private void downloadMediaFile(MediaDownloader downloader, ImageLocation imageLocation, Object parent, File folder, String fileName, int storyId) {
+        downloader.download(imageLocation, parent, folder, fileName, retryBudget, finalFile -> exportQueue.postRunnable(() -> {
+            if (finalFile != null) {
                 storyIdToFileName.put(storyId, fileName);
-                pendingDownloads.decrementAndGet();
-                checkExportFinished();
-            }
-
-            @Override
-            public void didFailedLoadingFile(FileLoadOperation operation, int state) {
-                FileLog.e("Failed to save media for story " + storyId + ": state=" + state);
-                pendingDownloads.decrementAndGet();
-                checkExportFinished();
-            }
-
-            @Override
-            public void didChangedLoadProgress(FileLoadOperation operation, long uploadedSize, long totalSize) {}
-
-            @Override
-            public void saveFilePath(FilePathDatabase.PathData pathSaveData, File cacheFileFinal) {}
-
-            @Override
-            public boolean hasAnotherRefOnFile(String path) {
-                return false;
-            }
-
-            @Override
-            public boolean isLocallyCreatedFile(String path) {
-                return false;
-            }
-        });
-
-        CountDownLatch latch = new CountDownLatch(1);
-        AtomicBoolean success = new AtomicBoolean(false);
-
-        Utilities.stageQueue.postRunnable(() -> {
-            if (operation.start()) {
-                success.set(true);
-            }
-            latch.countDown();
-        });
-
-        try {
-            if (!latch.await(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-                FileLog.e("Download start timeout for story " + storyId);
-                pendingDownloads.decrementAndGet();
-                checkExportFinished();
-                return;
-            }
-
-            if (!success.get()) {
-                FileLog.e("Download start failed for story " + storyId);
-                pendingDownloads.decrementAndGet();
-                checkExportFinished();
+                if (archive != null && finalFile.exists()) {
+                    archive.add(finalFile);
+                }
+            } else {
+                FileLog.e("Failed to save media for story " + storyId);
             }
-        } catch (InterruptedException e) {
-            FileLog.e("Download interrupted for story " + storyId, e);
-            Thread.currentThread().interrupt();
-            pendingDownloads.decrementAndGet();
-            checkExportFinished();
-        }
+            onDownloadDone();
+        }));
     }
 
     private void saveMetadata() {
@@ -361,6 +355,9 @@ public class StoryExportCell extends FrameLayout {
                 for (TL_stories.StoryItem story : storiesToExport) {
                     metadata.add(createStoryEntry(story));
                 }
+                if (database != null) {
+                    database.insertStories(metadata);
+                }
 
                 boolean success = exportAsCsv ? saveAsCsv(metadata) : saveAsJson(metadata);
                 if (success) {
@@ -400,26 +397,34 @@ public class StoryExportCell extends FrameLayout {
     }
 
     private boolean saveAsCsv(List<Map<String, Object>> metadata) {
-        try (FileWriter writer = new FileWriter(new File(exportFolder, "metadata.csv"))) {
+        File file = new File(exportFolder, "metadata.csv" + ExportCompression.getExtension(compression));
+        try (Writer writer = ExportCompression.openWriter(file, compression)) {
             writer.write(CSV_HEADER);
             for (Map<String, Object> entry : metadata) {
-                writer.write(String.format(Locale.US, "%s,%s,%s,%s,%s\n",
-                        escapeCsvField(entry.get("id").toString()),
-                        escapeCsvField(entry.get("date").toString()),
-                        escapeCsvField((String) entry.get("caption")),
-                        escapeCsvField((String) entry.get("media_type")),
-                        escapeCsvField((String) entry.get("file_name"))
-                ));
+                ExportEscaper.appendCsvField(writer, entry.get("id").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, entry.get("date").toString());
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("caption"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("media_type"));
+                writer.write(',');
+                ExportEscaper.appendCsvField(writer, (String) entry.get("file_name"));
+                writer.write('\n');
             }
-            return true;
         } catch (Exception e) {
             FileLog.e("Failed to save CSV", e);
             return false;
         }
+        if (archive != null) {
+            archive.add(file);
+        }
+        return true;
     }
 
     private boolean saveAsJson(List<Map<String, Object>> metadata) {
-        try (FileWriter writer = new FileWriter(new File(exportFolder, "metadata.json"))) {
+        File file = new File(exportFolder, "metadata.json" + ExportCompression.getExtension(compression));
+        try (Writer writer = ExportCompression.openWriter(file, compression)) {
             JSONArray jsonArray = new JSONArray();
             for (Map<String, Object> entry : metadata) {
                 JSONObject jsonEntry = new JSONObject();
@@ -431,28 +436,18 @@ public class StoryExportCell extends FrameLayout {
                 jsonArray.put(jsonEntry);
             }
             writer.write(jsonArray.toString(JSON_INDENT));
-            return true;
         } catch (Exception e) {
             FileLog.e("Failed to save JSON", e);
             return false;
         }
+        if (archive != null) {
+            archive.add(file);
+        }
+        return true;
     }
 
     private void updateStoryProgress(int order, TL_stories.StoryItem story, int total) {
-        AndroidUtilities.runOnUIThread(() -> {
-            statusTextView.setText("Processing story " + order + " of " + total);
-            if (delegate != null) {
-                delegate.onStoryExported(order - 1, "Story #" + story.id, Theme.getColor(Theme.key_chat_attachFileText), total);
-            }
-            updateProgress();
-        });
-    }
-
-    private void updateProgress() {
-        if (totalStories > 0) {
-            float progress = 1f - ((float) pendingDownloads.get() / totalStories);
-            AndroidUtilities.runOnUIThread(() -> progressView.setProgress(progress, true));
-        }
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setItem(ExportProgressBus.CATEGORY_STORIES, order - 1, "Story #" + story.id, total);
     }
 
     private void handleError(String logMessage, String statusMessage) {
@@ -461,28 +456,18 @@ public class StoryExportCell extends FrameLayout {
     }
 
     private void finishExport(String message, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            statusTextView.setText(message);
-            progressView.setProgress(1f, true);
-            if (delegate != null) {
-                delegate.onExportFinished(message, Theme.getColor(colorKey));
-            }
-        });
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).finish(ExportProgressBus.CATEGORY_STORIES, message, colorKey);
     }
 
-    private void checkExportFinished() {
-        if (pendingDownloads.get() == 0) {
+    private void onDownloadDone() {
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).addCompleted(ExportProgressBus.CATEGORY_STORIES, 1);
+        if (pendingDownloads.decrementAndGet() == 0) {
             saveMetadata();
         }
     }
 
     private void updateStatus(String text, int colorKey) {
-        AndroidUtilities.runOnUIThread(() -> {
-            statusTextView.setText(text);
-            if (delegate != null) {
-                delegate.onExportStatusUpdate(text, Theme.getColor(colorKey));
-            }
-        });
+        ExportProgressBus.getInstance(UserConfig.selectedAccount).setStatus(ExportProgressBus.CATEGORY_STORIES, text, colorKey);
     }
 
     private String getMediaType(TLRPC.MessageMedia media) {
@@ -532,14 +517,4 @@ public class StoryExportCell extends FrameLayout {
         }
         return DEFAULT_EXTENSION;
     }
-
-    private String escapeCsvField(String field) {
-        if (field == null) {
-            return "";
-        }
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
-    }
 }
@@ -0,0 +1,424 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.Utilities;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// Writes one peer of a chat category: walks its split ranges through the HistoryFetcher, appends every
+// page to the peer's file and records a journal checkpoint after each page.
+// With a range parallelism above one, the ranges after the one being written are fetched at the same
+// time into MessageSpools and written out in turn, so memory stays bounded by the page size.
+public class ChatExportSink implements MessageSink {
+
+    private static final String FILENAME_REGEX = "[^a-zA-Z0-9]";
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+
+    // what every peer of one category export shares; taken from the cell when the export starts
+    public static class Target {
+        public final int account;
+        public final int category;
+        public final String exportDir;
+        public final String csvHeader;
+        public int format = StreamingMessageWriter.FORMAT_CSV;
+        public int compression = ExportCompression.CODEC_NONE;
+        public ExportArchive archive;
+        public ExportDatabase database;
+        public SearchIndexWriter searchIndex;
+        public boolean deltaExport;
+        public ExportWatermarks.Batch watermarkBatch;
+        public int shardMaxMessages = ShardedMessageWriter.DEFAULT_MAX_MESSAGES;
+        public long shardMaxBytes = ShardedMessageWriter.DEFAULT_MAX_BYTES;
+        public int rangeParallelism = RangeExecutor.MIN_PARALLELISM;
+
+        public Target(int account, int category, String exportDir, String csvHeader) {
+            this.account = account;
+            this.category = category;
+            this.exportDir = exportDir;
+            this.csvHeader = csvHeader;
+        }
+
+        File getOutputDir() {
+            if (archive != null) {
+                return archive.getDir(new File(exportDir).getName());
+            }
+            File dir = new File(exportDir);
+            if (!dir.exists() && !dir.mkdirs()) {
+                FileLog.e("Failed to create chat export directory: " + exportDir);
+            }
+            return dir;
+        }
+    }
+
+    private final Target target;
+    private final PeerRanges peer;
+    private final TakeoutJournal journal;
+    private final HistoryFetcher historyFetcher;
+    private final Utilities.Callback2<Boolean, Integer> onDone;
+    private final ExportWatermarks.Watermark watermark;
+    private final AheadRange[] aheadRanges;
+    private TakeoutJournal.Checkpoint resumeFrom;
+    private String resumeFileName;
+    private int resumeOffsetId;
+    private boolean resumed;
+    private ShardedMessageWriter writer;
+    private String fileName;
+    private int archivedParts;
+    private int rangeIndex;
+    private int nextAheadIndex;
+    private int maxId;
+    private boolean finished;
+
+    public ChatExportSink(Target target, PeerRanges peer, TakeoutJournal journal, HistoryFetcher historyFetcher, Utilities.Callback2<Boolean, Integer> onDone) {
+        this.target = target;
+        this.peer = peer;
+        this.journal = journal;
+        this.historyFetcher = historyFetcher;
+        this.onDone = onDone;
+        watermark = target.deltaExport ? ExportWatermarks.getInstance(target.account).get(peer.stateKey) : null;
+        aheadRanges = new AheadRange[peer.ranges.size()];
+        findResumePoint();
+    }
+
+    private void findResumePoint() {
+        if (target.archive != null) {
+            // an archive is always written from scratch; earlier spooled parts are gone
+            return;
+        }
+        // ranges are written into one file in order, so only the first unfinished range can be partial
+        for (; rangeIndex < peer.ranges.size(); rangeIndex++) {
+            TakeoutJournal.Checkpoint saved = journal.getCheckpoint(peer.stateKey, peer.ranges.get(rangeIndex));
+            if (saved == null) {
+                break;
+            }
+            if (saved.fileName != null && saved.position > 0) {
+                resumeFrom = saved;
+            }
+            if (!saved.complete) {
+                resumeOffsetId = saved.offsetId;
+                break;
+            }
+        }
+        if (resumeFrom != null) {
+            resumeFileName = ShardedMessageWriter.findFile(new File(target.exportDir), resumeFrom.fileName, ExportCompression.getCodec(resumeFrom.fileName));
+        }
+        if (resumeFrom != null && new File(target.exportDir, resumeFileName).length() < resumeFrom.position) {
+            resumeFrom = null;
+            resumeOffsetId = 0;
+            rangeIndex = 0;
+        }
+        resumed = rangeIndex > 0 || resumeOffsetId != 0;
+    }
+
+    public void start() {
+        fetchNextRange();
+    }
+
+    private void fetchNextRange() {
+        int minId = getMinId();
+        while (rangeIndex < peer.ranges.size()) {
+            TLRPC.TL_messageRange range = peer.ranges.get(rangeIndex);
+            if (isNeeded(range, minId)) {
+                AheadRange ahead = aheadRanges[rangeIndex];
+                if (ahead != null) {
+                    aheadRanges[rangeIndex] = null;
+                    takeOver(ahead);
+                    return;
+                }
+                int offsetId = resumeOffsetId;
+                resumeOffsetId = 0;
+                // start() runs off the fetcher's queue, so the ranges ahead are set up before this range's
+                // first page can arrive
+                fetchAhead();
+                historyFetcher.fetch(range, peer.inputPeer, offsetId, minId, this);
+                return;
+            }
+            rangeIndex++;
+        }
+        finish(true);
+    }
+
+    private int getMinId() {
+        return watermark != null ? watermark.maxId : 0;
+    }
+
+    private static boolean isNeeded(TLRPC.TL_messageRange range, int minId) {
+        return minId == 0 || range.max_id == 0 || range.max_id > minId;
+    }
+
+    private void fetchAhead() {
+        int minId = getMinId();
+        int parallelism = Math.min(RangeExecutor.MAX_PARALLELISM, target.rangeParallelism);
+        nextAheadIndex = Math.max(nextAheadIndex, rangeIndex + 1);
+        while (!finished && nextAheadIndex < peer.ranges.size() && nextAheadIndex < rangeIndex + parallelism) {
+            int index = nextAheadIndex;
+            TLRPC.TL_messageRange range = peer.ranges.get(index);
+            if (isNeeded(range, minId)) {
+                AheadRange ahead;
+                try {
+                    ahead = new AheadRange(index, MessageSpool.create(target.category + "_" + peer.stateKey + "_" + index));
+                } catch (IOException e) {
+                    // the range is fetched when its turn comes instead
+                    FileLog.e("Failed to spool a range for " + peer.name, e);
+                    return;
+                }
+                aheadRanges[index] = ahead;
+                historyFetcher.fetch(range, peer.inputPeer, 0, minId, ahead);
+            }
+            nextAheadIndex++;
+        }
+    }
+
+    // the range whose turn it is was fetched ahead: its spooled pages are written first, and whatever
+    // is still being fetched goes straight to the file
+    private void takeOver(AheadRange ahead) {
+        fetchAhead();
+        try {
+            List<TLRPC.Message> page;
+            while ((page = ahead.spool.read()) != null) {
+                if (!onBatch(page)) {
+                    ahead.discard();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            FileLog.e("Failed to read spooled messages for " + peer.name, e);
+            ahead.discard();
+            finish(false);
+            return;
+        }
+        ahead.spool.delete();
+        if (ahead.error != null) {
+            onError(ahead.error);
+        } else if (ahead.complete) {
+            onComplete();
+        } else {
+            ahead.live = true;
+        }
+    }
+
+    @Override
+    public boolean onBatch(List<TLRPC.Message> batch) {
+        try {
+            if (writer == null) {
+                openWriter();
+            }
+            String previousFile = fileName;
+            writer.append(batch);
+            if (target.database != null) {
+                target.database.insertMessages(peer.peerKey, batch);
+            }
+            fileName = writer.getFileName();
+            if (!fileName.equals(previousFile)) {
+                // rolled over to a new part; if the chat was a single file until now, that file became part one
+                List<ShardedMessageWriter.Part> parts = writer.getParts();
+                String previousPart = parts.get(parts.size() - 2).fileName;
+                if (!previousPart.equals(previousFile) && target.searchIndex != null) {
+                    String dirName = new File(target.exportDir).getName();
+                    target.searchIndex.renameFile(dirName + "/" + previousFile, dirName + "/" + previousPart);
+                }
+                if (target.archive != null) {
+                    // the finished part leaves the spool now rather than with the rest of the chat
+                    List<File> files = writer.getFiles();
+                    target.archive.add(files.subList(archivedParts, parts.size() - 1));
+                    archivedParts = parts.size() - 1;
+                }
+            }
+            maxId = Math.max(maxId, batch.get(0).id);
+            ExportProgressBus progressBus = ExportProgressBus.getInstance(target.account);
+            progressBus.addMessages(target.category, batch.size());
+
+            String pageFile = fileName;
+            TLRPC.TL_messageRange range = peer.ranges.get(rangeIndex);
+            int offsetId = batch.get(batch.size() - 1).id;
+            int count = writer.getCount();
+            // for compressed files this runs on the compress queue once the page is on disk, so the
+            // journal never points past what was written
+            writer.checkpoint((start, position) -> {
+                if (target.searchIndex != null) {
+                    target.searchIndex.addPage(new File(target.exportDir).getName() + "/" + pageFile, start, batch);
+                }
+                progressBus.addBytes(target.category, position - start);
+                journal.recordProgress(peer.stateKey, range, offsetId, position, count, pageFile);
+            });
+            return true;
+        } catch (Exception e) {
+            // the checkpoint stays on the last page that was written, so a resume refetches this one
+            FileLog.e("Failed to save messages for " + peer.name, e);
+            finish(false);
+            return false;
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        TLRPC.TL_messageRange range = peer.ranges.get(rangeIndex);
+        int count = getCount();
+        String completeFile = fileName;
+        if (writer != null) {
+            // after the range's last progress record, which may still be on the compress queue
+            try {
+                writer.checkpoint((start, position) -> journal.recordComplete(peer.stateKey, range, count, completeFile));
+            } catch (IOException e) {
+                FileLog.e("Failed to save messages for " + peer.name, e);
+                finish(false);
+                return;
+            }
+        } else {
+            journal.recordComplete(peer.stateKey, range, count, completeFile);
+        }
+        rangeIndex++;
+        fetchNextRange();
+    }
+
+    @Override
+    public void onError(String reason) {
+        finish(false);
+    }
+
+    private void finish(boolean complete) {
+        finished = true;
+        for (int i = 0; i < aheadRanges.length; i++) {
+            if (aheadRanges[i] != null) {
+                aheadRanges[i].discard();
+                aheadRanges[i] = null;
+            }
+        }
+        try {
+            if (writer == null && (watermark == null || resumeFrom != null)) {
+                openWriter();
+            }
+            if (writer != null) {
+                writer.close();
+                if (target.archive != null) {
+                    List<File> files = writer.getFiles();
+                    target.archive.add(files.subList(archivedParts, files.size()));
+                }
+            }
+            if (complete && !resumed) {
+                target.watermarkBatch.advance(peer.stateKey, Math.max(maxId, getMinId()), fileName);
+            } else {
+                // part of this peer came from an earlier run whose high-water mark is unknown here
+                target.watermarkBatch.hold(peer.stateKey);
+            }
+        } catch (Exception e) {
+            FileLog.e("Failed to save messages for " + peer.name, e);
+            complete = false;
+        }
+        onDone.run(complete, getCount());
+    }
+
+    private int getCount() {
+        if (writer != null) {
+            return writer.getCount();
+        }
+        return resumeFrom != null ? resumeFrom.count : 0;
+    }
+
+    private void openWriter() throws IOException {
+        File dir = target.getOutputDir();
+        if (resumeFrom != null) {
+            writer = ShardedMessageWriter.resume(dir, resumeFileName, target.format, ExportCompression.getCodec(resumeFileName), target.csvHeader, resumeFrom.position, resumeFrom.count);
+        } else if (canAppendToPreviousExport()) {
+            writer = ShardedMessageWriter.openForAppend(dir, watermark.fileName, target.format, target.compression, target.csvHeader);
+        } else {
+            writer = ShardedMessageWriter.create(dir, generateBaseName(peer), target.format, target.compression, target.csvHeader);
+        }
+        writer.setLimits(target.shardMaxMessages, target.archive != null ? Math.min(target.shardMaxBytes, ExportArchive.MAX_PART_BYTES) : target.shardMaxBytes);
+        fileName = writer.getFileName();
+    }
+
+    private boolean canAppendToPreviousExport() {
+        return target.archive == null
+                && watermark != null
+                && watermark.fileName != null
+                && watermark.fileName.endsWith(StreamingMessageWriter.getExtension(target.format) + ExportCompression.getExtension(target.compression))
+                && new File(target.exportDir, watermark.fileName).exists()
+                && target.watermarkBatch.claimAppend(peer.stateKey);
+    }
+
+    // the sanitized name alone is not unique: non-Latin names of the same length, every "UnknownUser" and
+    // namesakes started in the same second would all open the same file, so the peer key goes in as well
+    private static String generateBaseName(PeerRanges peer) {
+        String timestamp;
+        synchronized (DATE_FORMAT) {
+            timestamp = DATE_FORMAT.format(new Date());
+        }
+        return peer.name.replaceAll(FILENAME_REGEX, "_") + "_" + peer.peerKey + "_" + timestamp;
+    }
+
+    // A range fetched ahead of its turn. Like the sink itself it is only called on the HistoryFetcher's
+    // queue, so handing it over to the sink needs no locking.
+    private class AheadRange implements MessageSink {
+        final int index;
+        final MessageSpool spool;
+        boolean live;
+        boolean complete;
+        boolean discarded;
+        String error;
+
+        AheadRange(int index, MessageSpool spool) {
+            this.index = index;
+            this.spool = spool;
+        }
+
+        @Override
+        public boolean onBatch(List<TLRPC.Message> batch) {
+            if (live) {
+                return ChatExportSink.this.onBatch(batch);
+            }
+            if (discarded) {
+                return false;
+            }
+            try {
+                spool.write(batch);
+                return true;
+            } catch (IOException e) {
+                // dropping the spool makes the range get fetched again when its turn comes
+                FileLog.e("Failed to spool messages for " + peer.name, e);
+                if (aheadRanges[index] == this) {
+                    aheadRanges[index] = null;
+                }
+                discard();
+                return false;
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (live) {
+                ChatExportSink.this.onComplete();
+            } else {
+                complete = true;
+            }
+        }
+
+        @Override
+        public void onError(String reason) {
+            if (live) {
+                ChatExportSink.this.onError(reason);
+            } else {
+                error = reason;
+            }
+        }
+
+        void discard() {
+            discarded = true;
+            spool.delete();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+// Reads files written by ColumnarMessageWriter, one row group at a time. It uses nothing outside java.io
+// and java.util.zip, so exports can be read back off-device.
+public class ColumnarMessageReader implements Closeable {
+
+    public static final byte[] MAGIC = {'T', 'G', 'C', 'L'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static class RowGroup {
+        public final int rows;
+        public final long[] ids;
+        public final int[] dates;
+        public final long[] fromDictionary;
+        public final int[] fromIndex;
+        public final String[] messages;
+
+        RowGroup(int rows, long[] ids, int[] dates, long[] fromDictionary, int[] fromIndex, String[] messages) {
+            this.rows = rows;
+            this.ids = ids;
+            this.dates = dates;
+            this.fromDictionary = fromDictionary;
+            this.fromIndex = fromIndex;
+            this.messages = messages;
+        }
+
+        public boolean hasFromId(int row) {
+            return fromIndex[row] >= 0;
+        }
+
+        public long getFromId(int row) {
+            return fromDictionary[fromIndex[row]];
+        }
+    }
+
+    private final DataInputStream in;
+    private byte[] text = new byte[256];
+
+    public ColumnarMessageReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        this.in.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a columnar message export");
+            }
+        }
+        int version = this.in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported columnar export version " + version);
+        }
+    }
+
+    public static ColumnarMessageReader open(File file) throws IOException {
+        return new ColumnarMessageReader(ExportInput.open(file));
+    }
+
+    // null once the last complete group has been read
+    public RowGroup next() throws IOException {
+        if (readGroupLength() < 0) {
+            return null;
+        }
+        int rows = in.readInt();
+        long[] ids = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = in.readLong();
+        }
+        int[] dates = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            dates[i] = in.readInt();
+        }
+        long[] fromDictionary = new long[in.readInt()];
+        for (int i = 0; i < fromDictionary.length; i++) {
+            fromDictionary[i] = in.readLong();
+        }
+        int[] fromIndex = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            fromIndex[i] = in.readInt();
+        }
+        int[] lengths = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            lengths[i] = in.readInt();
+        }
+        String[] messages = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            int length = lengths[i];
+            if (length < 0) {
+                continue;
+            }
+            if (text.length < length) {
+                text = new byte[Math.max(length, text.length * 2)];
+            }
+            in.readFully(text, 0, length);
+            messages[i] = new String(text, 0, length, UTF_8);
+        }
+        return new RowGroup(rows, ids, dates, fromDictionary, fromIndex, messages);
+    }
+
+    // reads only the id column of the next group and skips the rest; null at the end
+    public long[] nextIds() throws IOException {
+        int length = readGroupLength();
+        if (length < 0) {
+            return null;
+        }
+        int rows = in.readInt();
+        long[] ids = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = in.readLong();
+        }
+        skipFully(length - 4 - rows * 8L);
+        return ids;
+    }
+
+    public boolean skipGroup() throws IOException {
+        int length = readGroupLength();
+        if (length < 0) {
+            return false;
+        }
+        skipFully(length);
+        return true;
+    }
+
+    private int readGroupLength() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+        return (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
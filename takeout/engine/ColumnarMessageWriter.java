@@ -0,0 +1,119 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+// Row groups of typed columns, all integers big-endian:
+//   file     = MAGIC, int32 VERSION, group*
+//   group    = int32 byteLength (of what follows), int32 rows,
+//              int64[rows] id, int32[rows] date,
+//              int32 dictSize, int64[dictSize] fromDictionary, int32[rows] fromIndex (-1 = no sender),
+//              int32[rows] messageLength (-1 = no text), UTF-8 message bytes
+// Every group is self-contained, so a file can be cut at any group boundary.
+// MAGIC and VERSION live in ColumnarMessageReader, which has to load without the app's classes.
+public class ColumnarMessageWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream groupBuffer = new ByteArrayOutputStream(StreamingMessageWriter.BUFFER_SIZE);
+    private final DataOutputStream group = new DataOutputStream(groupBuffer);
+    private final LongObjectMap<Integer> dictionary = new LongObjectMap<>();
+    private long[] dictionaryValues = new long[64];
+    private int[] fromIndex = new int[128];
+    private byte[][] text = new byte[128][];
+
+    public ColumnarMessageWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, StreamingMessageWriter.BUFFER_SIZE));
+    }
+
+    public void writeHeader() throws IOException {
+        out.write(ColumnarMessageReader.MAGIC);
+        out.writeInt(ColumnarMessageReader.VERSION);
+    }
+
+    public void writeRowGroup(List<TLRPC.Message> messages) throws IOException {
+        int rows = messages.size();
+        if (rows == 0) {
+            return;
+        }
+        if (fromIndex.length < rows) {
+            fromIndex = new int[rows];
+            text = new byte[rows][];
+        }
+        dictionary.clear();
+        int dictionarySize = 0;
+        for (int i = 0; i < rows; i++) {
+            TLRPC.Message msg = messages.get(i);
+            if (msg.from_id == null) {
+                fromIndex[i] = -1;
+            } else {
+                long fromId = msg.from_id.user_id;
+                Integer index = dictionary.get(fromId);
+                if (index == null) {
+                    index = dictionarySize;
+                    dictionary.put(fromId, index);
+                    if (dictionarySize == dictionaryValues.length) {
+                        long[] grown = new long[dictionarySize * 2];
+                        System.arraycopy(dictionaryValues, 0, grown, 0, dictionarySize);
+                        dictionaryValues = grown;
+                    }
+                    dictionaryValues[dictionarySize++] = fromId;
+                }
+                fromIndex[i] = index;
+            }
+            text[i] = msg.message != null ? msg.message.getBytes(ColumnarMessageReader.UTF_8) : null;
+        }
+
+        groupBuffer.reset();
+        group.writeInt(rows);
+        for (int i = 0; i < rows; i++) {
+            group.writeLong(messages.get(i).id);
+        }
+        for (int i = 0; i < rows; i++) {
+            group.writeInt(messages.get(i).date);
+        }
+        group.writeInt(dictionarySize);
+        for (int i = 0; i < dictionarySize; i++) {
+            group.writeLong(dictionaryValues[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            group.writeInt(fromIndex[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            group.writeInt(text[i] != null ? text[i].length : -1);
+        }
+        for (int i = 0; i < rows; i++) {
+            if (text[i] != null) {
+                group.write(text[i]);
+                text[i] = null;
+            }
+        }
+        group.flush();
+
+        out.writeInt(groupBuffer.size());
+        groupBuffer.writeTo(out);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
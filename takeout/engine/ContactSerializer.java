@@ -0,0 +1,68 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+import plus.takeout.TL_takeout;
+
+public final class ContactSerializer {
+
+    public static final String CSV_HEADER = "First Name,Last Name,Phone Number,Added Date\n";
+
+    private ContactSerializer() {
+    }
+
+    public static void writeCsv(Writer writer, List<TL_takeout.TL_savedContact> contacts) throws IOException {
+        Date date = new Date();
+        writer.write(CSV_HEADER);
+        for (int i = 0, n = contacts.size(); i < n; i++) {
+            TL_takeout.TL_savedContact contact = contacts.get(i);
+            ExportEscaper.appendCsvField(writer, contact.first_name);
+            writer.write(',');
+            ExportEscaper.appendCsvField(writer, contact.last_name);
+            writer.write(',');
+            ExportEscaper.appendCsvField(writer, contact.phone);
+            writer.write(',');
+            date.setTime(contact.date * 1000L);
+            writer.write(date.toString());
+            writer.write('\n');
+        }
+    }
+
+    public static void writeJson(Writer writer, List<TL_takeout.TL_savedContact> contacts) throws IOException {
+        if (contacts.isEmpty()) {
+            writer.write("[]");
+            return;
+        }
+        writer.write('[');
+        for (int i = 0, n = contacts.size(); i < n; i++) {
+            TL_takeout.TL_savedContact contact = contacts.get(i);
+            writer.write(i == 0 ? "\n  {" : ",\n  {");
+            writeStringField(writer, "first_name", contact.first_name, true);
+            writeStringField(writer, "last_name", contact.last_name, false);
+            writeStringField(writer, "phone", contact.phone, false);
+            writer.write(",\n    \"added_date\": ");
+            writer.write(Integer.toString(contact.date));
+            writer.write("\n  }");
+        }
+        writer.write("\n]");
+    }
+
+    private static void writeStringField(Writer writer, String name, String value, boolean first) throws IOException {
+        writer.write(first ? "\n    \"" : ",\n    \"");
+        writer.write(name);
+        writer.write("\": \"");
+        ExportEscaper.appendJsonString(writer, value);
+        writer.write('"');
+    }
+}
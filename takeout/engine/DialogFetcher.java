@@ -0,0 +1,89 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import plus.takeout.TL_takeout;
+
+public class DialogFetcher {
+
+    public static final int DIALOGS_LIMIT = 100;
+
+    public interface DialogsDelegate {
+        void onDialogsLoaded(List<TLRPC.Dialog> dialogs);
+    }
+
+    private final int account;
+    private final long takeoutId;
+
+    public DialogFetcher(int account, long takeoutId) {
+        this.account = account;
+        this.takeoutId = takeoutId;
+    }
+
+    public void fetch(TLRPC.TL_messageRange range, DialogsDelegate delegate) {
+        requestPage(range, new ArrayList<>(), 0, 0, new TLRPC.TL_inputPeerEmpty(), delegate);
+    }
+
+    private void requestPage(TLRPC.TL_messageRange range,
+                             List<TLRPC.Dialog> accumulatedDialogs,
+                             int offsetDate,
+                             int offsetId,
+                             TLRPC.InputPeer offsetPeer,
+                             DialogsDelegate delegate) {
+        TLRPC.TL_messages_getDialogs getDialogs = new TLRPC.TL_messages_getDialogs();
+        getDialogs.offset_date = offsetDate;
+        getDialogs.offset_id = offsetId;
+        getDialogs.offset_peer = offsetPeer;
+        getDialogs.limit = DIALOGS_LIMIT;
+        getDialogs.hash = 0;
+
+        TL_takeout.TL_invokeWithMessagesRange rangeRequest = new TL_takeout.TL_invokeWithMessagesRange();
+        rangeRequest.range = range;
+        rangeRequest.query = getDialogs;
+
+        TL_takeout.TL_invokeWithTakeout takeoutRequest = new TL_takeout.TL_invokeWithTakeout();
+        takeoutRequest.takeout_id = takeoutId;
+        takeoutRequest.query = rangeRequest;
+
+        TakeoutRequestLimiter.getInstance(account).sendRequest(takeoutRequest, (response, error) -> {
+            if (error != null) {
+                FileLog.e("Dialog fetch failed: " + error.text);
+                delegate.onDialogsLoaded(accumulatedDialogs);
+                return;
+            }
+
+            PeerDirectory directory = PeerDirectory.getInstance(account);
+            if (response instanceof TLRPC.TL_messages_dialogsSlice) {
+                TLRPC.TL_messages_dialogsSlice slice = (TLRPC.TL_messages_dialogsSlice) response;
+                accumulatedDialogs.addAll(slice.dialogs);
+                directory.putUsers(slice.users);
+                directory.putChats(slice.chats);
+
+                if (accumulatedDialogs.size() < slice.count && !slice.dialogs.isEmpty()) {
+                    TLRPC.Dialog lastDialog = slice.dialogs.get(slice.dialogs.size() - 1);
+                    requestPage(range, accumulatedDialogs, lastDialog.last_message_date, lastDialog.top_message,
+                            directory.getInputPeer(lastDialog.peer), delegate);
+                    return;
+                }
+            } else if (response instanceof TLRPC.TL_messages_dialogs) {
+                TLRPC.TL_messages_dialogs dialogsResponse = (TLRPC.TL_messages_dialogs) response;
+                accumulatedDialogs.addAll(dialogsResponse.dialogs);
+                directory.putUsers(dialogsResponse.users);
+                directory.putChats(dialogsResponse.chats);
+            }
+            delegate.onDialogsLoaded(accumulatedDialogs);
+        });
+    }
+}
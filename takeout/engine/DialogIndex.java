@@ -0,0 +1,212 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.TLRPC;
+import org.telegram.tgnet.Vector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import plus.takeout.TL_takeout;
+
+public class DialogIndex {
+
+    public static final int BUCKET_PRIVATE = 0;
+    public static final int BUCKET_GROUPS = 1;
+    public static final int BUCKET_CHANNELS = 2;
+    private static final int BUCKET_COUNT = 3;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LOADING = 1;
+    private static final int STATE_READY = 2;
+
+    public interface Callback {
+        void onIndexLoaded(DialogIndex index, String error);
+    }
+
+    public static class Entry {
+        public final TLRPC.Dialog dialog;
+        public final long peerKey;
+        public final ArrayList<TLRPC.TL_messageRange> ranges = new ArrayList<>();
+        public int topMessage;
+
+        Entry(TLRPC.Dialog dialog) {
+            this.dialog = dialog;
+            this.peerKey = TakeoutJournal.getPeerKey(dialog.peer);
+            this.topMessage = dialog.top_message;
+        }
+    }
+
+    private static class RangeDialogs {
+        final TLRPC.TL_messageRange range;
+        final List<TLRPC.Dialog> dialogs;
+
+        RangeDialogs(TLRPC.TL_messageRange range, List<TLRPC.Dialog> dialogs) {
+            this.range = range;
+            this.dialogs = dialogs;
+        }
+    }
+
+    private static final HashMap<Long, DialogIndex> indexes = new HashMap<>();
+
+    public static DialogIndex get(int account, long takeoutId) {
+        synchronized (indexes) {
+            DialogIndex index = indexes.get(takeoutId);
+            if (index == null) {
+                index = new DialogIndex(account, takeoutId);
+                indexes.put(takeoutId, index);
+            }
+            return index;
+        }
+    }
+
+    public static void release(long takeoutId) {
+        synchronized (indexes) {
+            indexes.remove(takeoutId);
+        }
+    }
+
+    private final int account;
+    private final long takeoutId;
+    private final ArrayList<Callback> callbacks = new ArrayList<>();
+    private final LongObjectMap<Entry> entries = new LongObjectMap<>();
+    private final ArrayList<Entry>[] buckets;
+    private List<TLRPC.TL_messageRange> ranges = Collections.emptyList();
+    private int state = STATE_IDLE;
+
+    @SuppressWarnings("unchecked")
+    private DialogIndex(int account, long takeoutId) {
+        this.account = account;
+        this.takeoutId = takeoutId;
+        buckets = new ArrayList[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+    }
+
+    public void load(int parallelism, Callback callback) {
+        boolean loaded;
+        synchronized (this) {
+            loaded = state == STATE_READY;
+            if (!loaded) {
+                callbacks.add(callback);
+                if (state == STATE_LOADING) {
+                    // another category already started the pass and will be answered with it
+                    return;
+                }
+                state = STATE_LOADING;
+            }
+        }
+        if (loaded) {
+            callback.onIndexLoaded(this, null);
+            return;
+        }
+
+        TL_takeout.TL_messages_getSplitRanges getSplitRanges = new TL_takeout.TL_messages_getSplitRanges();
+        TL_takeout.TL_invokeWithTakeout invokeSplitRangesRequest = new TL_takeout.TL_invokeWithTakeout();
+        invokeSplitRangesRequest.takeout_id = takeoutId;
+        invokeSplitRangesRequest.query = getSplitRanges;
+
+        TakeoutRequestLimiter.getInstance(account).sendRequest(invokeSplitRangesRequest, (response, error) -> {
+            if (error != null) {
+                FileLog.e("Failed to get split ranges: " + error.text);
+                fail("Failed to get split ranges: " + error.text);
+                return;
+            }
+            if (!(response instanceof Vector)) {
+                FileLog.e("Unexpected response type for split ranges");
+                fail("Unexpected response type");
+                return;
+            }
+            ranges = ((Vector<TLRPC.TL_messageRange>) response).objects;
+            if (ranges.isEmpty()) {
+                ready();
+                return;
+            }
+            fetchDialogs(parallelism);
+        });
+    }
+
+    private void fetchDialogs(int parallelism) {
+        RangeMerger<RangeDialogs> merger = new RangeMerger<>(ranges.size(), this::merge, this::ready);
+        DialogFetcher dialogFetcher = new DialogFetcher(account, takeoutId);
+        new RangeExecutor(parallelism).execute(ranges, (index, range, done) -> dialogFetcher.fetch(range, dialogs -> {
+            merger.complete(index, new RangeDialogs(range, dialogs));
+            done.run();
+        }), null);
+    }
+
+    // called in range order, so every entry lists its ranges sorted
+    private void merge(RangeDialogs rangeDialogs) {
+        for (int i = 0, n = rangeDialogs.dialogs.size(); i < n; i++) {
+            TLRPC.Dialog dialog = rangeDialogs.dialogs.get(i);
+            int bucket = getBucket(dialog.peer);
+            if (bucket < 0) {
+                continue;
+            }
+            long peerKey = TakeoutJournal.getPeerKey(dialog.peer);
+            Entry entry = entries.get(peerKey);
+            if (entry == null) {
+                entry = new Entry(dialog);
+                entries.put(peerKey, entry);
+                buckets[bucket].add(entry);
+            } else {
+                entry.topMessage = Math.max(entry.topMessage, dialog.top_message);
+            }
+            entry.ranges.add(rangeDialogs.range);
+        }
+    }
+
+    private static int getBucket(TLRPC.Peer peer) {
+        if (peer instanceof TLRPC.TL_peerUser) {
+            return BUCKET_PRIVATE;
+        } else if (peer instanceof TLRPC.TL_peerChat) {
+            return BUCKET_GROUPS;
+        } else if (peer instanceof TLRPC.TL_peerChannel) {
+            return BUCKET_CHANNELS;
+        }
+        return -1;
+    }
+
+    private void ready() {
+        ArrayList<Callback> toNotify;
+        synchronized (this) {
+            state = STATE_READY;
+            toNotify = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (int i = 0; i < toNotify.size(); i++) {
+            toNotify.get(i).onIndexLoaded(this, null);
+        }
+    }
+
+    private void fail(String error) {
+        ArrayList<Callback> toNotify;
+        synchronized (this) {
+            state = STATE_IDLE;
+            toNotify = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (int i = 0; i < toNotify.size(); i++) {
+            toNotify.get(i).onIndexLoaded(this, error);
+        }
+    }
+
+    public List<TLRPC.TL_messageRange> getRanges() {
+        return ranges;
+    }
+
+    public List<Entry> getDialogs(int bucket) {
+        return buckets[bucket];
+    }
+}
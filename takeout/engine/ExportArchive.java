@@ -0,0 +1,216 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Every exporter spools its finished files to internal storage and hands them over here;
+// archiveQueue is the only thread that touches the ZipOutputStream. Once internal storage runs low
+// the archive stops taking new files and exporters get their loose directory in the export folder.
+public class ExportArchive {
+
+    public static final String EXTENSION = ".zip";
+    // a spooled file sits on internal storage in full until it is copied in, so chats written into
+    // an archive roll over to a new part at this size
+    public static final long MAX_PART_BYTES = 16L * 1024 * 1024;
+
+    // internal storage left to the app and the system; spooling stops below it
+    private static final long MIN_FREE_BYTES = 256L * 1024 * 1024;
+
+    private static final String SPOOL_DIR = "takeout_spool";
+    private static final String PART_EXTENSION = ".part";
+    private static final String[] STORED_EXTENSIONS = {".gz", ".zip", ".jpg", ".jpeg", ".png", ".webp", ".mp4", ".mov", ".webm", ".mp3", ".ogg"};
+
+    private static final DispatchQueue archiveQueue = new DispatchQueue("TakeoutArchiveQueue");
+
+    private final File file;
+    private final File partFile;
+    private final File exportDir;
+    private final File spoolDir;
+    private final ZipOutputStream zip;
+    private final HashSet<String> entryNames = new HashSet<>();
+    private final byte[] buffer = new byte[StreamingMessageWriter.BUFFER_SIZE];
+    private volatile boolean closed;
+    private volatile boolean loose;
+
+    private ExportArchive(File file, File exportDir, File spoolDir) throws IOException {
+        this.file = file;
+        this.exportDir = exportDir;
+        this.spoolDir = spoolDir;
+        partFile = new File(file.getPath() + PART_EXTENSION);
+        zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), StreamingMessageWriter.BUFFER_SIZE));
+    }
+
+    public static ExportArchive create(File exportDir, String name) throws IOException {
+        if (!exportDir.exists() && !exportDir.mkdirs()) {
+            throw new IOException("Failed to create " + exportDir);
+        }
+        File spoolDir = new File(new File(ApplicationLoader.getFilesDirFixed(), SPOOL_DIR), name);
+        deleteRecursive(spoolDir);
+        if (!spoolDir.mkdirs()) {
+            throw new IOException("Failed to create " + spoolDir);
+        }
+        long free = spoolDir.getUsableSpace();
+        if (free < MIN_FREE_BYTES + MAX_PART_BYTES) {
+            deleteRecursive(spoolDir);
+            throw new IOException("Not enough internal storage to spool an archive, " + free + " bytes free");
+        }
+        return new ExportArchive(new File(exportDir, name + EXTENSION), exportDir, spoolDir);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // exporters write into this instead of their export directory while an archive is open; after
+    // a fail-over it is the loose directory the export would have without an archive
+    public File getDir(String name) {
+        File dir = new File(reserve(0) ? spoolDir : exportDir, name);
+        if (!dir.exists() && !dir.mkdirs()) {
+            FileLog.e("Failed to create export directory " + dir);
+        }
+        return dir;
+    }
+
+    // the directory a spooled one stands for outside the archive, with the same path below the export folder
+    public File getLooseDir(File dir) {
+        String path = dir.getPath();
+        String root = spoolDir.getPath() + File.separator;
+        File looseDir = path.startsWith(root) ? new File(exportDir, path.substring(root.length())) : dir;
+        if (!looseDir.exists() && !looseDir.mkdirs()) {
+            FileLog.e("Failed to create export directory " + looseDir);
+        }
+        return looseDir;
+    }
+
+    // whether a file of this size can still be spooled; if not, the archive fails over to loose files
+    public boolean reserve(long bytes) {
+        if (!loose && spoolDir.getUsableSpace() - bytes < MIN_FREE_BYTES) {
+            failOver();
+        }
+        return !loose;
+    }
+
+    // true once part of the export was written as separate files next to the archive
+    public boolean isLoose() {
+        return loose;
+    }
+
+    public void add(List<File> sources) {
+        for (int i = 0; i < sources.size(); i++) {
+            add(sources.get(i));
+        }
+    }
+
+    // moves a finished spool file into the archive, named by its path below the spool dir
+    public void add(File source) {
+        String path = source.getPath();
+        String root = spoolDir.getPath() + File.separator;
+        if (!path.startsWith(root)) {
+            // written after a fail-over, so it already is where it belongs
+            if (!path.startsWith(exportDir.getPath() + File.separator)) {
+                FileLog.e("Not a spooled export file: " + source);
+            }
+            return;
+        }
+        String entryName = path.substring(root.length()).replace(File.separatorChar, '/');
+        if (closed) {
+            FileLog.e("Export archive already closed, dropping " + entryName);
+            return;
+        }
+        archiveQueue.postRunnable(() -> {
+            try {
+                if (!entryNames.add(entryName)) {
+                    FileLog.e("Duplicate export archive entry " + entryName);
+                    return;
+                }
+                ZipEntry entry = new ZipEntry(entryName);
+                entry.setTime(source.lastModified());
+                zip.setLevel(isCompressed(entryName) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                zip.putNextEntry(entry);
+                try (InputStream in = new FileInputStream(source)) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        zip.write(buffer, 0, n);
+                    }
+                }
+                zip.closeEntry();
+            } catch (IOException e) {
+                FileLog.e("Failed to add " + entryName + " to export archive", e);
+            } finally {
+                if (!source.delete()) {
+                    FileLog.e("Failed to delete spooled " + source);
+                }
+            }
+        });
+    }
+
+    public void close(Runnable onClosed) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        archiveQueue.postRunnable(() -> {
+            try {
+                zip.close();
+                if (!partFile.renameTo(file)) {
+                    FileLog.e("Failed to rename export archive to " + file);
+                }
+            } catch (IOException e) {
+                FileLog.e("Failed to finish export archive " + file, e);
+            }
+            deleteRecursive(spoolDir);
+            if (onClosed != null) {
+                onClosed.run();
+            }
+        });
+    }
+
+    private void failOver() {
+        loose = true;
+        FileLog.e("Internal storage is low, exporting the rest as separate files next to " + file);
+    }
+
+    private static boolean isCompressed(String entryName) {
+        String name = entryName.toLowerCase(Locale.US);
+        for (String extension : STORED_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            FileLog.e("Failed to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.Utilities;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+public class ExportCompression {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_GZIP = 1;
+
+    public static final String MANIFEST_FILE = "export.manifest.json";
+
+    private static final int MAX_PENDING_CHUNKS = 4;
+    private static final int MAX_COMPRESS_QUEUES = 3;
+
+    // a small pool so that chats written at the same time are deflated on different cores; one stream
+    // always stays on the queue it was given, which keeps its members in order
+    private static final DispatchQueue[] compressQueues = new DispatchQueue[Math.max(1, Math.min(MAX_COMPRESS_QUEUES, Runtime.getRuntime().availableProcessors() / 2))];
+    private static final AtomicInteger nextCompressQueue = new AtomicInteger();
+
+    public static String getExtension(int codec) {
+        return codec == CODEC_GZIP ? ".gz" : "";
+    }
+
+    public static int getCodec(String fileName) {
+        return fileName.endsWith(".gz") ? CODEC_GZIP : CODEC_NONE;
+    }
+
+    public static String getName(int codec) {
+        return codec == CODEC_GZIP ? "gzip" : "none";
+    }
+
+    public static OutputStream wrap(OutputStream out, int codec) {
+        return wrap(out, codec, 0);
+    }
+
+    // position is where out already stands in the file, so GzipStream.getPosition can report file offsets
+    static OutputStream wrap(OutputStream out, int codec, long position) {
+        return codec == CODEC_GZIP ? new GzipStream(out, position) : out;
+    }
+
+    public static Writer openWriter(File file, int codec) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(wrap(new FileOutputStream(file), codec), "UTF-8"), StreamingMessageWriter.BUFFER_SIZE);
+    }
+
+    // reads back the first length bytes of a file as written, i.e. decompressed
+    public static InputStream openInput(File file, long length, int codec) throws IOException {
+        return ExportInput.open(file, length, codec == CODEC_GZIP);
+    }
+
+    // a standalone member, byte-identical to what endMember produces for the same text
+    static byte[] compress(String text, int codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = codec == CODEC_GZIP ? new GZIPOutputStream(out) : out) {
+            stream.write(text.getBytes("UTF-8"));
+        }
+        return out.toByteArray();
+    }
+
+    public static synchronized void recordSession(File dir, long takeoutId, int codec) {
+        File file = new File(dir, MANIFEST_FILE);
+        try {
+            JSONObject manifest = null;
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        data.write(buffer, 0, n);
+                    }
+                    manifest = new JSONObject(data.toString("UTF-8"));
+                } catch (Exception e) {
+                    FileLog.e("Failed to read export manifest " + file, e);
+                }
+            }
+            if (manifest == null) {
+                manifest = new JSONObject();
+            }
+            JSONArray sessions = manifest.optJSONArray("sessions");
+            if (sessions == null) {
+                sessions = new JSONArray();
+                manifest.put("sessions", sessions);
+            }
+            JSONObject session = new JSONObject();
+            session.put("takeout_id", takeoutId);
+            session.put("date", System.currentTimeMillis() / 1000);
+            session.put("codec", getName(codec));
+            session.put("extension", getExtension(codec));
+            sessions.put(session);
+
+            File tmp = new File(dir, MANIFEST_FILE + ".tmp");
+            try (FileWriter out = new FileWriter(tmp)) {
+                out.write(manifest.toString(2));
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (Exception e) {
+            FileLog.e("Failed to write export manifest " + file, e);
+        }
+    }
+
+    private static DispatchQueue getCompressQueue() {
+        int index = (nextCompressQueue.getAndIncrement() & Integer.MAX_VALUE) % compressQueues.length;
+        synchronized (compressQueues) {
+            if (compressQueues[index] == null) {
+                compressQueues[index] = new DispatchQueue("TakeoutCompressQueue" + index);
+            }
+            return compressQueues[index];
+        }
+    }
+
+    // Text is deflated on a compress queue so exporter threads only format rows and never wait for it.
+    // flush() only checks for errors; a gzip member ends at endMember, which reports the file position
+    // after it once it is written, so every checkpoint position is a valid cut point.
+    static class GzipStream extends OutputStream {
+
+        private final OutputStream out;
+        private final OutputStream memberSink;
+        private final DispatchQueue queue = getCompressQueue();
+        private final Semaphore pending = new Semaphore(MAX_PENDING_CHUNKS);
+        private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+        private byte[] buffer = new byte[StreamingMessageWriter.BUFFER_SIZE];
+        private int size;
+        private boolean closed;
+        private GZIPOutputStream member;
+        private long position;
+        private volatile long memberEnd;
+        private volatile IOException error;
+
+        GzipStream(OutputStream out, long position) {
+            this.out = out;
+            this.position = position;
+            memberEnd = position;
+            memberSink = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    GzipStream.this.out.write(b);
+                    GzipStream.this.position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    GzipStream.this.out.write(b, off, len);
+                    GzipStream.this.position += len;
+                }
+            };
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                post(false);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) {
+                    post(false);
+                }
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkError();
+        }
+
+        // Ends the current member without waiting for it. onEnd, if set, runs on the compress queue with
+        // the file position after the member, in the order the members were ended, and not at all once
+        // writing has failed.
+        void endMember(Utilities.Callback<Long> onEnd) throws IOException {
+            post(true, onEnd);
+        }
+
+        // the end of the last member written so far; pages that are still being deflated are not counted
+        long getPosition() {
+            return memberEnd;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                post(true, null);
+            } finally {
+                queue.postRunnable(() -> {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                });
+                await();
+            }
+        }
+
+        private void post(boolean endMember) throws IOException {
+            post(endMember, null);
+        }
+
+        private void post(boolean endMember, Utilities.Callback<Long> onEnd) throws IOException {
+            checkError();
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            final byte[] chunk = buffer;
+            final int length = size;
+            byte[] next = freeBuffers.poll();
+            buffer = next != null ? next : new byte[StreamingMessageWriter.BUFFER_SIZE];
+            size = 0;
+            queue.postRunnable(() -> {
+                try {
+                    if (error != null) {
+                        return;
+                    }
+                    if (length > 0) {
+                        if (member == null) {
+                            member = new GZIPOutputStream(memberSink, StreamingMessageWriter.BUFFER_SIZE);
+                        }
+                        member.write(chunk, 0, length);
+                    }
+                    if (endMember) {
+                        if (member != null) {
+                            // closing the member releases its deflater; memberSink leaves out open
+                            member.close();
+                            member = null;
+                            out.flush();
+                        }
+                        memberEnd = position;
+                        if (onEnd != null) {
+                            onEnd.run(position);
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    freeBuffers.offer(chunk);
+                    pending.release();
+                }
+            });
+        }
+
+        private void await() throws IOException {
+            CountDownLatch latch = new CountDownLatch(1);
+            queue.postRunnable(latch::countDown);
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            checkError();
+        }
+
+        private void checkError() throws IOException {
+            IOException e = error;
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+}
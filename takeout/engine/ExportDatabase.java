@@ -0,0 +1,410 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLiteException;
+import org.telegram.SQLite.SQLitePreparedStatement;
+import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.Utilities;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import plus.takeout.TL_takeout;
+
+// One SQLite file per export directory; inserts are idempotent, so resumed and delta runs
+// keep filling the same database. databaseQueue is the only thread that touches the connection.
+public class ExportDatabase {
+
+    public static final String FILE_NAME = "export.db";
+
+    private static final int SCHEMA_VERSION = 1;
+
+    private static final DispatchQueue databaseQueue = new DispatchQueue("TakeoutDatabaseQueue");
+
+    public static class SearchResult {
+        public long peerId;
+        public int id;
+        public int date;
+        public long fromId;
+        public String message;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private final int account;
+    private final File file;
+    private final LongObjectMap<Boolean> writtenPeers = new LongObjectMap<>();
+    private SQLiteDatabase database;
+    private SQLitePreparedStatement insertMessage;
+    private SQLitePreparedStatement insertUser;
+    private SQLitePreparedStatement insertChat;
+    private boolean fts5;
+    private volatile boolean closed;
+
+    private ExportDatabase(int account, File file) {
+        this.account = account;
+        this.file = file;
+    }
+
+    public static ExportDatabase open(int account, File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        ExportDatabase exportDatabase = new ExportDatabase(account, new File(dir, FILE_NAME));
+        try {
+            exportDatabase.runSync(exportDatabase::openDatabase);
+        } catch (IOException e) {
+            exportDatabase.close(null);
+            throw e;
+        }
+        return exportDatabase;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void openDatabase() throws SQLiteException {
+        database = new SQLiteDatabase(file.getPath());
+        database.executeFast("PRAGMA synchronous = NORMAL").stepThis().dispose();
+        database.executeFast("PRAGMA temp_store = MEMORY").stepThis().dispose();
+        Integer version = database.executeInt("PRAGMA user_version");
+        if (version == null || version == 0) {
+            createSchema();
+        } else {
+            SQLiteCursor cursor = database.queryFinalized("SELECT sql FROM sqlite_master WHERE name = 'messages_fts'");
+            if (cursor.next()) {
+                String sql = cursor.stringValue(0);
+                fts5 = sql != null && sql.toLowerCase(Locale.US).contains("fts5");
+            }
+            cursor.dispose();
+        }
+        insertMessage = database.executeFast("INSERT OR IGNORE INTO messages(peer_id, id, date, from_id, message) VALUES(?, ?, ?, ?, ?)");
+        insertUser = database.executeFast("REPLACE INTO users(id, first_name, last_name, username, phone) VALUES(?, ?, ?, ?, ?)");
+        insertChat = database.executeFast("REPLACE INTO chats(id, title, username, type) VALUES(?, ?, ?, ?)");
+    }
+
+    private void createSchema() throws SQLiteException {
+        database.beginTransaction();
+        try {
+            // peer_id and from_id use TakeoutJournal.getPeerKey: user id, or minus the chat/channel id
+            database.executeFast("CREATE TABLE IF NOT EXISTS messages(peer_id INTEGER, id INTEGER, date INTEGER, from_id INTEGER, message TEXT)").stepThis().dispose();
+            database.executeFast("CREATE UNIQUE INDEX IF NOT EXISTS messages_peer_id ON messages(peer_id, id)").stepThis().dispose();
+            database.executeFast("CREATE INDEX IF NOT EXISTS messages_date ON messages(date)").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS users(id INTEGER PRIMARY KEY, first_name TEXT, last_name TEXT, username TEXT, phone TEXT)").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS chats(id INTEGER PRIMARY KEY, title TEXT, username TEXT, type TEXT)").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS contacts(phone TEXT, first_name TEXT, last_name TEXT, date INTEGER, UNIQUE(phone, first_name, last_name))").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS stories(id INTEGER PRIMARY KEY, date INTEGER, caption TEXT, media_type TEXT, file_name TEXT)").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS profile_photos(id INTEGER PRIMARY KEY, date INTEGER, size INTEGER, dimensions TEXT, file_name TEXT)").stepThis().dispose();
+            try {
+                database.executeFast("CREATE VIRTUAL TABLE messages_fts USING fts5(message, content='messages', tokenize='unicode61')").stepThis().dispose();
+                fts5 = true;
+            } catch (SQLiteException e) {
+                FileLog.e("FTS5 is not available, indexing messages with FTS4", e);
+                database.executeFast("CREATE VIRTUAL TABLE messages_fts USING fts4(content='messages', message, tokenize=unicode61)").stepThis().dispose();
+            }
+            // INSERT OR IGNORE skips the trigger, so a message is indexed exactly once
+            database.executeFast("CREATE TRIGGER messages_ai AFTER INSERT ON messages BEGIN INSERT INTO messages_fts(rowid, message) VALUES(new.rowid, new.message); END").stepThis().dispose();
+            database.executeFast("PRAGMA user_version = " + SCHEMA_VERSION).stepThis().dispose();
+            database.commitTransaction();
+        } catch (Exception e) {
+            rollbackTransaction();
+            throw e;
+        }
+    }
+
+    // blocks until the page is committed, so a journal checkpoint never runs ahead of the database
+    public void insertMessages(long peerKey, List<TLRPC.Message> messages) throws IOException {
+        if (closed || messages.isEmpty()) {
+            return;
+        }
+        runSync(() -> {
+            if (database == null) {
+                return;
+            }
+            database.beginTransaction();
+            try {
+                putPeer(peerKey);
+                for (int i = 0, n = messages.size(); i < n; i++) {
+                    TLRPC.Message msg = messages.get(i);
+                    insertMessage.requery();
+                    insertMessage.bindLong(1, peerKey);
+                    insertMessage.bindInteger(2, msg.id);
+                    insertMessage.bindInteger(3, msg.date);
+                    if (msg.from_id != null) {
+                        long fromId = TakeoutJournal.getPeerKey(msg.from_id);
+                        putPeer(fromId);
+                        insertMessage.bindLong(4, fromId);
+                    } else {
+                        insertMessage.bindNull(4);
+                    }
+                    bindStringOrNull(insertMessage, 5, msg.message);
+                    insertMessage.step();
+                }
+                database.commitTransaction();
+            } catch (Exception e) {
+                rollbackTransaction();
+                // the rolled back page may have carried the first rows of some peers
+                writtenPeers.clear();
+                throw e;
+            }
+        });
+    }
+
+    public void insertContacts(List<TL_takeout.TL_savedContact> contacts) {
+        post(() -> {
+            SQLitePreparedStatement state = database.executeFast("REPLACE INTO contacts(phone, first_name, last_name, date) VALUES(?, ?, ?, ?)");
+            database.beginTransaction();
+            try {
+                for (int i = 0, n = contacts.size(); i < n; i++) {
+                    TL_takeout.TL_savedContact contact = contacts.get(i);
+                    state.requery();
+                    bindStringOrNull(state, 1, contact.phone);
+                    bindStringOrNull(state, 2, contact.first_name);
+                    bindStringOrNull(state, 3, contact.last_name);
+                    state.bindInteger(4, contact.date);
+                    state.step();
+                }
+                database.commitTransaction();
+            } catch (Exception e) {
+                rollbackTransaction();
+                throw e;
+            } finally {
+                state.dispose();
+            }
+        });
+    }
+
+    // rows as built for the story metadata file: id, date, caption, media_type, file_name
+    public void insertStories(List<Map<String, Object>> metadata) {
+        post(() -> {
+            SQLitePreparedStatement state = database.executeFast("REPLACE INTO stories(id, date, caption, media_type, file_name) VALUES(?, ?, ?, ?, ?)");
+            database.beginTransaction();
+            try {
+                for (int i = 0, n = metadata.size(); i < n; i++) {
+                    Map<String, Object> entry = metadata.get(i);
+                    state.requery();
+                    state.bindLong(1, ((Number) entry.get("id")).longValue());
+                    state.bindLong(2, getUnixTime(entry.get("date")));
+                    bindStringOrNull(state, 3, (String) entry.get("caption"));
+                    bindStringOrNull(state, 4, (String) entry.get("media_type"));
+                    bindStringOrNull(state, 5, (String) entry.get("file_name"));
+                    state.step();
+                }
+                database.commitTransaction();
+            } catch (Exception e) {
+                rollbackTransaction();
+                throw e;
+            } finally {
+                state.dispose();
+            }
+        });
+    }
+
+    // rows as built for the profile picture metadata file: id, date, size, dimensions, file_name
+    public void insertProfilePhotos(List<Map<String, Object>> metadata) {
+        post(() -> {
+            SQLitePreparedStatement state = database.executeFast("REPLACE INTO profile_photos(id, date, size, dimensions, file_name) VALUES(?, ?, ?, ?, ?)");
+            database.beginTransaction();
+            try {
+                for (int i = 0, n = metadata.size(); i < n; i++) {
+                    Map<String, Object> entry = metadata.get(i);
+                    state.requery();
+                    state.bindLong(1, ((Number) entry.get("id")).longValue());
+                    state.bindLong(2, getUnixTime(entry.get("date")));
+                    state.bindLong(3, ((Number) entry.get("size")).longValue());
+                    bindStringOrNull(state, 4, (String) entry.get("dimensions"));
+                    bindStringOrNull(state, 5, (String) entry.get("file_name"));
+                    state.step();
+                }
+                database.commitTransaction();
+            } catch (Exception e) {
+                rollbackTransaction();
+                throw e;
+            } finally {
+                state.dispose();
+            }
+        });
+    }
+
+    // newest first; every word of the query is matched as a prefix
+    public void search(String query, int limit, Utilities.Callback<ArrayList<SearchResult>> callback) {
+        databaseQueue.postRunnable(() -> {
+            ArrayList<SearchResult> results = new ArrayList<>();
+            String match = buildMatchQuery(query);
+            if (database != null && match != null) {
+                try {
+                    SQLiteCursor cursor = database.queryFinalized("SELECT m.peer_id, m.id, m.date, m.from_id, m.message FROM messages_fts JOIN messages m ON m.rowid = messages_fts.rowid WHERE messages_fts MATCH ? ORDER BY m.date DESC LIMIT " + limit, match);
+                    while (cursor.next()) {
+                        SearchResult result = new SearchResult();
+                        result.peerId = cursor.longValue(0);
+                        result.id = cursor.intValue(1);
+                        result.date = cursor.intValue(2);
+                        result.fromId = cursor.isNull(3) ? 0 : cursor.longValue(3);
+                        result.message = cursor.stringValue(4);
+                        results.add(result);
+                    }
+                    cursor.dispose();
+                } catch (Exception e) {
+                    FileLog.e("Export search failed", e);
+                }
+            }
+            AndroidUtilities.runOnUIThread(() -> callback.run(results));
+        });
+    }
+
+    public void close(Runnable onClosed) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        databaseQueue.postRunnable(() -> {
+            if (database != null) {
+                if (insertMessage != null) {
+                    insertMessage.dispose();
+                    insertUser.dispose();
+                    insertChat.dispose();
+                }
+                database.close();
+                database = null;
+            }
+            if (onClosed != null) {
+                onClosed.run();
+            }
+        });
+    }
+
+    private void putPeer(long peerKey) throws SQLiteException {
+        if (peerKey == 0 || writtenPeers.containsKey(peerKey)) {
+            return;
+        }
+        PeerDirectory directory = PeerDirectory.getInstance(account);
+        if (peerKey > 0) {
+            TLRPC.User user = directory.getUser(peerKey);
+            if (user == null) {
+                return;
+            }
+            insertUser.requery();
+            insertUser.bindLong(1, peerKey);
+            bindStringOrNull(insertUser, 2, user.first_name);
+            bindStringOrNull(insertUser, 3, user.last_name);
+            bindStringOrNull(insertUser, 4, user.username);
+            bindStringOrNull(insertUser, 5, user.phone);
+            insertUser.step();
+        } else {
+            TLRPC.Chat chat = directory.getChat(-peerKey);
+            if (chat == null) {
+                return;
+            }
+            insertChat.requery();
+            insertChat.bindLong(1, peerKey);
+            bindStringOrNull(insertChat, 2, chat.title);
+            bindStringOrNull(insertChat, 3, chat.username);
+            insertChat.bindString(4, chat.broadcast ? "channel" : "group");
+            insertChat.step();
+        }
+        writtenPeers.put(peerKey, Boolean.TRUE);
+    }
+
+    private String buildMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            String quoted = word.replace("\"", "\"\"");
+            // FTS5 puts the prefix marker after the phrase, FTS4 inside it
+            match.append('"').append(quoted).append(fts5 ? "\"*" : "*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // SQLiteDatabase has no rollback: ROLLBACK ends the transaction and commitTransaction only clears its flag
+    private void rollbackTransaction() {
+        try {
+            database.executeFast("ROLLBACK").stepThis().dispose();
+        } catch (SQLiteException e) {
+            FileLog.e("Failed to roll back export database " + file, e);
+        }
+        database.commitTransaction();
+    }
+
+    private static void bindStringOrNull(SQLitePreparedStatement state, int index, String value) throws SQLiteException {
+        if (value != null) {
+            state.bindString(index, value);
+        } else {
+            state.bindNull(index);
+        }
+    }
+
+    private static long getUnixTime(Object date) {
+        return date instanceof Date ? ((Date) date).getTime() / 1000 : 0;
+    }
+
+    private void post(Task task) {
+        if (closed) {
+            return;
+        }
+        databaseQueue.postRunnable(() -> {
+            if (database == null) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                FileLog.e("Failed to write export database " + file, e);
+            }
+        });
+    }
+
+    private void runSync(Task task) throws IOException {
+        Exception[] error = new Exception[1];
+        CountDownLatch latch = new CountDownLatch(1);
+        databaseQueue.postRunnable(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                error[0] = e;
+            } finally {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (error[0] instanceof IOException) {
+            throw (IOException) error[0];
+        } else if (error[0] != null) {
+            throw new IOException("Failed to write export database " + file, error[0]);
+        }
+    }
+}
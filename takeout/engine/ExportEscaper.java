@@ -0,0 +1,160 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public final class ExportEscaper {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+    // chars that make a CSV field quoted, by low byte; a char that only shares the low byte costs an exact check
+    private static final byte[] CSV_SPECIAL = new byte[256];
+
+    static {
+        CSV_SPECIAL[','] = 1;
+        CSV_SPECIAL['"'] = 1;
+        CSV_SPECIAL['\n'] = 1;
+        CSV_SPECIAL['\r'] = 1;
+    }
+
+    private ExportEscaper() {
+    }
+
+    public static void appendCsvField(Appendable out, String field) throws IOException {
+        if (field == null) {
+            return;
+        }
+        int length = field.length();
+        // one branch-free pass flags fields that may need quoting or repair; those are checked exactly below
+        int max = 0;
+        int special = 0;
+        for (int i = 0; i < length; i++) {
+            char c = field.charAt(i);
+            max = Math.max(max, c);
+            special |= CSV_SPECIAL[c & 0xFF];
+        }
+        if (special == 0 && max < Character.MIN_SURROGATE) {
+            appendRun(out, field, 0, length);
+            return;
+        }
+        boolean quote = special != 0
+                && (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0);
+        int lone = max >= Character.MIN_SURROGATE ? indexOfLoneSurrogate(field, 0) : -1;
+        if (quote) {
+            out.append('"');
+        }
+        int runStart = 0;
+        int nextQuote = quote ? field.indexOf('"') : -1;
+        while (nextQuote >= 0 || lone >= 0) {
+            if (lone < 0 || (nextQuote >= 0 && nextQuote < lone)) {
+                appendRun(out, field, runStart, nextQuote + 1);
+                out.append('"');
+                runStart = nextQuote + 1;
+                nextQuote = field.indexOf('"', runStart);
+            } else {
+                appendRun(out, field, runStart, lone);
+                out.append(REPLACEMENT_CHAR);
+                runStart = lone + 1;
+                lone = indexOfLoneSurrogate(field, runStart);
+            }
+        }
+        appendRun(out, field, runStart, length);
+        if (quote) {
+            out.append('"');
+        }
+    }
+
+    public static void appendJsonString(Appendable out, CharSequence str) throws IOException {
+        if (str == null) {
+            return;
+        }
+        int length = str.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (!needsJsonAttention(c)) {
+                continue;
+            }
+            char escape;
+            switch (c) {
+                case '"': escape = '"'; break;
+                case '\\': escape = '\\'; break;
+                case '\b': escape = 'b'; break;
+                case '\f': escape = 'f'; break;
+                case '\n': escape = 'n'; break;
+                case '\r': escape = 'r'; break;
+                case '\t': escape = 't'; break;
+                default: escape = 0; break;
+            }
+            if (escape != 0) {
+                appendRun(out, str, runStart, i);
+                out.append('\\').append(escape);
+                runStart = i + 1;
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                appendRun(out, str, runStart, i);
+                appendUnicodeEscape(out, c);
+                runStart = i + 1;
+            } else if (Character.isSurrogate(c)) {
+                if (isPairAt(str, i)) {
+                    i++;
+                } else {
+                    appendRun(out, str, runStart, i);
+                    appendUnicodeEscape(out, REPLACEMENT_CHAR);
+                    runStart = i + 1;
+                }
+            }
+        }
+        appendRun(out, str, runStart, length);
+    }
+
+    private static boolean needsJsonAttention(char c) {
+        return c < '\u2028' ? c < 0x20 || c == '"' || c == '\\' : c <= '\u2029' || Character.isSurrogate(c);
+    }
+
+    // the first unpaired surrogate from index on; valid pairs are stepped over
+    private static int indexOfLoneSurrogate(String s, int index) {
+        for (int i = index, length = s.length(); i < length; i++) {
+            if (Character.isSurrogate(s.charAt(i))) {
+                if (!isPairAt(s, i)) {
+                    return i;
+                }
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isPairAt(CharSequence s, int index) {
+        return Character.isHighSurrogate(s.charAt(index))
+                && index + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(index + 1));
+    }
+
+    private static void appendUnicodeEscape(Appendable out, char c) throws IOException {
+        out.append('\\').append('u')
+                .append(HEX[(c >> 12) & 0xF])
+                .append(HEX[(c >> 8) & 0xF])
+                .append(HEX[(c >> 4) & 0xF])
+                .append(HEX[c & 0xF]);
+    }
+
+    private static void appendRun(Appendable out, CharSequence s, int start, int end) throws IOException {
+        if (start >= end) {
+            return;
+        }
+        // Writer.append(CharSequence, int, int) goes through subSequence(), which copies
+        if (out instanceof Writer && s instanceof String) {
+            ((Writer) out).write((String) s, start, end - start);
+        } else {
+            out.append(s, start, end);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+// Reads export files back, decompressed. Like ColumnarMessageReader it needs nothing but java.io and
+// java.util.zip, so the two can be copied out to read exports off-device.
+public final class ExportInput {
+
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ExportInput() {
+    }
+
+    public static InputStream open(File file) throws IOException {
+        return open(file, file.length(), file.getName().endsWith(GZIP_EXTENSION));
+    }
+
+    // reads back the first length bytes of a file as written; GZIPInputStream reads on across gzip members
+    public static InputStream open(File file, long length, boolean gzip) throws IOException {
+        InputStream in = new LimitedInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), length);
+        if (!gzip || length == 0) {
+            return in;
+        }
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+public class ExportProgress {
+
+    public final int category;
+    public final int completed;
+    public final int total;
+    public final long messages;
+    public final long bytes;
+    public final long elapsedMs;
+    public final float fraction;
+
+    ExportProgress(int category, int completed, int total, long messages, long bytes, long elapsedMs, float fraction) {
+        this.category = category;
+        this.completed = completed;
+        this.total = total;
+        this.messages = messages;
+        this.bytes = bytes;
+        this.elapsedMs = elapsedMs;
+        this.fraction = fraction;
+    }
+
+    public float getMessagesPerSecond() {
+        return elapsedMs > 0 ? messages * 1000f / elapsedMs : 0;
+    }
+
+    public float getBytesPerSecond() {
+        return elapsedMs > 0 ? bytes * 1000f / elapsedMs : 0;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.UserConfig;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExportProgressBus {
+
+    public static final int CATEGORY_CONTACTS = 0;
+    public static final int CATEGORY_PERSONAL_INFO = 1;
+    public static final int CATEGORY_STORIES = 2;
+    public static final int CATEGORY_PROFILE_PICTURES = 3;
+    public static final int CATEGORY_SAVED_MESSAGES = 4;
+    public static final int CATEGORY_PRIVATE_CHATS = 5;
+    public static final int CATEGORY_GROUPS = 6;
+    public static final int CATEGORY_CHANNELS = 7;
+    public static final int CATEGORY_FILES = 8;
+    public static final int CATEGORY_COUNT = 9;
+
+    private static final int DIRTY_STATUS = 1;
+    private static final int DIRTY_ITEM = 2;
+    private static final int DIRTY_PROGRESS = 4;
+    private static final int DIRTY_FINISHED = 8;
+
+    public interface Listener {
+        void onStatus(int category, String status, int colorKey);
+        void onItem(int category, int order, String name, int total);
+        void onProgress(ExportProgress progress);
+        void onFinished(int category, String status, int colorKey);
+    }
+
+    public interface Scheduler {
+        void schedule(Runnable runnable, long delayMs);
+    }
+
+    private static volatile ExportProgressBus[] Instance = new ExportProgressBus[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static ExportProgressBus getInstance(int num) {
+        ExportProgressBus localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (ExportProgressBus.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new ExportProgressBus(AndroidUtilities::runOnUIThread, getFrameInterval());
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private static class Category {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger fractionBits = new AtomicInteger();
+        volatile long startTime = System.nanoTime();
+        volatile long finishTime;
+        final AtomicInteger itemOrder = new AtomicInteger();
+        final AtomicInteger itemTotal = new AtomicInteger();
+        volatile String itemName;
+        volatile String status;
+        volatile int statusColorKey;
+        volatile String finishStatus;
+        volatile int finishColorKey;
+    }
+
+    private final Category[] categories = new Category[CATEGORY_COUNT];
+    private final AtomicIntegerArray dirty = new AtomicIntegerArray(CATEGORY_COUNT);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Runnable flushRunnable = this::flush;
+    private final Scheduler scheduler;
+    private final long intervalMs;
+    private volatile long lastFlushTime;
+
+    public ExportProgressBus(Scheduler scheduler, long intervalMs) {
+        this.scheduler = scheduler;
+        this.intervalMs = intervalMs;
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            categories[i] = new Category();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void reset(int category) {
+        Category state = categories[category];
+        state.completed.set(0);
+        state.total.set(0);
+        state.messages.set(0);
+        state.bytes.set(0);
+        state.fractionBits.set(0);
+        state.startTime = System.nanoTime();
+        state.finishTime = 0;
+        state.itemOrder.set(0);
+        state.itemTotal.set(0);
+        state.itemName = null;
+        dirty.set(category, 0);
+    }
+
+    public void setStatus(int category, String status, int colorKey) {
+        Category state = categories[category];
+        state.status = status;
+        state.statusColorKey = colorKey;
+        markDirty(category, DIRTY_STATUS, false);
+    }
+
+    public void setItem(int category, int order, String name, int total) {
+        Category state = categories[category];
+        state.itemName = name;
+        state.itemOrder.set(order);
+        state.itemTotal.set(total);
+        markDirty(category, DIRTY_ITEM, false);
+    }
+
+    public void addTotal(int category, int delta) {
+        categories[category].total.addAndGet(delta);
+        markDirty(category, DIRTY_PROGRESS, false);
+    }
+
+    public void addCompleted(int category, int delta) {
+        categories[category].completed.addAndGet(delta);
+        markDirty(category, DIRTY_PROGRESS, false);
+    }
+
+    public void addMessages(int category, int delta) {
+        categories[category].messages.addAndGet(delta);
+        markDirty(category, DIRTY_PROGRESS, false);
+    }
+
+    public void addBytes(int category, long delta) {
+        categories[category].bytes.addAndGet(delta);
+        markDirty(category, DIRTY_PROGRESS, false);
+    }
+
+    public void finish(int category, String status, int colorKey) {
+        Category state = categories[category];
+        state.finishStatus = status;
+        state.finishColorKey = colorKey;
+        state.finishTime = System.nanoTime();
+        markDirty(category, DIRTY_FINISHED, true);
+    }
+
+    public int getCompleted(int category) {
+        return categories[category].completed.get();
+    }
+
+    public int getTotal(int category) {
+        return categories[category].total.get();
+    }
+
+    public long getMessages(int category) {
+        return categories[category].messages.get();
+    }
+
+    public ExportProgress getProgress(int category) {
+        Category state = categories[category];
+        int total = state.total.get();
+        int completed = state.completed.get();
+        if (total > 0) {
+            completed = Math.min(completed, total);
+        }
+        float fraction = total > 0 ? (float) completed / total : 0f;
+        // totals keep growing while peers are discovered; never let the reported fraction move backwards.
+        // Non-negative float bit patterns order the same way as the floats themselves.
+        fraction = Float.intBitsToFloat(state.fractionBits.accumulateAndGet(Float.floatToIntBits(fraction), Math::max));
+        long end = state.finishTime != 0 ? state.finishTime : System.nanoTime();
+        return new ExportProgress(category, completed, total, state.messages.get(), state.bytes.get(), (end - state.startTime) / 1000000, fraction);
+    }
+
+    private void markDirty(int category, int flag, boolean immediate) {
+        int flags;
+        do {
+            flags = dirty.get(category);
+        } while (!dirty.compareAndSet(category, flags, flags | flag));
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            long delay = immediate ? 0 : lastFlushTime + intervalMs - System.nanoTime() / 1000000;
+            scheduler.schedule(flushRunnable, Math.max(0, delay));
+        } else if (immediate) {
+            // terminal events must not wait behind a deferred flush
+            scheduler.schedule(flushRunnable, 0);
+        }
+    }
+
+    public void flush() {
+        flushScheduled.set(false);
+        lastFlushTime = System.nanoTime() / 1000000;
+        for (int category = 0; category < CATEGORY_COUNT; category++) {
+            int flags = dirty.getAndSet(category, 0);
+            if (flags == 0) {
+                continue;
+            }
+            Category state = categories[category];
+            ExportProgress progress = (flags & DIRTY_PROGRESS) != 0 ? getProgress(category) : null;
+            for (Listener listener : listeners) {
+                if ((flags & DIRTY_STATUS) != 0) {
+                    listener.onStatus(category, state.status, state.statusColorKey);
+                }
+                if ((flags & DIRTY_ITEM) != 0) {
+                    listener.onItem(category, state.itemOrder.get(), state.itemName, state.itemTotal.get());
+                }
+                if ((flags & DIRTY_PROGRESS) != 0) {
+                    listener.onProgress(progress);
+                }
+                if ((flags & DIRTY_FINISHED) != 0) {
+                    listener.onFinished(category, state.finishStatus, state.finishColorKey);
+                }
+            }
+        }
+    }
+
+    private static long getFrameInterval() {
+        return (long) (1000 / Math.max(1f, AndroidUtilities.screenRefreshRate));
+    }
+}
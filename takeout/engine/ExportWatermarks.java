@@ -0,0 +1,172 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.UserConfig;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class ExportWatermarks {
+
+    private static final String WATERMARKS_DIR = "takeout";
+    private static final String WATERMARKS_FILE_PREFIX = "watermarks_";
+
+    private static volatile ExportWatermarks[] Instance = new ExportWatermarks[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static ExportWatermarks getInstance(int num) {
+        ExportWatermarks localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (ExportWatermarks.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new ExportWatermarks(num);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public static class Watermark {
+        public int maxId;
+        public String fileName;
+    }
+
+    public static class Batch {
+
+        private final HashMap<Long, Watermark> advanced = new HashMap<>();
+        private final HashSet<Long> held = new HashSet<>();
+        private final HashSet<Long> appendClaims = new HashSet<>();
+        private boolean committed;
+
+        public synchronized void advance(long peerKey, int maxId, String fileName) {
+            Watermark watermark = advanced.get(peerKey);
+            if (watermark == null) {
+                watermark = new Watermark();
+                advanced.put(peerKey, watermark);
+            }
+            if (maxId >= watermark.maxId) {
+                watermark.maxId = maxId;
+                if (fileName != null) {
+                    watermark.fileName = fileName;
+                }
+            }
+        }
+
+        public synchronized void hold(long peerKey) {
+            held.add(peerKey);
+        }
+
+        public synchronized boolean claimAppend(long peerKey) {
+            return appendClaims.add(peerKey);
+        }
+    }
+
+    private final File file;
+    private final HashMap<Long, Watermark> watermarks = new HashMap<>();
+    private boolean loaded;
+
+    private ExportWatermarks(int account) {
+        File dir = new File(ApplicationLoader.getFilesDirFixed(), WATERMARKS_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            FileLog.e("Failed to create watermark directory: " + dir);
+        }
+        file = new File(dir, WATERMARKS_FILE_PREFIX + account + ".txt");
+    }
+
+    public synchronized Watermark get(long peerKey) {
+        load();
+        return watermarks.get(peerKey);
+    }
+
+    public void commit(Batch batch) {
+        synchronized (batch) {
+            if (batch.committed) {
+                return;
+            }
+            batch.committed = true;
+            synchronized (this) {
+                load();
+                for (Map.Entry<Long, Watermark> entry : batch.advanced.entrySet()) {
+                    if (batch.held.contains(entry.getKey())) {
+                        continue;
+                    }
+                    Watermark current = watermarks.get(entry.getKey());
+                    if (current == null || entry.getValue().maxId >= current.maxId) {
+                        Watermark merged = new Watermark();
+                        merged.maxId = entry.getValue().maxId;
+                        merged.fileName = entry.getValue().fileName != null ? entry.getValue().fileName : current != null ? current.fileName : null;
+                        watermarks.put(entry.getKey(), merged);
+                    }
+                }
+                save();
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2) {
+                    continue;
+                }
+                try {
+                    Watermark watermark = new Watermark();
+                    watermark.maxId = Integer.parseInt(parts[1]);
+                    watermark.fileName = parts.length == 3 && !parts[2].isEmpty() ? parts[2] : null;
+                    watermarks.put(Long.parseLong(parts[0]), watermark);
+                } catch (NumberFormatException e) {
+                    FileLog.e("Skipping malformed watermark: " + line);
+                }
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<Long, Watermark> entry : watermarks.entrySet()) {
+                writer.write(Long.toString(entry.getKey()));
+                writer.write(' ');
+                writer.write(Integer.toString(entry.getValue().maxId));
+                writer.write(' ');
+                if (entry.getValue().fileName != null) {
+                    writer.write(entry.getValue().fileName);
+                }
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            FileLog.e("Failed to replace watermark file " + file);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLoader;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.ImageLocation;
+import org.telegram.messenger.Utilities;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import plus.takeout.TL_takeout;
+
+// Pages through every document the takeout session can see, newest first, and downloads the ones
+// that fit under file_max_size. The next page is only requested once fewer than a page of downloads
+// is still queued, so memory stays flat however many files the account has.
+public class FileExporter {
+
+    public static final int PAGE_LIMIT = 100;
+    public static final String MANIFEST_NAME = "manifest";
+
+    private static final String CSV_HEADER = "Message ID,Peer ID,Date,Document ID,File Name,MIME Type,Size,Status\n";
+    private static final String STATUS_SAVED = "saved";
+    private static final String STATUS_DUPLICATE = "duplicate";
+    private static final String STATUS_TOO_LARGE = "too_large";
+    private static final String STATUS_FAILED = "failed";
+    private static final String DEFAULT_FILE_NAME = "document";
+
+    private static final DispatchQueue exportQueue = new DispatchQueue("TakeoutFilesQueue");
+
+    private final int account;
+    private final long takeoutId;
+    private final long maxFileSize;
+    private final MediaDownloader downloader;
+    private final MediaDownloader.RetryBudget retryBudget = new MediaDownloader.RetryBudget();
+    // document id -> file name, so a file forwarded into several chats is only downloaded once
+    private final LongObjectMap<String> documentFiles = new LongObjectMap<>();
+
+    private File folder;
+    private boolean csv;
+    private ExportArchive archive;
+    private Utilities.Callback2<Boolean, String> onFinished;
+    private File manifestFile;
+    private Writer manifest;
+    private int offsetId;
+    private int pendingDownloads;
+    private boolean waitingForDownloads;
+    private boolean searchDone;
+    private String searchError;
+    private int entries;
+    private int savedFiles;
+    private int failedFiles;
+
+    public FileExporter(int account, long takeoutId, long maxFileSize) {
+        this.account = account;
+        this.takeoutId = takeoutId;
+        this.maxFileSize = maxFileSize;
+        downloader = MediaDownloader.getInstance(account);
+    }
+
+    // onFinished gets whether the export completed and a status line, on the export queue
+    public void export(File folder, boolean csv, int compression, ExportArchive archive, Utilities.Callback2<Boolean, String> onFinished) {
+        exportQueue.postRunnable(() -> {
+            this.folder = folder;
+            this.csv = csv;
+            this.archive = archive;
+            this.onFinished = onFinished;
+            manifestFile = new File(folder, MANIFEST_NAME + (csv ? ".csv" : ".json") + ExportCompression.getExtension(compression));
+            try {
+                manifest = ExportCompression.openWriter(manifestFile, compression);
+                manifest.write(csv ? CSV_HEADER : "[\n");
+            } catch (IOException e) {
+                FileLog.e("Failed to create file manifest", e);
+                onFinished.run(false, "Export failed");
+                return;
+            }
+            requestPage();
+        });
+    }
+
+    private void requestPage() {
+        TLRPC.TL_messages_search searchRequest = new TLRPC.TL_messages_search();
+        searchRequest.peer = new TLRPC.TL_inputPeerEmpty();
+        searchRequest.q = "";
+        searchRequest.filter = new TLRPC.TL_inputMessagesFilterDocument();
+        searchRequest.offset_id = offsetId;
+        searchRequest.add_offset = 0;
+        searchRequest.limit = PAGE_LIMIT;
+
+        TL_takeout.TL_invokeWithTakeout invokeRequest = new TL_takeout.TL_invokeWithTakeout();
+        invokeRequest.takeout_id = takeoutId;
+        invokeRequest.query = searchRequest;
+
+        TakeoutRequestLimiter.getInstance(account).sendRequest(invokeRequest, (response, error) -> exportQueue.postRunnable(() -> {
+            if (error != null) {
+                FileLog.e("File search failed: " + error.text);
+                searchError = error.text;
+                searchDone = true;
+                finishIfDone();
+                return;
+            }
+            if (!(response instanceof TLRPC.messages_Messages)) {
+                FileLog.e("Invalid file search response type");
+                searchDone = true;
+                finishIfDone();
+                return;
+            }
+
+            TLRPC.messages_Messages res = (TLRPC.messages_Messages) response;
+            PeerDirectory directory = PeerDirectory.getInstance(account);
+            directory.putUsers(res.users);
+            directory.putChats(res.chats);
+
+            int previousOffsetId = offsetId;
+            int documents = 0;
+            for (TLRPC.Message message : res.messages) {
+                if (message.media != null && message.media.document != null) {
+                    documents++;
+                }
+            }
+            ExportProgressBus.getInstance(account).addTotal(ExportProgressBus.CATEGORY_FILES, documents);
+            for (TLRPC.Message message : res.messages) {
+                offsetId = message.id;
+                if (message.media != null && message.media.document != null) {
+                    exportDocument(message, message.media.document);
+                }
+            }
+
+            // a short page, or one that did not move the offset, is the last one
+            if (res.messages.size() < PAGE_LIMIT || (previousOffsetId != 0 && offsetId >= previousOffsetId)) {
+                searchDone = true;
+                finishIfDone();
+            } else if (pendingDownloads < PAGE_LIMIT) {
+                requestPage();
+            } else {
+                waitingForDownloads = true;
+            }
+        }));
+    }
+
+    private void exportDocument(TLRPC.Message message, TLRPC.Document document) {
+        if (maxFileSize > 0 && document.size > maxFileSize) {
+            writeEntry(message, document, "", STATUS_TOO_LARGE);
+            return;
+        }
+        String existing = documentFiles.get(document.id);
+        if (existing != null) {
+            writeEntry(message, document, existing, STATUS_DUPLICATE);
+            return;
+        }
+        String fileName = getFileName(document);
+        documentFiles.put(document.id, fileName);
+        File dir = folder;
+        if (archive != null && !archive.reserve(document.size)) {
+            // too large to spool; the archive failed over and the file goes next to it
+            dir = archive.getLooseDir(folder);
+        }
+        File destFile = new File(dir, fileName);
+        if (destFile.exists()) {
+            writeEntry(message, document, fileName, STATUS_SAVED);
+            savedFiles++;
+            return;
+        }
+
+        pendingDownloads++;
+        downloader.download(ImageLocation.getForDocument(document), document, dir, fileName, retryBudget, finalFile -> exportQueue.postRunnable(() -> {
+            pendingDownloads--;
+            if (finalFile != null && finalFile.exists()) {
+                ExportProgressBus.getInstance(account).addBytes(ExportProgressBus.CATEGORY_FILES, finalFile.length());
+                if (archive != null) {
+                    archive.add(finalFile);
+                }
+                writeEntry(message, document, fileName, STATUS_SAVED);
+                savedFiles++;
+            } else {
+                FileLog.e("Failed to save document " + document.id);
+                writeEntry(message, document, fileName, STATUS_FAILED);
+                failedFiles++;
+            }
+            if (waitingForDownloads && pendingDownloads < PAGE_LIMIT) {
+                waitingForDownloads = false;
+                requestPage();
+            }
+            finishIfDone();
+        }));
+    }
+
+    private void writeEntry(TLRPC.Message message, TLRPC.Document document, String fileName, String status) {
+        try {
+            if (csv) {
+                ExportEscaper.appendCsvField(manifest, String.valueOf(message.id));
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, String.valueOf(TakeoutJournal.getPeerKey(message.peer_id)));
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, String.valueOf(message.date));
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, String.valueOf(document.id));
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, fileName);
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, document.mime_type != null ? document.mime_type : "");
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, String.valueOf(document.size));
+                manifest.write(',');
+                ExportEscaper.appendCsvField(manifest, status);
+                manifest.write('\n');
+            } else {
+                if (entries > 0) {
+                    manifest.write(",\n");
+                }
+                manifest.write("{\"message_id\":");
+                manifest.write(String.valueOf(message.id));
+                manifest.write(",\"peer_id\":");
+                manifest.write(String.valueOf(TakeoutJournal.getPeerKey(message.peer_id)));
+                manifest.write(",\"date\":");
+                manifest.write(String.valueOf(message.date));
+                manifest.write(",\"document_id\":");
+                manifest.write(String.valueOf(document.id));
+                manifest.write(",\"file_name\":\"");
+                ExportEscaper.appendJsonString(manifest, fileName);
+                manifest.write("\",\"mime_type\":\"");
+                ExportEscaper.appendJsonString(manifest, document.mime_type != null ? document.mime_type : "");
+                manifest.write("\",\"size\":");
+                manifest.write(String.valueOf(document.size));
+                manifest.write(",\"status\":\"");
+                ExportEscaper.appendJsonString(manifest, status);
+                manifest.write("\"}");
+            }
+        } catch (IOException e) {
+            FileLog.e("Failed to write file manifest entry", e);
+        }
+        ExportProgressBus progressBus = ExportProgressBus.getInstance(account);
+        progressBus.setItem(ExportProgressBus.CATEGORY_FILES, entries, fileName, progressBus.getTotal(ExportProgressBus.CATEGORY_FILES));
+        progressBus.addCompleted(ExportProgressBus.CATEGORY_FILES, 1);
+        entries++;
+    }
+
+    private void finishIfDone() {
+        if (!searchDone || pendingDownloads > 0) {
+            return;
+        }
+        boolean success;
+        try {
+            if (!csv) {
+                manifest.write(entries > 0 ? "\n]\n" : "]\n");
+            }
+            manifest.close();
+            success = true;
+        } catch (IOException e) {
+            FileLog.e("Failed to close file manifest", e);
+            success = false;
+        }
+        if (success && archive != null) {
+            archive.add(manifestFile);
+        }
+        if (!success) {
+            onFinished.run(false, "Manifest save failed");
+        } else if (searchError != null) {
+            onFinished.run(false, "File search failed: " + searchError);
+        } else if (failedFiles > 0) {
+            onFinished.run(false, "Exported " + savedFiles + " files, " + failedFiles + " failed");
+        } else {
+            onFinished.run(true, "Exported " + savedFiles + " files");
+        }
+    }
+
+    // prefixed with the document id so two files with the same name do not overwrite each other
+    private static String getFileName(TLRPC.Document document) {
+        String name = FileLoader.fixFileName(FileLoader.getDocumentFileName(document));
+        if (name == null || name.isEmpty()) {
+            name = DEFAULT_FILE_NAME;
+        }
+        return document.id + "_" + name;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.List;
+
+import plus.takeout.TL_takeout;
+
+public class HistoryFetcher {
+
+    public static final int MESSAGES_LIMIT = 100;
+
+    private static final DispatchQueue sinkQueue = new DispatchQueue("TakeoutHistoryQueue");
+
+    private final int account;
+    private final long takeoutId;
+
+    public HistoryFetcher(int account, long takeoutId) {
+        this.account = account;
+        this.takeoutId = takeoutId;
+    }
+
+    public void fetch(TLRPC.TL_messageRange range, TLRPC.InputPeer peer, MessageSink sink) {
+        requestPage(range, peer, 0, 0, 0, sink);
+    }
+
+    public void fetch(TLRPC.TL_messageRange range, TLRPC.InputPeer peer, int offsetId, MessageSink sink) {
+        requestPage(range, peer, offsetId, 0, 0, sink);
+    }
+
+    public void fetch(TLRPC.TL_messageRange range, TLRPC.InputPeer peer, int offsetId, int minId, MessageSink sink) {
+        requestPage(range, peer, offsetId, 0, minId, sink);
+    }
+
+    private void requestPage(TLRPC.TL_messageRange range, TLRPC.InputPeer peer, int offsetId, int offsetDate, int minId, MessageSink sink) {
+        TLRPC.TL_messages_getHistory getHistory = new TLRPC.TL_messages_getHistory();
+        getHistory.peer = peer;
+        getHistory.offset_id = offsetId;
+        getHistory.offset_date = offsetDate;
+        getHistory.add_offset = 0;
+        getHistory.limit = MESSAGES_LIMIT;
+        getHistory.min_id = minId;
+
+        TL_takeout.TL_invokeWithMessagesRange rangeRequest = new TL_takeout.TL_invokeWithMessagesRange();
+        rangeRequest.range = range;
+        rangeRequest.query = getHistory;
+
+        TL_takeout.TL_invokeWithTakeout takeoutRequest = new TL_takeout.TL_invokeWithTakeout();
+        takeoutRequest.takeout_id = takeoutId;
+        takeoutRequest.query = rangeRequest;
+
+        TakeoutRequestLimiter.getInstance(account).sendRequest(takeoutRequest, (response, error) -> sinkQueue.postRunnable(() -> {
+            if (error != null) {
+                FileLog.e("History fetch failed: " + error.text);
+                sink.onError(error.text);
+                return;
+            }
+            if (!(response instanceof TLRPC.messages_Messages)) {
+                sink.onComplete();
+                return;
+            }
+
+            TLRPC.messages_Messages res = (TLRPC.messages_Messages) response;
+            // senders that are not dialog partners only show up here
+            PeerDirectory directory = PeerDirectory.getInstance(account);
+            directory.putUsers(res.users);
+            directory.putChats(res.chats);
+            List<TLRPC.Message> batch = res.messages;
+            if (batch.isEmpty()) {
+                sink.onComplete();
+                return;
+            }
+
+            if (!sink.onBatch(batch)) {
+                return;
+            }
+            if (batch.size() == getHistory.limit) {
+                TLRPC.Message lastMessage = batch.get(batch.size() - 1);
+                requestPage(range, peer, lastMessage.id, lastMessage.date, minId, sink);
+            } else {
+                sink.onComplete();
+            }
+        }));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLoadOperation;
+import org.telegram.messenger.FileLoader;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.FilePathDatabase;
+import org.telegram.messenger.ImageLocation;
+import org.telegram.messenger.UserConfig;
+import org.telegram.messenger.Utilities;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Export media goes through a PeerScheduler window: a slot is taken when the FileLoadOperation
+// is started on stageQueue and given back once it finishes, fails or stalls. Nothing waits on a latch.
+// Failed files go back into the queue after a delay while the export's retry budget lasts.
+// There is one downloader per account, so stories, profile pictures and files share one window.
+public class MediaDownloader {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_RETRY_BUDGET = 16;
+    public static final long PRIORITY_NORMAL = 0;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long STALL_TIMEOUT_MS = 30000;
+
+    // created at the start of every export, so one run's failures do not use up the next run's retries
+    public static class RetryBudget {
+        private final AtomicInteger left;
+
+        public RetryBudget() {
+            this(DEFAULT_RETRY_BUDGET);
+        }
+
+        public RetryBudget(int retries) {
+            left = new AtomicInteger(retries);
+        }
+
+        boolean take() {
+            while (true) {
+                int retries = left.get();
+                if (retries <= 0) {
+                    return false;
+                }
+                if (left.compareAndSet(retries, retries - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static volatile MediaDownloader[] Instance = new MediaDownloader[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static MediaDownloader getInstance(int num) {
+        MediaDownloader localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (MediaDownloader.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new MediaDownloader(num);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final int account;
+    private final PeerScheduler scheduler;
+
+    private MediaDownloader(int account) {
+        this.account = account;
+        scheduler = new PeerScheduler(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        scheduler.setWindow(maxInFlight);
+    }
+
+    public void download(ImageLocation location, Object parent, File folder, String fileName, RetryBudget retryBudget, Utilities.Callback<File> onDone) {
+        download(location, parent, folder, fileName, PRIORITY_NORMAL, retryBudget, onDone);
+    }
+
+    // higher priorities start first, equal ones in submission order; onDone gets the saved file,
+    // or null once every attempt failed, and runs on a loader thread
+    public void download(ImageLocation location, Object parent, File folder, String fileName, long priority, RetryBudget retryBudget, Utilities.Callback<File> onDone) {
+        submit(location, parent, folder, fileName, priority, retryBudget, 1, onDone);
+    }
+
+    private void submit(ImageLocation location, Object parent, File folder, String fileName, long priority, RetryBudget retryBudget, int attempt, Utilities.Callback<File> onDone) {
+        scheduler.submit(priority, done -> start(location, parent, folder, fileName, file -> {
+            done.run();
+            if (file == null && attempt < MAX_ATTEMPTS && retryBudget.take()) {
+                FileLog.e("Retrying download of " + fileName + ", attempt " + (attempt + 1));
+                Utilities.stageQueue.postRunnable(() -> submit(location, parent, folder, fileName, priority, retryBudget, attempt + 1, onDone), RETRY_DELAY_MS * attempt);
+                return;
+            }
+            onDone.run(file);
+        }));
+    }
+
+    private void start(ImageLocation location, Object parent, File folder, String fileName, Utilities.Callback<File> onDone) {
+        FileLoadOperation operation = new FileLoadOperation(location, parent, null, 0);
+        operation.setPriority(FileLoader.PRIORITY_HIGH);
+        operation.setPaths(account, fileName, operation.getQueue(), folder, folder, fileName);
+
+        AtomicBoolean completed = new AtomicBoolean();
+        Runnable[] stall = new Runnable[1];
+        Utilities.Callback<File> complete = file -> {
+            if (completed.compareAndSet(false, true)) {
+                Utilities.stageQueue.cancelRunnable(stall[0]);
+                onDone.run(file);
+            }
+        };
+        stall[0] = () -> {
+            if (!completed.get()) {
+                FileLog.e("Download stalled for " + fileName);
+                operation.cancel();
+                complete.run(null);
+            }
+        };
+
+        operation.setDelegate(new FileLoadOperation.FileLoadOperationDelegate() {
+            @Override
+            public void didPreFinishLoading(FileLoadOperation operation, File finalFile) {}
+
+            @Override
+            public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
+                complete.run(finalFile);
+            }
+
+            @Override
+            public void didFailedLoadingFile(FileLoadOperation operation, int state) {
+                FileLog.e("Failed to download " + fileName + ": state=" + state);
+                complete.run(null);
+            }
+
+            @Override
+            public void didChangedLoadProgress(FileLoadOperation operation, long uploadedSize, long totalSize) {
+                Utilities.stageQueue.cancelRunnable(stall[0]);
+                Utilities.stageQueue.postRunnable(stall[0], STALL_TIMEOUT_MS);
+            }
+
+            @Override
+            public void saveFilePath(FilePathDatabase.PathData pathSaveData, File cacheFileFinal) {}
+
+            @Override
+            public boolean hasAnotherRefOnFile(String path) {
+                return false;
+            }
+
+            @Override
+            public boolean isLocallyCreatedFile(String path) {
+                return false;
+            }
+        });
+
+        Utilities.stageQueue.postRunnable(() -> {
+            if (!operation.start()) {
+                FileLog.e("Download start failed for " + fileName);
+                complete.run(null);
+                return;
+            }
+            Utilities.stageQueue.postRunnable(stall[0], STALL_TIMEOUT_MS);
+        });
+    }
+}
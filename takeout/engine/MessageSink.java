@@ -0,0 +1,20 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.util.List;
+
+public interface MessageSink {
+    // false stops the fetch; the sink has already failed itself and gets no onComplete or onError
+    boolean onBatch(List<TLRPC.Message> batch);
+    void onComplete();
+    void onError(String reason);
+}
@@ -0,0 +1,112 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.SerializedData;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// History pages parked on disk in their TL form until they can be written in order. A page is its
+// message count followed by each message as a length-prefixed serialized object.
+public class MessageSpool {
+
+    private static final String SPOOL_DIR = "takeout_spool";
+
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int pendingPages;
+
+    private MessageSpool(File file) throws IOException {
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), StreamingMessageWriter.BUFFER_SIZE));
+    }
+
+    // a spool of the same name left behind by a killed run is overwritten
+    public static MessageSpool create(String name) throws IOException {
+        File dir = new File(ApplicationLoader.getFilesDirFixed(), SPOOL_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return new MessageSpool(new File(dir, name));
+    }
+
+    public void write(List<TLRPC.Message> page) throws IOException {
+        if (out == null) {
+            throw new IOException("Spool " + file.getName() + " is already being read");
+        }
+        out.writeInt(page.size());
+        for (int i = 0; i < page.size(); i++) {
+            TLRPC.Message message = page.get(i);
+            SerializedData data = new SerializedData(message.getObjectSize());
+            message.serializeToStream(data);
+            byte[] bytes = data.toByteArray();
+            data.cleanup();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        pendingPages++;
+    }
+
+    // pages come back in the order they were written, null once all of them have been read
+    public List<TLRPC.Message> read() throws IOException {
+        if (in == null) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), StreamingMessageWriter.BUFFER_SIZE));
+        }
+        if (pendingPages == 0) {
+            return null;
+        }
+        pendingPages--;
+        int count = in.readInt();
+        List<TLRPC.Message> page = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            SerializedData data = new SerializedData(bytes);
+            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(true), true);
+            data.cleanup();
+            page.add(message);
+        }
+        return page;
+    }
+
+    public void delete() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+        out = null;
+        in = null;
+        if (!file.delete() && file.exists()) {
+            FileLog.e("Failed to delete spool " + file);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.UserConfig;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.List;
+
+public class PeerDirectory {
+
+    private static volatile PeerDirectory[] Instance = new PeerDirectory[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static PeerDirectory getInstance(int num) {
+        PeerDirectory localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (PeerDirectory.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new PeerDirectory();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final LongObjectMap<TLRPC.User> users = new LongObjectMap<>(256);
+    private final LongObjectMap<TLRPC.Chat> chats = new LongObjectMap<>(256);
+
+    public synchronized void putUsers(List<TLRPC.User> list) {
+        for (int i = 0, n = list.size(); i < n; i++) {
+            TLRPC.User user = list.get(i);
+            TLRPC.User existing = users.get(user.id);
+            // a min constructor carries no access_hash, so it must not replace a full one
+            if (existing == null || !user.min || existing.min) {
+                users.put(user.id, user);
+            }
+        }
+    }
+
+    public synchronized void putChats(List<TLRPC.Chat> list) {
+        for (int i = 0, n = list.size(); i < n; i++) {
+            TLRPC.Chat chat = list.get(i);
+            TLRPC.Chat existing = chats.get(chat.id);
+            if (existing == null || !chat.min || existing.min) {
+                chats.put(chat.id, chat);
+            }
+        }
+    }
+
+    public synchronized TLRPC.User getUser(long id) {
+        return users.get(id);
+    }
+
+    public synchronized TLRPC.Chat getChat(long id) {
+        return chats.get(id);
+    }
+
+    public TLRPC.InputPeer getInputPeer(TLRPC.Peer peer) {
+        if (peer instanceof TLRPC.TL_peerUser) {
+            TLRPC.User user = getUser(peer.user_id);
+            if (user != null) {
+                TLRPC.TL_inputPeerUser inp = new TLRPC.TL_inputPeerUser();
+                inp.user_id = user.id;
+                inp.access_hash = user.access_hash;
+                return inp;
+            }
+        } else if (peer instanceof TLRPC.TL_peerChat) {
+            TLRPC.TL_inputPeerChat inp = new TLRPC.TL_inputPeerChat();
+            inp.chat_id = peer.chat_id;
+            return inp;
+        } else if (peer instanceof TLRPC.TL_peerChannel) {
+            TLRPC.Chat chat = getChat(peer.channel_id);
+            if (chat != null) {
+                TLRPC.TL_inputPeerChannel inp = new TLRPC.TL_inputPeerChannel();
+                inp.channel_id = chat.id;
+                inp.access_hash = chat.access_hash;
+                return inp;
+            }
+        }
+        return new TLRPC.TL_inputPeerEmpty();
+    }
+
+    public synchronized void clear() {
+        users.clear();
+        chats.clear();
+    }
+}
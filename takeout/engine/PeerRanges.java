@@ -0,0 +1,44 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.util.List;
+
+public class PeerRanges {
+
+    // Saved Messages is also the self dialog among the private chats, so its checkpoints and high-water
+    // mark are kept under a key that no dialog maps to
+    public static final long SAVED_MESSAGES_STATE_KEY = Long.MIN_VALUE;
+
+    public final long peerKey;
+    public final long stateKey;
+    public final String name;
+    public final TLRPC.InputPeer inputPeer;
+    public final List<TLRPC.TL_messageRange> ranges;
+    public final int topMessage;
+
+    public PeerRanges(DialogIndex.Entry entry, String name, TLRPC.InputPeer inputPeer) {
+        this(entry.peerKey, entry.peerKey, name, inputPeer, entry.ranges, entry.topMessage);
+    }
+
+    private PeerRanges(long peerKey, long stateKey, String name, TLRPC.InputPeer inputPeer, List<TLRPC.TL_messageRange> ranges, int topMessage) {
+        this.peerKey = peerKey;
+        this.stateKey = stateKey;
+        this.name = name;
+        this.inputPeer = inputPeer;
+        this.ranges = ranges;
+        this.topMessage = topMessage;
+    }
+
+    public static PeerRanges savedMessages(long selfUserId, List<TLRPC.TL_messageRange> ranges) {
+        return new PeerRanges(selfUserId, SAVED_MESSAGES_STATE_KEY, "Saved Messages", new TLRPC.TL_inputPeerSelf(), ranges, 0);
+    }
+}
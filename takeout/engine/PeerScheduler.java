@@ -0,0 +1,121 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLog;
+
+import java.util.PriorityQueue;
+
+// Runs at most window peers at a time, heaviest first. The cells weigh peers by their dialog's
+// top_message. That is close to the message count only in channels and supergroups, which number
+// their own messages. Private chats and basic groups share the account's message counter, so there it
+// says how recently the chat was active rather than how big it is.
+public class PeerScheduler {
+
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MIN_WINDOW = 1;
+    public static final int MAX_WINDOW = 8;
+
+    public interface PeerTask {
+        void run(Runnable done);
+    }
+
+    private static class QueuedPeer implements Comparable<QueuedPeer> {
+        final long weight;
+        final long sequence;
+        final PeerTask task;
+
+        QueuedPeer(long weight, long sequence, PeerTask task) {
+            this.weight = weight;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(QueuedPeer other) {
+            if (weight != other.weight) {
+                return weight > other.weight ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<QueuedPeer> queue = new PriorityQueue<>();
+    private int window;
+    private int inFlight;
+    private long nextSequence;
+
+    public PeerScheduler() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public PeerScheduler(int window) {
+        setWindow(window);
+    }
+
+    public synchronized void setWindow(int window) {
+        this.window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public void submit(long weight, PeerTask task) {
+        enqueue(weight, task);
+        start();
+    }
+
+    // queues a peer without starting anything, so that a whole category can be ordered before start()
+    public synchronized void enqueue(long weight, PeerTask task) {
+        queue.add(new QueuedPeer(weight, nextSequence++, task));
+    }
+
+    public void start() {
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            QueuedPeer next;
+            synchronized (this) {
+                if (inFlight >= window || queue.isEmpty()) {
+                    return;
+                }
+                next = queue.poll();
+                inFlight++;
+            }
+            run(next);
+        }
+    }
+
+    private void run(QueuedPeer peer) {
+        boolean[] released = new boolean[1];
+        Runnable done = () -> {
+            synchronized (this) {
+                if (released[0]) {
+                    return;
+                }
+                released[0] = true;
+                inFlight--;
+            }
+            drain();
+        };
+        try {
+            peer.task.run(done);
+        } catch (Exception e) {
+            FileLog.e("Peer task failed to start", e);
+            done.run();
+        }
+    }
+}
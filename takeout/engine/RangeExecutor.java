@@ -0,0 +1,99 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.List;
+
+public class RangeExecutor {
+
+    public static final int DEFAULT_PARALLELISM = 3;
+    public static final int MIN_PARALLELISM = 1;
+    public static final int MAX_PARALLELISM = 8;
+
+    public interface RangeTask {
+        void run(int index, TLRPC.TL_messageRange range, Runnable done);
+    }
+
+    private final int parallelism;
+
+    public RangeExecutor(int parallelism) {
+        this.parallelism = Math.max(MIN_PARALLELISM, Math.min(MAX_PARALLELISM, parallelism));
+    }
+
+    public void execute(List<TLRPC.TL_messageRange> ranges, RangeTask task, Runnable onComplete) {
+        if (ranges.isEmpty()) {
+            if (onComplete != null) {
+                onComplete.run();
+            }
+            return;
+        }
+        new Execution(ranges, task, onComplete).drain();
+    }
+
+    private class Execution {
+
+        private final List<TLRPC.TL_messageRange> ranges;
+        private final RangeTask task;
+        private final Runnable onComplete;
+        private int next;
+        private int inFlight;
+        private int finished;
+
+        Execution(List<TLRPC.TL_messageRange> ranges, RangeTask task, Runnable onComplete) {
+            this.ranges = ranges;
+            this.task = task;
+            this.onComplete = onComplete;
+        }
+
+        void drain() {
+            while (true) {
+                int index;
+                synchronized (this) {
+                    if (inFlight >= parallelism || next >= ranges.size()) {
+                        return;
+                    }
+                    index = next++;
+                    inFlight++;
+                }
+                start(index);
+            }
+        }
+
+        private void start(int index) {
+            boolean[] released = new boolean[1];
+            Runnable done = () -> {
+                boolean complete;
+                synchronized (this) {
+                    if (released[0]) {
+                        return;
+                    }
+                    released[0] = true;
+                    inFlight--;
+                    complete = ++finished == ranges.size();
+                }
+                if (complete) {
+                    if (onComplete != null) {
+                        onComplete.run();
+                    }
+                } else {
+                    drain();
+                }
+            };
+            try {
+                task.run(index, ranges.get(index), done);
+            } catch (Exception e) {
+                FileLog.e("Range task failed to start", e);
+                done.run();
+            }
+        }
+    }
+}
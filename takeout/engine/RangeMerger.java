@@ -0,0 +1,45 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.Utilities;
+
+public class RangeMerger<T> {
+
+    private final Object[] results;
+    private final boolean[] ready;
+    private final Utilities.Callback<T> emit;
+    private final Runnable onComplete;
+    private int nextToEmit;
+
+    public RangeMerger(int rangeCount, Utilities.Callback<T> emit, Runnable onComplete) {
+        results = new Object[rangeCount];
+        ready = new boolean[rangeCount];
+        this.emit = emit;
+        this.onComplete = onComplete;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void complete(int index, T result) {
+        if (ready[index]) {
+            return;
+        }
+        results[index] = result;
+        ready[index] = true;
+        // results are released strictly in range order; later ranges wait for the gap to fill
+        while (nextToEmit < ready.length && ready[nextToEmit]) {
+            T next = (T) results[nextToEmit];
+            results[nextToEmit++] = null;
+            emit.run(next);
+        }
+        if (nextToEmit == ready.length && onComplete != null) {
+            onComplete.run();
+        }
+    }
+}
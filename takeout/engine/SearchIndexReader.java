@@ -0,0 +1,237 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+// Looks terms up in a file written by SearchIndexWriter. Only the file table and the first term
+// of every dictionary block stay in memory; a lookup reads one block and one postings list.
+public class SearchIndexReader implements Closeable {
+
+    public static class Hit {
+        public final String fileName;
+        public final long offset;
+
+        Hit(String fileName, long offset) {
+            this.fileName = fileName;
+            this.offset = offset;
+        }
+    }
+
+    private static final long OFFSET_MASK = (1L << SearchIndexWriter.OFFSET_BITS) - 1;
+
+    private final RandomAccessFile file;
+    private final String[] files;
+    private final String[] blockTerms;
+    private final long[] blockOffsets;
+    private final long blocksEnd;
+    private final int termCount;
+
+    private SearchIndexReader(RandomAccessFile file, String[] files, String[] blockTerms, long[] blockOffsets, long blocksEnd, int termCount) {
+        this.file = file;
+        this.files = files;
+        this.blockTerms = blockTerms;
+        this.blockOffsets = blockOffsets;
+        this.blocksEnd = blocksEnd;
+        this.termCount = termCount;
+    }
+
+    public static SearchIndexReader open(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            long length = file.length();
+            if (length < SearchIndexWriter.MAGIC.length + 4 + SearchIndexWriter.FOOTER_SIZE) {
+                throw new IOException("Not a search index: " + indexFile);
+            }
+            byte[] magic = new byte[SearchIndexWriter.MAGIC.length];
+            file.readFully(magic);
+            int version = file.readInt();
+            file.seek(length - SearchIndexWriter.FOOTER_SIZE);
+            long filesOffset = file.readLong();
+            long sparseOffset = file.readLong();
+            int termCount = file.readInt();
+            byte[] endMagic = new byte[SearchIndexWriter.MAGIC.length];
+            file.readFully(endMagic);
+            if (!Arrays.equals(magic, SearchIndexWriter.MAGIC) || !Arrays.equals(endMagic, SearchIndexWriter.MAGIC)) {
+                throw new IOException("Not a search index: " + indexFile);
+            }
+            if (version != SearchIndexWriter.VERSION) {
+                throw new IOException("Unsupported search index version " + version);
+            }
+
+            DataInputStream in = read(file, filesOffset, length - SearchIndexWriter.FOOTER_SIZE - filesOffset);
+            String[] files = new String[(int) SearchIndexWriter.readVarint(in)];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = SearchIndexWriter.readString(in);
+            }
+            if (in.available() != length - SearchIndexWriter.FOOTER_SIZE - sparseOffset) {
+                throw new IOException("Corrupt search index: " + indexFile);
+            }
+            int blocks = (int) SearchIndexWriter.readVarint(in);
+            String[] blockTerms = new String[blocks];
+            long[] blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockTerms[i] = SearchIndexWriter.readString(in);
+                blockOffsets[i] = in.readLong();
+            }
+            return new SearchIndexReader(file, files, blockTerms, blockOffsets, filesOffset, termCount);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    public List<String> getFiles() {
+        return Arrays.asList(files);
+    }
+
+    // pages whose text contains the word, normalized the way the writer tokenizes
+    public List<Hit> lookup(String word) throws IOException {
+        ArrayList<String> terms = new ArrayList<>(1);
+        SearchIndexWriter.tokenize(word, terms);
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return toHits(readKeys(terms.get(0)));
+    }
+
+    // pages that contain every word of the query
+    public List<Hit> search(String query) throws IOException {
+        ArrayList<String> terms = new ArrayList<>();
+        SearchIndexWriter.tokenize(query, terms);
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long[][] lists = new long[terms.size()][];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = readKeys(terms.get(i));
+            if (lists[i].length == 0) {
+                return new ArrayList<>();
+            }
+        }
+        // intersect starting from the rarest term
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        long[] keys = lists[0];
+        for (int i = 1; i < lists.length && keys.length > 0; i++) {
+            keys = intersect(keys, lists[i]);
+        }
+        return toHits(keys);
+    }
+
+    // the page a hit points at, decompressed; readers scan forward from here for the matching rows
+    public static InputStream openPage(File exportRoot, Hit hit) throws IOException {
+        File exported = new File(exportRoot, hit.fileName);
+        FileInputStream in = new FileInputStream(exported);
+        try {
+            in.getChannel().position(hit.offset);
+            if (ExportCompression.getCodec(exported.getName()) == ExportCompression.CODEC_GZIP) {
+                // every page starts a new gzip member
+                return new GZIPInputStream(in, StreamingMessageWriter.BUFFER_SIZE);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private synchronized long[] readKeys(String term) throws IOException {
+        int block = Arrays.binarySearch(blockTerms, term);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return new long[0];
+            }
+        }
+        long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : blocksEnd;
+        DataInputStream in = read(file, blockOffsets[block], end - blockOffsets[block]);
+        int count = (int) SearchIndexWriter.readVarint(in);
+        String previous = "";
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            int shared = (int) SearchIndexWriter.readVarint(in);
+            byte[] suffix = new byte[(int) SearchIndexWriter.readVarint(in)];
+            in.readFully(suffix);
+            String current = previous.substring(0, shared) + new String(suffix, ColumnarMessageReader.UTF_8);
+            offset += SearchIndexWriter.readVarint(in);
+            int length = (int) SearchIndexWriter.readVarint(in);
+            int postings = (int) SearchIndexWriter.readVarint(in);
+            int compare = current.compareTo(term);
+            if (compare == 0) {
+                return decodeKeys(read(file, offset, length), postings);
+            } else if (compare > 0) {
+                break;
+            }
+            previous = current;
+        }
+        return new long[0];
+    }
+
+    private static long[] decodeKeys(DataInputStream in, int count) throws IOException {
+        long[] keys = new long[count];
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            last += SearchIndexWriter.readVarint(in);
+            keys[i] = last;
+        }
+        return keys;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private List<Hit> toHits(long[] keys) {
+        ArrayList<Hit> hits = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            hits.add(new Hit(files[(int) (key >>> SearchIndexWriter.OFFSET_BITS)], key & OFFSET_MASK));
+        }
+        return hits;
+    }
+
+    private static DataInputStream read(RandomAccessFile file, long offset, long length) throws IOException {
+        byte[] data = new byte[(int) length];
+        file.seek(offset);
+        file.readFully(data);
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
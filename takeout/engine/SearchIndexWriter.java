@@ -0,0 +1,556 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+// Term -> (file, page offset) postings, built while chat pages are written. A posting is the key
+// fileId << OFFSET_BITS | offset, and every list is sorted and stored as varint deltas.
+// File layout, fixed-width integers big-endian:
+//   file    = MAGIC, int32 VERSION, postings*, block*, files, sparse, footer
+//   block   = varint terms, per term: varint sharedPrefix, varint suffixLength, UTF-8 suffix,
+//             varint postingsOffset (delta within the block), varint postingsLength, varint postings
+//   files   = varint count, per file: varint length, UTF-8 path relative to the export root
+//   sparse  = varint blocks, per block: varint length, UTF-8 first term, int64 block offset
+//   footer  = int64 filesOffset, int64 sparseOffset, int32 terms, MAGIC
+// Pages are buffered in memory and spilled to sorted segments, which close() merges into the file.
+public class SearchIndexWriter {
+
+    public static final byte[] MAGIC = {'T', 'G', 'I', 'X'};
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".idx";
+
+    static final int OFFSET_BITS = 44;
+    static final int FOOTER_SIZE = 24;
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    static final int BLOCK_TERMS = 64;
+    private static final long MAX_BUFFER_BYTES = 16L * 1024 * 1024;
+    // rough per-term cost of the map entry, the Postings object and the key string
+    private static final int TERM_OVERHEAD = 96;
+    private static final String SEGMENT_DIR = "takeout_index";
+    private static final String PART_EXTENSION = ".part";
+
+    private static final DispatchQueue indexQueue = new DispatchQueue("TakeoutIndexQueue");
+
+    private static class Postings {
+        byte[] data = new byte[8];
+        int size;
+        int count;
+        long lastKey;
+
+        // unsorted while buffering, so deltas are zigzag encoded
+        int add(long key) {
+            if (count > 0 && key == lastKey) {
+                return 0;
+            }
+            int before = size;
+            long delta = key - lastKey;
+            writeVarint((delta << 1) ^ (delta >> 63));
+            lastKey = key;
+            count++;
+            return size - before;
+        }
+
+        long[] toSortedKeys() {
+            long[] keys = new long[count];
+            int pos = 0;
+            long key = 0;
+            for (int i = 0; i < count; i++) {
+                long value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    value |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                key += (value >>> 1) ^ -(value & 1);
+                keys[i] = key;
+            }
+            Arrays.sort(keys);
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (n == 0 || keys[n - 1] != keys[i]) {
+                    keys[n++] = keys[i];
+                }
+            }
+            return n == keys.length ? keys : Arrays.copyOf(keys, n);
+        }
+
+        private void writeVarint(long value) {
+            if (data.length - size < 10) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+    }
+
+    private static class SegmentCursor {
+        final DataInputStream in;
+        int remaining;
+        String term;
+        long[] keys;
+
+        SegmentCursor(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), StreamingMessageWriter.BUFFER_SIZE));
+            remaining = in.readInt();
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                in.close();
+                return false;
+            }
+            remaining--;
+            term = readString(in);
+            keys = readKeys(in);
+            return true;
+        }
+    }
+
+    private final File file;
+    private final File segmentDir;
+    private final long maxBufferBytes;
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    private final HashMap<String, Integer> fileIds = new HashMap<>();
+    private final ArrayList<String> files = new ArrayList<>();
+    private final ArrayList<File> segments = new ArrayList<>();
+    private final ArrayList<String> pageTerms = new ArrayList<>();
+    private long bufferedBytes;
+    private IOException error;
+    private volatile boolean closed;
+
+    private SearchIndexWriter(File file, File segmentDir, long maxBufferBytes) {
+        this.file = file;
+        this.segmentDir = segmentDir;
+        this.maxBufferBytes = maxBufferBytes;
+    }
+
+    public static SearchIndexWriter create(File dir, String name) throws IOException {
+        return create(dir, name, new File(ApplicationLoader.getFilesDirFixed(), SEGMENT_DIR), MAX_BUFFER_BYTES);
+    }
+
+    // tests spill into a folder of their own, with a buffer small enough to write several segments
+    static SearchIndexWriter create(File dir, String name, File segmentRoot, long maxBufferBytes) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File segmentDir = new File(segmentRoot, name);
+        deleteRecursive(segmentDir);
+        if (!segmentDir.mkdirs()) {
+            throw new IOException("Failed to create " + segmentDir);
+        }
+        return new SearchIndexWriter(new File(dir, name + EXTENSION), segmentDir, maxBufferBytes);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // a chat file that was renamed after some of its pages were added, e.g. a single file that became a
+    // chat's first part
+    public void renameFile(String fileName, String newName) {
+        if (closed) {
+            return;
+        }
+        indexQueue.postRunnable(() -> {
+            Integer fileId = fileIds.remove(fileName);
+            if (fileId != null) {
+                fileIds.put(newName, fileId);
+                files.set(fileId, newName);
+            }
+        });
+    }
+
+    // fileName is relative to the export root, offset is where the page starts in that file
+    public void addPage(String fileName, long offset, List<TLRPC.Message> messages) {
+        if (closed) {
+            return;
+        }
+        indexQueue.postRunnable(() -> {
+            if (error != null) {
+                return;
+            }
+            Integer fileId = fileIds.get(fileName);
+            if (fileId == null) {
+                fileId = files.size();
+                fileIds.put(fileName, fileId);
+                files.add(fileName);
+            }
+            long key = ((long) fileId << OFFSET_BITS) | offset;
+            for (int i = 0, n = messages.size(); i < n; i++) {
+                String text = messages.get(i).message;
+                if (text == null) {
+                    continue;
+                }
+                pageTerms.clear();
+                tokenize(text, pageTerms);
+                for (int j = 0, m = pageTerms.size(); j < m; j++) {
+                    String term = pageTerms.get(j);
+                    Postings postings = terms.get(term);
+                    if (postings == null) {
+                        postings = new Postings();
+                        terms.put(term, postings);
+                        bufferedBytes += TERM_OVERHEAD + term.length() * 2L;
+                    }
+                    bufferedBytes += postings.add(key);
+                }
+            }
+            if (bufferedBytes >= maxBufferBytes) {
+                try {
+                    spill();
+                } catch (IOException e) {
+                    FileLog.e("Failed to spill search index segment", e);
+                    error = e;
+                }
+            }
+        });
+    }
+
+    public void close(Runnable onClosed) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        indexQueue.postRunnable(() -> {
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                spill();
+                merge();
+            } catch (IOException e) {
+                FileLog.e("Failed to write search index " + file, e);
+                if (file.exists() && !file.delete()) {
+                    FileLog.e("Failed to delete " + file);
+                }
+            }
+            terms.clear();
+            deleteRecursive(segmentDir);
+            if (onClosed != null) {
+                onClosed.run();
+            }
+        });
+    }
+
+    private void spill() throws IOException {
+        if (terms.isEmpty()) {
+            return;
+        }
+        String[] sorted = terms.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+        File segment = new File(segmentDir, "segment" + segments.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment), StreamingMessageWriter.BUFFER_SIZE))) {
+            out.writeInt(sorted.length);
+            for (String term : sorted) {
+                writeString(out, term);
+                writeKeys(out, terms.get(term).toSortedKeys());
+            }
+        }
+        segments.add(segment);
+        terms.clear();
+        bufferedBytes = 0;
+    }
+
+    private void merge() throws IOException {
+        File partFile = new File(file.getPath() + PART_EXTENSION);
+        File blockFile = new File(segmentDir, "blocks");
+        ArrayList<String> sparseTerms = new ArrayList<>();
+        ArrayList<Long> sparseOffsets = new ArrayList<>();
+        int termCount = 0;
+        long postingsEnd;
+
+        PriorityQueue<SegmentCursor> queue = new PriorityQueue<>(Math.max(1, segments.size()), (a, b) -> a.term.compareTo(b.term));
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentCursor cursor = new SegmentCursor(segments.get(i));
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), StreamingMessageWriter.BUFFER_SIZE));
+             CountingOutputStream blocks = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(blockFile), StreamingMessageWriter.BUFFER_SIZE))) {
+            out.write(MAGIC);
+            writeInt(out, VERSION);
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            int blockTerms = 0;
+            String previousTerm = "";
+            long previousOffset = 0;
+            while (!queue.isEmpty()) {
+                SegmentCursor cursor = queue.poll();
+                String term = cursor.term;
+                long[] keys = cursor.keys;
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    SegmentCursor same = queue.poll();
+                    keys = mergeKeys(keys, same.keys);
+                    if (same.next()) {
+                        queue.add(same);
+                    }
+                }
+
+                encoded.reset();
+                long last = 0;
+                for (long key : keys) {
+                    writeVarint(encoded, key - last);
+                    last = key;
+                }
+                long offset = out.count;
+                encoded.writeTo(out);
+
+                if (blockTerms == BLOCK_TERMS) {
+                    flushBlock(blocks, block, blockTerms);
+                    blockTerms = 0;
+                }
+                if (blockTerms == 0) {
+                    sparseTerms.add(term);
+                    sparseOffsets.add(blocks.count);
+                    previousTerm = "";
+                    previousOffset = 0;
+                }
+                int shared = sharedPrefix(previousTerm, term);
+                byte[] suffix = term.substring(shared).getBytes(ColumnarMessageReader.UTF_8);
+                writeVarint(block, shared);
+                writeVarint(block, suffix.length);
+                block.write(suffix);
+                writeVarint(block, offset - previousOffset);
+                writeVarint(block, encoded.size());
+                writeVarint(block, keys.length);
+                previousTerm = term;
+                previousOffset = offset;
+                blockTerms++;
+                termCount++;
+            }
+            if (blockTerms > 0) {
+                flushBlock(blocks, block, blockTerms);
+            }
+            blocks.flush();
+            postingsEnd = out.count;
+
+            try (InputStream in = new FileInputStream(blockFile)) {
+                byte[] buffer = new byte[StreamingMessageWriter.BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+
+            long filesOffset = out.count;
+            writeVarint(out, files.size());
+            for (int i = 0; i < files.size(); i++) {
+                writeString(out, files.get(i));
+            }
+            long sparseOffset = out.count;
+            writeVarint(out, sparseTerms.size());
+            for (int i = 0; i < sparseTerms.size(); i++) {
+                writeString(out, sparseTerms.get(i));
+                writeLong(out, postingsEnd + sparseOffsets.get(i));
+            }
+            writeLong(out, filesOffset);
+            writeLong(out, sparseOffset);
+            writeInt(out, termCount);
+            out.write(MAGIC);
+        }
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Failed to rename search index to " + file);
+        }
+    }
+
+    private static void flushBlock(OutputStream blocks, ByteArrayOutputStream block, int terms) throws IOException {
+        writeVarint(blocks, terms);
+        block.writeTo(blocks);
+        block.reset();
+    }
+
+    private static long[] mergeKeys(long[] a, long[] b) {
+        long[] merged = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            long key = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+            if (n == 0 || merged[n - 1] != key) {
+                merged[n++] = key;
+            }
+        }
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // never split a surrogate pair between prefix and suffix
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    // lower-cased runs of letters and digits; shorter runs are dropped and longer ones cut
+    static void tokenize(String text, List<String> out) {
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; ) {
+            int c = i < length ? text.codePointAt(i) : -1;
+            boolean word = c >= 0 && Character.isLetterOrDigit(c);
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (text.codePointCount(start, i) >= MIN_TERM_LENGTH) {
+                    int end = Math.min(i, start + MAX_TERM_LENGTH);
+                    if (end < i && Character.isHighSurrogate(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    out.add(text.substring(start, end).toLowerCase(Locale.US));
+                }
+                start = -1;
+            }
+            i += c >= 0 ? Character.charCount(c) : 1;
+        }
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, ColumnarMessageReader.UTF_8);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(ColumnarMessageReader.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeKeys(OutputStream out, long[] keys) throws IOException {
+        writeVarint(out, keys.length);
+        long last = 0;
+        for (long key : keys) {
+            writeVarint(out, key - last);
+            last = key;
+        }
+    }
+
+    private static long[] readKeys(DataInputStream in) throws IOException {
+        long[] keys = new long[(int) readVarint(in)];
+        long last = 0;
+        for (int i = 0; i < keys.length; i++) {
+            last += readVarint(in);
+            keys[i] = last;
+        }
+        return keys;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            FileLog.e("Failed to delete " + file);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.Utilities;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ShardedMessageWriter implements Closeable {
+
+    public static final int DEFAULT_MAX_MESSAGES = 100000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final String MANIFEST_EXTENSION = ".manifest.json";
+
+    private static final Pattern PART_PATTERN = Pattern.compile("(.*)_part(\\d{4,})");
+    private static final String JSON_ROW_PREFIX = "  {\"id\": ";
+    private static final String JSONL_ROW_PREFIX = "{\"id\": ";
+
+    public static class Part {
+        public final int index;
+        public String fileName;
+        public int count;
+        public int minId;
+        public int maxId;
+        public long bytes;
+        long checkpointPosition;
+
+        Part(int index, String fileName) {
+            this.index = index;
+            this.fileName = fileName;
+        }
+
+        void add(int id) {
+            minId = count == 0 ? id : Math.min(minId, id);
+            maxId = count == 0 ? id : Math.max(maxId, id);
+            count++;
+        }
+    }
+
+    // The rows one delta run appended after the earlier ones. Every run writes newest first, so a chat
+    // with appends is in descending id order within each run, not across runs.
+    public static class Append {
+        public final int firstMessage;
+        public int messages;
+        public int minId;
+        public int maxId;
+
+        Append(int firstMessage) {
+            this.firstMessage = firstMessage;
+        }
+    }
+
+    private final File dir;
+    private final String baseName;
+    private final int format;
+    private final int codec;
+    private final String csvHeader;
+    private final ArrayList<Part> parts = new ArrayList<>();
+    private final ArrayList<Append> appends = new ArrayList<>();
+    private Append append;
+    private int maxMessages = DEFAULT_MAX_MESSAGES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private StreamingMessageWriter writer;
+    private Part current;
+    private int count;
+    private boolean closed;
+
+    private ShardedMessageWriter(File dir, String baseName, int format, int codec, String csvHeader) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.format = format;
+        this.codec = codec;
+        this.csvHeader = csvHeader;
+    }
+
+    // A chat starts as a single baseName.ext file without a manifest. Only when it hits the first limit is
+    // that file renamed to _part0001 and the manifest written next to it.
+    public static ShardedMessageWriter create(File dir, String baseName, int format, int codec, String csvHeader) throws IOException {
+        ShardedMessageWriter sharded = new ShardedMessageWriter(dir, baseName, format, codec, csvHeader);
+        sharded.openPart(1);
+        return sharded;
+    }
+
+    // a checkpoint taken while the chat was still a single file keeps pointing at its name after the
+    // file became the first part
+    public static String findFile(File dir, String fileName, int codec) {
+        if (new File(dir, fileName).exists()) {
+            return fileName;
+        }
+        String name = stripExtension(fileName, codec);
+        if (PART_PATTERN.matcher(name).matches()) {
+            return fileName;
+        }
+        String partName = getPartName(name, 1, fileName.substring(name.length()));
+        return new File(dir, partName).exists() ? partName : fileName;
+    }
+
+    // reopens the part a journal checkpoint points at; count is the checkpoint's running total
+    public static ShardedMessageWriter resume(File dir, String partFileName, int format, int codec, String csvHeader, long position, int count) throws IOException {
+        ShardedMessageWriter sharded = open(dir, partFileName, format, codec, csvHeader);
+        Part part = sharded.current;
+        // the manifest only vouches for parts that were rolled over before this one
+        part.count = 0;
+        scanPart(new File(dir, partFileName), position, format, codec, part);
+        sharded.writer = new StreamingMessageWriter(new File(dir, partFileName), format, codec, csvHeader, position, count);
+        part.checkpointPosition = position;
+        sharded.count = count;
+        if (!sharded.appends.isEmpty()) {
+            // only a delta run leaves appends in a chat of its own takeout, so the last one is being resumed
+            sharded.append = sharded.appends.get(sharded.appends.size() - 1);
+        }
+        return sharded;
+    }
+
+    public static ShardedMessageWriter openForAppend(File dir, String partFileName, int format, int codec, String csvHeader) throws IOException {
+        ShardedMessageWriter sharded = open(dir, partFileName, format, codec, csvHeader);
+        File file = new File(dir, partFileName);
+        if (sharded.current.count == 0 && file.length() > 0) {
+            // a file from before sharding has no manifest entry
+            scanPart(file, file.length(), format, codec, sharded.current);
+        }
+        sharded.writer = StreamingMessageWriter.openForAppend(file, format, codec, csvHeader);
+        sharded.current.checkpointPosition = sharded.writer.getPosition();
+        sharded.append = new Append(sharded.getTotal());
+        sharded.appends.add(sharded.append);
+        return sharded;
+    }
+
+    private static ShardedMessageWriter open(File dir, String partFileName, int format, int codec, String csvHeader) {
+        String name = stripExtension(partFileName, codec);
+        Matcher matcher = PART_PATTERN.matcher(name);
+        String baseName = matcher.matches() ? matcher.group(1) : name;
+        int index = matcher.matches() ? Integer.parseInt(matcher.group(2)) : 1;
+
+        ShardedMessageWriter sharded = new ShardedMessageWriter(dir, baseName, format, codec, csvHeader);
+        sharded.readManifest(index);
+        Part part = sharded.parts.isEmpty() ? null : sharded.parts.get(sharded.parts.size() - 1);
+        if (part == null || part.index != index) {
+            part = new Part(index, partFileName);
+            sharded.parts.add(part);
+        }
+        sharded.current = part;
+        return sharded;
+    }
+
+    public void setLimits(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    public void append(List<TLRPC.Message> messages) throws IOException {
+        // a compressed part's position trails by the pages still being deflated, so it may overshoot
+        // maxBytes by about that much
+        if (current.count > 0 && (current.count + messages.size() > maxMessages || writer.getPosition() >= maxBytes)) {
+            closePart();
+            if (!isSharded()) {
+                File part = new File(dir, getPartName(baseName, current.index, getExtension()));
+                if (!new File(dir, current.fileName).renameTo(part)) {
+                    throw new IOException("Failed to rename " + current.fileName + " to " + part.getName());
+                }
+                current.fileName = part.getName();
+            }
+            writeManifest();
+            openPart(current.index + 1);
+        }
+        writer.append(messages);
+        for (int i = 0, n = messages.size(); i < n; i++) {
+            current.add(messages.get(i).id);
+        }
+        count += messages.size();
+        if (append != null && !messages.isEmpty()) {
+            append.minId = messages.get(messages.size() - 1).id;
+            if (append.maxId == 0) {
+                // the run's newest message comes first; the manifest keeps it in case the run is resumed
+                append.maxId = messages.get(0).id;
+                writeManifest();
+            }
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getPosition() throws IOException {
+        return writer.getPosition();
+    }
+
+    public String getFileName() {
+        return current.fileName;
+    }
+
+    // Hands onPosition the start and end of what was appended to the current part since its previous
+    // checkpoint. Every format and codec can be read from the start; compressed parts report from the
+    // compress queue, in order, see StreamingMessageWriter.checkpoint.
+    public void checkpoint(Utilities.Callback2<Long, Long> onPosition) throws IOException {
+        Part part = current;
+        writer.checkpoint(position -> {
+            long start = part.checkpointPosition;
+            part.checkpointPosition = position;
+            onPosition.run(start, position);
+        });
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public List<Append> getAppends() {
+        return appends;
+    }
+
+    public List<File> getFiles() {
+        ArrayList<File> files = new ArrayList<>(parts.size() + 1);
+        for (int i = 0; i < parts.size(); i++) {
+            files.add(new File(dir, parts.get(i).fileName));
+        }
+        if (needsManifest()) {
+            files.add(getManifestFile());
+        }
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closePart();
+        if (needsManifest()) {
+            writeManifest();
+        }
+    }
+
+    private boolean isSharded() {
+        return !current.fileName.equals(baseName + getExtension());
+    }
+
+    private boolean needsManifest() {
+        return isSharded() || !appends.isEmpty();
+    }
+
+    private int getTotal() {
+        int total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            total += parts.get(i).count;
+        }
+        return total;
+    }
+
+    private String getExtension() {
+        return StreamingMessageWriter.getExtension(format) + ExportCompression.getExtension(codec);
+    }
+
+    private static String getPartName(String baseName, int index, String extension) {
+        return String.format(Locale.US, "%s_part%04d%s", baseName, index, extension);
+    }
+
+    private void openPart(int index) throws IOException {
+        String fileName = index == 1 ? baseName + getExtension() : getPartName(baseName, index, getExtension());
+        current = new Part(index, fileName);
+        parts.add(current);
+        writer = new StreamingMessageWriter(new File(dir, fileName), format, codec, csvHeader);
+    }
+
+    private void closePart() throws IOException {
+        writer.close();
+        current.bytes = new File(dir, current.fileName).length();
+    }
+
+    private File getManifestFile() {
+        return new File(dir, baseName + MANIFEST_EXTENSION);
+    }
+
+    private void readManifest(int upToIndex) {
+        File file = getManifestFile();
+        if (!file.exists()) {
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            JSONObject manifest = new JSONObject(new String(data, 0, read, "UTF-8"));
+            JSONArray appendArray = manifest.optJSONArray("appends");
+            for (int i = 0; appendArray != null && i < appendArray.length(); i++) {
+                JSONObject object = appendArray.getJSONObject(i);
+                Append append = new Append(object.getInt("first_message"));
+                append.messages = object.optInt("messages");
+                append.minId = object.optInt("min_id");
+                append.maxId = object.optInt("max_id");
+                appends.add(append);
+            }
+            JSONArray array = manifest.getJSONArray("parts");
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Part part = new Part(object.getInt("index"), object.getString("file"));
+                if (part.index > upToIndex) {
+                    // rolled over after the checkpoint; the part is rewritten from scratch
+                    break;
+                }
+                part.count = object.getInt("messages");
+                part.minId = object.optInt("min_id");
+                part.maxId = object.optInt("max_id");
+                part.bytes = object.optLong("bytes");
+                parts.add(part);
+            }
+        } catch (Exception e) {
+            FileLog.e("Failed to read export manifest " + file, e);
+            parts.clear();
+            appends.clear();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        try {
+            JSONArray array = new JSONArray();
+            long total = 0;
+            for (int i = 0; i < parts.size(); i++) {
+                Part part = parts.get(i);
+                JSONObject object = new JSONObject();
+                object.put("index", part.index);
+                object.put("file", part.fileName);
+                object.put("messages", part.count);
+                object.put("min_id", part.minId);
+                object.put("max_id", part.maxId);
+                object.put("bytes", part.bytes);
+                array.put(object);
+                total += part.count;
+            }
+            JSONObject manifest = new JSONObject();
+            manifest.put("format", StreamingMessageWriter.getExtension(format).substring(1));
+            manifest.put("codec", ExportCompression.getName(codec));
+            manifest.put("messages", total);
+            manifest.put("parts", array);
+            if (append != null) {
+                append.messages = (int) total - append.firstMessage;
+            }
+            if (!appends.isEmpty()) {
+                JSONArray appendArray = new JSONArray();
+                for (int i = 0; i < appends.size(); i++) {
+                    Append entry = appends.get(i);
+                    JSONObject object = new JSONObject();
+                    object.put("first_message", entry.firstMessage);
+                    object.put("messages", entry.messages);
+                    object.put("min_id", entry.minId);
+                    object.put("max_id", entry.maxId);
+                    appendArray.put(object);
+                }
+                manifest.put("appends", appendArray);
+            }
+
+            File file = getManifestFile();
+            File tmp = new File(dir, file.getName() + ".tmp");
+            try (FileWriter out = new FileWriter(tmp)) {
+                out.write(manifest.toString(2));
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    // rebuilds count and id range of the rows in the first length (compressed) bytes of a part
+    private static void scanPart(File file, long length, int format, int codec, Part part) throws IOException {
+        if (format == StreamingMessageWriter.FORMAT_COLUMNAR) {
+            if (length < ColumnarMessageReader.HEADER_SIZE) {
+                return;
+            }
+            try (ColumnarMessageReader reader = new ColumnarMessageReader(ExportCompression.openInput(file, length, codec))) {
+                long[] ids;
+                while ((ids = reader.nextIds()) != null) {
+                    for (long id : ids) {
+                        part.add((int) id);
+                    }
+                }
+            }
+            return;
+        }
+        boolean csv = format == StreamingMessageWriter.FORMAT_CSV;
+        String rowPrefix = format == StreamingMessageWriter.FORMAT_JSONL ? JSONL_ROW_PREFIX : JSON_ROW_PREFIX;
+        try (InputStream in = ExportCompression.openInput(file, length, codec)) {
+            boolean lineStart = true;
+            boolean header = csv;
+            boolean quoted = false;
+            int prefix = 0;
+            long id = -1;
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (csv && !header && c == '"') {
+                    quoted = !quoted;
+                }
+                if (c == '\n' && !quoted) {
+                    if (id >= 0) {
+                        part.add((int) id);
+                    }
+                    lineStart = true;
+                    header = false;
+                    prefix = 0;
+                    id = -1;
+                    continue;
+                }
+                if (!lineStart || header) {
+                    continue;
+                }
+                if (!csv && prefix < rowPrefix.length()) {
+                    if (c == rowPrefix.charAt(prefix)) {
+                        prefix++;
+                    } else {
+                        lineStart = false;
+                    }
+                } else if (c >= '0' && c <= '9') {
+                    id = (id < 0 ? 0 : id * 10) + (c - '0');
+                } else {
+                    lineStart = false;
+                }
+            }
+            if (format == StreamingMessageWriter.FORMAT_JSON && id >= 0) {
+                // the last JSON row has no trailing newline until the next separator
+                part.add((int) id);
+            }
+        }
+    }
+
+    private static String stripExtension(String fileName, int codec) {
+        String extension = ExportCompression.getExtension(codec);
+        if (!extension.isEmpty() && fileName.endsWith(extension)) {
+            fileName = fileName.substring(0, fileName.length() - extension.length());
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+}
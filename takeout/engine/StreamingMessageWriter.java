@@ -0,0 +1,280 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.Utilities;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class StreamingMessageWriter implements Closeable {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+    public static final int FORMAT_JSONL = 2;
+    public static final int FORMAT_COLUMNAR = 3;
+
+    private static final String JSON_OPEN = "[\n";
+    private static final String JSON_SEPARATOR = ",\n";
+    private static final String JSON_TRAILER = "\n]\n";
+    private static final String JSON_EMPTY_TRAILER = "]\n";
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BufferedWriter writer;
+    private final ColumnarMessageWriter columnar;
+    private final ExportCompression.GzipStream gzip;
+    private final int format;
+    private final Date date = new Date();
+    private int count;
+    private boolean hasRows;
+    private boolean closed;
+
+    public StreamingMessageWriter(File file, int format, int codec, String csvHeader) throws IOException {
+        this(file, format, codec, csvHeader, 0, 0);
+    }
+
+    public StreamingMessageWriter(File file, int format, int codec, String csvHeader, long resumePosition, int resumeCount) throws IOException {
+        this(file, format, codec, csvHeader, resumePosition, resumeCount, resumeCount > 0);
+    }
+
+    public static StreamingMessageWriter openForAppend(File file, int format, int codec, String csvHeader) throws IOException {
+        if (file.length() == 0) {
+            return new StreamingMessageWriter(file, format, codec, csvHeader);
+        }
+        if (format != FORMAT_JSON) {
+            // CSV and JSON Lines have no trailer, new rows simply go at the end
+            return new StreamingMessageWriter(file, format, codec, csvHeader, file.length(), 0, true);
+        }
+        if (codec != ExportCompression.CODEC_NONE) {
+            return openCompressedJsonForAppend(file, codec, csvHeader);
+        }
+        long position;
+        boolean hasRows;
+        try (RandomAccessFile existing = new RandomAccessFile(file, "r")) {
+            // step back over the closing bracket and whitespace to the last row
+            position = existing.length();
+            int c;
+            do {
+                existing.seek(--position);
+                c = existing.read();
+            } while (position > 0 && (c == ']' || Character.isWhitespace(c)));
+            hasRows = c != '[';
+            position++;
+        }
+        StreamingMessageWriter writer = new StreamingMessageWriter(file, FORMAT_JSON, ExportCompression.CODEC_NONE, csvHeader, position, 0, hasRows);
+        if (!hasRows) {
+            writer.writer.write('\n');
+        }
+        return writer;
+    }
+
+    // the trailer always goes out as its own member, so it can be cut off without inflating the file
+    private static StreamingMessageWriter openCompressedJsonForAppend(File file, int codec, String csvHeader) throws IOException {
+        byte[] trailer = ExportCompression.compress(JSON_TRAILER, codec);
+        byte[] open = ExportCompression.compress(JSON_OPEN, codec);
+        byte[] emptyTrailer = ExportCompression.compress(JSON_EMPTY_TRAILER, codec);
+        byte[] empty = Arrays.copyOf(open, open.length + emptyTrailer.length);
+        System.arraycopy(emptyTrailer, 0, empty, open.length, emptyTrailer.length);
+        // files closed before the trailer got its own member hold the empty array in one member
+        byte[] emptySingleMember = ExportCompression.compress(JSON_OPEN + JSON_EMPTY_TRAILER, codec);
+        long length = file.length();
+        if (length == empty.length && endsWith(file, empty) || length == emptySingleMember.length && endsWith(file, emptySingleMember)) {
+            return new StreamingMessageWriter(file, FORMAT_JSON, codec, csvHeader);
+        }
+        if (length > trailer.length && endsWith(file, trailer)) {
+            return new StreamingMessageWriter(file, FORMAT_JSON, codec, csvHeader, length - trailer.length, 0, true);
+        }
+        throw new IOException("Unexpected end of compressed export " + file);
+    }
+
+    private static boolean endsWith(File file, byte[] tail) throws IOException {
+        try (RandomAccessFile existing = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[tail.length];
+            existing.seek(existing.length() - tail.length);
+            existing.readFully(data);
+            return Arrays.equals(data, tail);
+        }
+    }
+
+    private StreamingMessageWriter(File file, int format, int codec, String csvHeader, long resumePosition, int resumeCount, boolean hasRows) throws IOException {
+        this.format = format;
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        // anything past the last checkpoint is a partially written page
+        channel.truncate(resumePosition);
+        channel.position(resumePosition);
+        OutputStream out = ExportCompression.wrap(Channels.newOutputStream(channel), codec, resumePosition);
+        gzip = out instanceof ExportCompression.GzipStream ? (ExportCompression.GzipStream) out : null;
+        if (format == FORMAT_COLUMNAR) {
+            writer = null;
+            columnar = new ColumnarMessageWriter(out);
+        } else {
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            columnar = null;
+        }
+        if (resumePosition == 0) {
+            if (format == FORMAT_COLUMNAR) {
+                columnar.writeHeader();
+            } else if (format == FORMAT_CSV) {
+                writer.write(csvHeader);
+            } else if (format == FORMAT_JSON) {
+                writer.write(JSON_OPEN);
+            }
+        } else {
+            count = resumeCount;
+            this.hasRows = hasRows;
+        }
+    }
+
+    public void append(List<TLRPC.Message> messages) throws IOException {
+        if (columnar != null) {
+            // one page is one row group, so checkpoints land on group boundaries
+            columnar.writeRowGroup(messages);
+            columnar.flush();
+            count += messages.size();
+            hasRows |= !messages.isEmpty();
+            return;
+        }
+        for (int i = 0, n = messages.size(); i < n; i++) {
+            TLRPC.Message msg = messages.get(i);
+            if (format == FORMAT_CSV) {
+                writeCsvRow(msg);
+            } else if (format == FORMAT_JSONL) {
+                writeJsonObject(msg);
+                writer.write('\n');
+            } else {
+                if (hasRows) {
+                    writer.write(JSON_SEPARATOR);
+                }
+                writer.write("  ");
+                writeJsonObject(msg);
+            }
+            hasRows = true;
+            count++;
+        }
+        writer.flush();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Compressed files only know their position once the text is deflated, so there it is the end of the
+    // last checkpoint that has been written, which can trail the rows appended since.
+    public long getPosition() throws IOException {
+        if (gzip != null) {
+            return gzip.getPosition();
+        }
+        flushBuffer();
+        return channel.position();
+    }
+
+    // Makes everything appended so far a cut point and hands its file position to onPosition: at once for
+    // plain files, and on the compress queue once the gzip member is written for compressed ones.
+    public void checkpoint(Utilities.Callback<Long> onPosition) throws IOException {
+        flushBuffer();
+        if (gzip != null) {
+            gzip.endMember(onPosition);
+        } else {
+            onPosition.run(channel.position());
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (columnar != null) {
+            columnar.flush();
+        } else {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (columnar != null) {
+            try {
+                columnar.close();
+            } finally {
+                file.close();
+            }
+            return;
+        }
+        try {
+            if (format == FORMAT_JSON) {
+                writer.flush();
+                if (gzip != null) {
+                    // the trailer goes into a member of its own, see openCompressedJsonForAppend
+                    gzip.endMember(null);
+                }
+                writer.write(hasRows ? JSON_TRAILER : JSON_EMPTY_TRAILER);
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            file.close();
+        }
+    }
+
+    private void writeCsvRow(TLRPC.Message msg) throws IOException {
+        date.setTime((long) msg.date * 1000);
+        writer.write(Integer.toString(msg.id));
+        writer.write(',');
+        writer.write(date.toString());
+        writer.write(',');
+        if (msg.from_id != null) {
+            writer.write(Long.toString(msg.from_id.user_id));
+        }
+        writer.write(',');
+        ExportEscaper.appendCsvField(writer, msg.message);
+        writer.write('\n');
+    }
+
+    private void writeJsonObject(TLRPC.Message msg) throws IOException {
+        date.setTime((long) msg.date * 1000);
+        writer.write("{\"id\": ");
+        writer.write(Integer.toString(msg.id));
+        writer.write(", \"date\": \"");
+        writer.write(date.toString());
+        writer.write("\", \"from_id\": ");
+        writer.write(msg.from_id != null ? Long.toString(msg.from_id.user_id) : "null");
+        writer.write(", \"message\": \"");
+        ExportEscaper.appendJsonString(writer, msg.message);
+        writer.write("\"}");
+    }
+
+    public static String getExtension(int format) {
+        switch (format) {
+            case FORMAT_JSON:
+                return ".json";
+            case FORMAT_JSONL:
+                return ".jsonl";
+            case FORMAT_COLUMNAR:
+                return ".tgcol";
+            default:
+                return ".csv";
+        }
+    }
+}
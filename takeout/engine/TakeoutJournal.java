@@ -0,0 +1,245 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import android.content.SharedPreferences;
+
+import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.MessagesController;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+public class TakeoutJournal {
+
+    private static final String JOURNAL_DIR = "takeout";
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final String ACTIVE_TAKEOUT_KEY = "takeout_active_id";
+    private static final String ACTIVE_CATEGORIES_KEY = "takeout_active_categories";
+    private static final String ACTIVE_FILE_MAX_SIZE_KEY = "takeout_active_file_max_size";
+    private static final String RECORD_PROGRESS = "P";
+    private static final String RECORD_COMPLETE = "C";
+
+    private static final HashMap<Long, TakeoutJournal> journals = new HashMap<>();
+
+    public static TakeoutJournal get(long takeoutId) {
+        synchronized (journals) {
+            TakeoutJournal journal = journals.get(takeoutId);
+            if (journal == null) {
+                journal = new TakeoutJournal(takeoutId);
+                journals.put(takeoutId, journal);
+            }
+            return journal;
+        }
+    }
+
+    public static long getActiveTakeoutId(int account) {
+        return MessagesController.getMainSettings(account).getLong(ACTIVE_TAKEOUT_KEY, 0);
+    }
+
+    // categories is a bit mask of ExportProgressBus categories; a session is only resumed for the same selection
+    public static void setActiveTakeout(int account, long takeoutId, int categories, long fileMaxSize) {
+        MessagesController.getMainSettings(account).edit()
+                .putLong(ACTIVE_TAKEOUT_KEY, takeoutId)
+                .putInt(ACTIVE_CATEGORIES_KEY, categories)
+                .putLong(ACTIVE_FILE_MAX_SIZE_KEY, fileMaxSize)
+                .apply();
+    }
+
+    public static boolean isActiveTakeoutFor(int account, int categories, long fileMaxSize) {
+        SharedPreferences preferences = MessagesController.getMainSettings(account);
+        return preferences.getLong(ACTIVE_TAKEOUT_KEY, 0) != 0
+                && preferences.getInt(ACTIVE_CATEGORIES_KEY, -1) == categories
+                && preferences.getLong(ACTIVE_FILE_MAX_SIZE_KEY, -1) == fileMaxSize;
+    }
+
+    public static void clearActiveTakeout(int account) {
+        long takeoutId = getActiveTakeoutId(account);
+        MessagesController.getMainSettings(account).edit()
+                .remove(ACTIVE_TAKEOUT_KEY)
+                .remove(ACTIVE_CATEGORIES_KEY)
+                .remove(ACTIVE_FILE_MAX_SIZE_KEY)
+                .apply();
+        if (takeoutId != 0) {
+            get(takeoutId).delete();
+        }
+    }
+
+    public static long getPeerKey(TLRPC.Peer peer) {
+        if (peer == null) {
+            return 0;
+        }
+        if (peer.user_id != 0) {
+            return peer.user_id;
+        } else if (peer.chat_id != 0) {
+            return -peer.chat_id;
+        }
+        return -peer.channel_id;
+    }
+
+    public static class Checkpoint {
+        public int offsetId;
+        public long position;
+        public int count;
+        public String fileName;
+        public boolean complete;
+    }
+
+    private final long takeoutId;
+    private final File file;
+    private final HashMap<String, Checkpoint> checkpoints = new HashMap<>();
+    private BufferedWriter writer;
+    private boolean loaded;
+
+    private TakeoutJournal(long takeoutId) {
+        this.takeoutId = takeoutId;
+        File dir = new File(ApplicationLoader.getFilesDirFixed(), JOURNAL_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            FileLog.e("Failed to create takeout journal directory: " + dir);
+        }
+        file = new File(dir, takeoutId + JOURNAL_EXTENSION);
+    }
+
+    public synchronized Checkpoint getCheckpoint(long peerKey, TLRPC.TL_messageRange range) {
+        load();
+        return checkpoints.get(key(peerKey, range));
+    }
+
+    public synchronized void recordProgress(long peerKey, TLRPC.TL_messageRange range, int offsetId, long position, int count, String fileName) {
+        load();
+        Checkpoint checkpoint = obtain(peerKey, range);
+        checkpoint.offsetId = offsetId;
+        checkpoint.position = position;
+        checkpoint.count = count;
+        checkpoint.fileName = fileName;
+        append(RECORD_PROGRESS + " " + key(peerKey, range) + " " + offsetId + " " + position + " " + count + " " + fileName);
+    }
+
+    public synchronized void recordComplete(long peerKey, TLRPC.TL_messageRange range, int count, String fileName) {
+        load();
+        Checkpoint checkpoint = obtain(peerKey, range);
+        checkpoint.complete = true;
+        checkpoint.count = count;
+        checkpoint.fileName = fileName;
+        append(RECORD_COMPLETE + " " + key(peerKey, range) + " " + count + " " + (fileName != null ? fileName : ""));
+    }
+
+    public synchronized boolean hasPending() {
+        load();
+        for (Checkpoint checkpoint : checkpoints.values()) {
+            if (!checkpoint.complete) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void delete() {
+        closeWriter();
+        checkpoints.clear();
+        if (file.exists() && !file.delete()) {
+            FileLog.e("Failed to delete takeout journal " + takeoutId);
+        }
+        synchronized (journals) {
+            journals.remove(takeoutId);
+        }
+    }
+
+    private Checkpoint obtain(long peerKey, TLRPC.TL_messageRange range) {
+        return obtain(key(peerKey, range));
+    }
+
+    private Checkpoint obtain(String key) {
+        Checkpoint checkpoint = checkpoints.get(key);
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint();
+            checkpoints.put(key, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    private static String key(long peerKey, TLRPC.TL_messageRange range) {
+        return peerKey + " " + range.min_id + " " + range.max_id;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseRecord(line);
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+    }
+
+    private void parseRecord(String line) {
+        // a torn last line from a killed process is simply ignored
+        try {
+            if (line.startsWith(RECORD_PROGRESS + " ")) {
+                String[] parts = line.split(" ", 8);
+                if (parts.length == 8) {
+                    Checkpoint checkpoint = obtain(parts[1] + " " + parts[2] + " " + parts[3]);
+                    checkpoint.offsetId = Integer.parseInt(parts[4]);
+                    checkpoint.position = Long.parseLong(parts[5]);
+                    checkpoint.count = Integer.parseInt(parts[6]);
+                    checkpoint.fileName = parts[7];
+                }
+            } else if (line.startsWith(RECORD_COMPLETE + " ")) {
+                String[] parts = line.split(" ", 6);
+                if (parts.length == 6) {
+                    Checkpoint checkpoint = obtain(parts[1] + " " + parts[2] + " " + parts[3]);
+                    checkpoint.count = Integer.parseInt(parts[4]);
+                    checkpoint.fileName = parts[5].isEmpty() ? null : parts[5];
+                    checkpoint.complete = true;
+                }
+            }
+        } catch (NumberFormatException e) {
+            FileLog.e("Skipping malformed takeout journal record: " + line);
+        }
+    }
+
+    private void append(String record) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new FileWriter(file, true));
+            }
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                FileLog.e(e);
+            }
+            writer = null;
+        }
+    }
+}
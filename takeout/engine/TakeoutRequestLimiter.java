@@ -0,0 +1,210 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.messenger.DispatchQueue;
+import org.telegram.messenger.FileLog;
+import org.telegram.messenger.UserConfig;
+import org.telegram.tgnet.ConnectionsManager;
+import org.telegram.tgnet.RequestDelegate;
+import org.telegram.tgnet.TLObject;
+
+import java.util.ArrayDeque;
+
+public class TakeoutRequestLimiter {
+
+    private static final String FLOOD_WAIT_PREFIX = "FLOOD_WAIT_";
+    private static final String FLOOD_PREMIUM_WAIT_PREFIX = "FLOOD_PREMIUM_WAIT_";
+    private static final String TAKEOUT_INIT_DELAY_PREFIX = "TAKEOUT_INIT_DELAY_";
+    private static final int MAX_RETRY_WAIT_SECONDS = 600;
+    private static final long WAIT_PADDING_MS = 500;
+    private static final int MAX_SERVER_ERROR_RETRIES = 3;
+    private static final long SERVER_ERROR_BACKOFF_MS = 1000;
+
+    private static final double INITIAL_RATE = 10;
+    private static final double MIN_RATE = 0.5;
+    private static final double MAX_RATE = 30;
+    private static final double BURST = 5;
+    private static final double RATE_INCREASE = 1;
+    private static final double FLOOD_DECREASE_FACTOR = 0.5;
+    private static final double FLOOD_CEILING_FACTOR = 0.9;
+    private static final double LATENCY_DECREASE_FACTOR = 0.9;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final double LATENCY_SLOWDOWN_RATIO = 2;
+
+    private static final DispatchQueue limiterQueue = new DispatchQueue("TakeoutLimiterQueue");
+    private static volatile TakeoutRequestLimiter[] Instance = new TakeoutRequestLimiter[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static TakeoutRequestLimiter getInstance(int num) {
+        TakeoutRequestLimiter localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (TakeoutRequestLimiter.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new TakeoutRequestLimiter(num);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private static class PendingCall {
+        final TLObject request;
+        final RequestDelegate delegate;
+        int serverErrorRetries;
+        long sentAt;
+
+        PendingCall(TLObject request, RequestDelegate delegate) {
+            this.request = request;
+            this.delegate = delegate;
+        }
+    }
+
+    private final int account;
+    private volatile TakeoutTransport transport;
+
+    // everything below is only touched on limiterQueue
+    private final ArrayDeque<PendingCall> pending = new ArrayDeque<>();
+    private double rate = INITIAL_RATE;
+    private double rateCeiling = MAX_RATE;
+    private double tokens = BURST;
+    private long lastRefill;
+    private long pausedUntil;
+    private double smoothedLatency;
+    private long minLatency;
+    private boolean pumpScheduled;
+
+    private TakeoutRequestLimiter(int account) {
+        this.account = account;
+    }
+
+    public void setTransport(TakeoutTransport transport) {
+        this.transport = transport;
+    }
+
+    private TakeoutTransport getTransport() {
+        TakeoutTransport transport = this.transport;
+        return transport != null ? transport : ConnectionsManager.getInstance(account)::sendRequest;
+    }
+
+    public void sendRequest(TLObject request, RequestDelegate delegate) {
+        PendingCall call = new PendingCall(request, delegate);
+        limiterQueue.postRunnable(() -> {
+            pending.add(call);
+            pump();
+        });
+    }
+
+    private void pump() {
+        if (pumpScheduled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < pausedUntil) {
+            schedulePump(pausedUntil - now);
+            return;
+        }
+        refill(now);
+        while (!pending.isEmpty() && tokens >= 1) {
+            tokens -= 1;
+            dispatch(pending.poll());
+        }
+        if (!pending.isEmpty()) {
+            schedulePump((long) Math.ceil((1 - tokens) / rate * 1000));
+        }
+    }
+
+    private void schedulePump(long delayMs) {
+        pumpScheduled = true;
+        limiterQueue.postRunnable(() -> {
+            pumpScheduled = false;
+            pump();
+        }, Math.max(1, delayMs));
+    }
+
+    private void refill(long now) {
+        if (lastRefill != 0) {
+            tokens = Math.min(BURST, tokens + (now - lastRefill) * rate / 1000);
+        }
+        lastRefill = now;
+    }
+
+    private void dispatch(PendingCall call) {
+        call.sentAt = System.currentTimeMillis();
+        getTransport().sendRequest(call.request, (response, error) -> {
+            long latency = System.currentTimeMillis() - call.sentAt;
+            if (error != null) {
+                int waitSeconds = getWaitSeconds(error.text);
+                if (waitSeconds >= 0 && waitSeconds <= MAX_RETRY_WAIT_SECONDS) {
+                    FileLog.d("Takeout request limited, retrying in " + waitSeconds + "s: " + error.text);
+                    limiterQueue.postRunnable(() -> {
+                        onRateLimited(waitSeconds * 1000L);
+                        pending.addFirst(call);
+                        pump();
+                    });
+                    return;
+                }
+                if (error.code >= 500 && call.serverErrorRetries < MAX_SERVER_ERROR_RETRIES) {
+                    call.serverErrorRetries++;
+                    FileLog.d("Takeout request failed with " + error.text + ", retry " + call.serverErrorRetries);
+                    limiterQueue.postRunnable(() -> {
+                        pending.addFirst(call);
+                        pump();
+                    }, SERVER_ERROR_BACKOFF_MS * call.serverErrorRetries);
+                    return;
+                }
+            } else {
+                limiterQueue.postRunnable(() -> onLatency(latency));
+            }
+            if (call.delegate != null) {
+                call.delegate.run(response, error);
+            }
+        });
+    }
+
+    private void onRateLimited(long waitMs) {
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + waitMs + WAIT_PADDING_MS);
+        rateCeiling = Math.max(MIN_RATE, rate * FLOOD_CEILING_FACTOR);
+        rate = Math.max(MIN_RATE, rate * FLOOD_DECREASE_FACTOR);
+        tokens = 0;
+    }
+
+    private void onLatency(long latency) {
+        smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + LATENCY_SMOOTHING * (latency - smoothedLatency);
+        if (minLatency == 0 || latency < minLatency) {
+            minLatency = Math.max(1, latency);
+        }
+        if (smoothedLatency > minLatency * LATENCY_SLOWDOWN_RATIO) {
+            rate = Math.max(MIN_RATE, rate * LATENCY_DECREASE_FACTOR);
+        } else {
+            rate = Math.min(rateCeiling, rate + RATE_INCREASE / rate);
+        }
+    }
+
+    public static int getWaitSeconds(String errorText) {
+        if (errorText == null) {
+            return -1;
+        }
+        String prefix;
+        if (errorText.startsWith(FLOOD_WAIT_PREFIX)) {
+            prefix = FLOOD_WAIT_PREFIX;
+        } else if (errorText.startsWith(FLOOD_PREMIUM_WAIT_PREFIX)) {
+            prefix = FLOOD_PREMIUM_WAIT_PREFIX;
+        } else if (errorText.startsWith(TAKEOUT_INIT_DELAY_PREFIX)) {
+            prefix = TAKEOUT_INIT_DELAY_PREFIX;
+        } else {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(errorText.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
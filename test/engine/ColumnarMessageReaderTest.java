@@ -0,0 +1,203 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarMessageReaderTest {
+
+    private static final long[] SENDERS = {1_000_001L, 1_000_002L, 1_000_003L};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // ids count down from firstId as in a history page; every fifth message has no sender, every
+    // seventh no text and every eleventh empty text
+    private static List<TLRPC.Message> page(int firstId, int rows) {
+        List<TLRPC.Message> messages = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            TLRPC.TL_message message = new TLRPC.TL_message();
+            message.id = firstId - i;
+            message.date = 1_700_000_000 + message.id;
+            if (i % 5 != 4) {
+                message.from_id = new TLRPC.TL_peerUser();
+                message.from_id.user_id = SENDERS[i % SENDERS.length];
+            }
+            if (i % 7 == 6) {
+                message.message = null;
+            } else if (i % 11 == 10) {
+                message.message = "";
+            } else {
+                message.message = "message " + message.id + ", \"quoted\"\nплюс 🙂";
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static byte[] write(boolean header, List<List<TLRPC.Message>> groups) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarMessageWriter writer = new ColumnarMessageWriter(out);
+        if (header) {
+            writer.writeHeader();
+        }
+        for (List<TLRPC.Message> group : groups) {
+            writer.writeRowGroup(group);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static void assertGroup(List<TLRPC.Message> expected, ColumnarMessageReader.RowGroup group) {
+        assertNotNull(group);
+        assertEquals(expected.size(), group.rows);
+        for (int i = 0; i < group.rows; i++) {
+            TLRPC.Message message = expected.get(i);
+            assertEquals(message.id, group.ids[i]);
+            assertEquals(message.date, group.dates[i]);
+            assertEquals(message.from_id != null, group.hasFromId(i));
+            if (message.from_id != null) {
+                assertEquals(message.from_id.user_id, group.getFromId(i));
+            }
+            assertEquals(message.message, group.messages[i]);
+        }
+    }
+
+    @Test
+    public void readsEveryColumnOfEveryGroup() throws IOException {
+        List<List<TLRPC.Message>> groups = Arrays.asList(page(1000, 100), page(900, 37), page(863, 1));
+        ColumnarMessageReader reader = new ColumnarMessageReader(new ByteArrayInputStream(write(true, groups)));
+        for (List<TLRPC.Message> group : groups) {
+            assertGroup(group, reader.next());
+        }
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void dictionaryHoldsEachSenderOnce() throws IOException {
+        List<TLRPC.Message> messages = page(500, 200);
+        ColumnarMessageReader reader = new ColumnarMessageReader(new ByteArrayInputStream(write(true, Arrays.asList(messages))));
+        ColumnarMessageReader.RowGroup group = reader.next();
+        assertEquals(SENDERS.length, group.fromDictionary.length);
+        for (int i = 0; i < group.rows; i++) {
+            assertEquals(messages.get(i).from_id == null ? -1 : i % SENDERS.length, group.fromIndex[i]);
+        }
+    }
+
+    @Test
+    public void emptyTextIsNotMissingText() throws IOException {
+        List<TLRPC.Message> messages = page(100, 11);
+        ColumnarMessageReader reader = new ColumnarMessageReader(new ByteArrayInputStream(write(true, Arrays.asList(messages))));
+        ColumnarMessageReader.RowGroup group = reader.next();
+        assertNull(group.messages[6]);
+        assertEquals("", group.messages[10]);
+        assertEquals(messages.get(0).message, group.messages[0]);
+    }
+
+    @Test
+    public void headerOnlyFileHasNoGroups() throws IOException {
+        byte[] data = write(true, new ArrayList<>());
+        assertEquals(ColumnarMessageReader.HEADER_SIZE, data.length);
+        assertNull(new ColumnarMessageReader(new ByteArrayInputStream(data)).next());
+    }
+
+    @Test
+    public void rejectsOtherFiles() {
+        try {
+            new ColumnarMessageReader(new ByteArrayInputStream("id,date,from_id,message\n".getBytes()));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void idsAndSkipsMatchFullReads() throws IOException {
+        List<List<TLRPC.Message>> groups = Arrays.asList(page(1000, 100), page(900, 50), page(850, 20));
+        ColumnarMessageReader reader = new ColumnarMessageReader(new ByteArrayInputStream(write(true, groups)));
+        long[] ids = reader.nextIds();
+        assertEquals(100, ids.length);
+        assertEquals(1000, ids[0]);
+        assertEquals(901, ids[99]);
+        assertTrue(reader.skipGroup());
+        assertGroup(groups.get(2), reader.next());
+        assertFalse(reader.skipGroup());
+        assertNull(reader.nextIds());
+    }
+
+    // the exporter ends a gzip member after every page, so a compressed file is one member per group
+    @Test
+    public void readsGzipMembersAsOneStream() throws IOException {
+        List<List<TLRPC.Message>> groups = Arrays.asList(page(1000, 100), page(900, 100), page(800, 42));
+        File file = folder.newFile("chat.tgcol.gz");
+        long[] memberEnds = new long[groups.size()];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < groups.size(); i++) {
+                GZIPOutputStream member = new GZIPOutputStream(out) {
+                    @Override
+                    public void close() throws IOException {
+                        // ends the member but leaves the file open for the next one
+                        finish();
+                    }
+                };
+                member.write(write(i == 0, Arrays.asList(groups.get(i))));
+                member.close();
+                memberEnds[i] = out.getChannel().position();
+            }
+        }
+
+        try (ColumnarMessageReader reader = ColumnarMessageReader.open(file)) {
+            for (List<TLRPC.Message> group : groups) {
+                assertGroup(group, reader.next());
+            }
+            assertNull(reader.next());
+        }
+
+        // a checkpoint between members cuts the file after the second group
+        try (ColumnarMessageReader reader = new ColumnarMessageReader(ExportInput.open(file, memberEnds[1], true))) {
+            assertGroup(groups.get(0), reader.next());
+            assertGroup(groups.get(1), reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void readsPlainFilesByName() throws IOException {
+        List<List<TLRPC.Message>> groups = Arrays.asList(page(1000, 10), page(990, 10));
+        File file = folder.newFile("chat.tgcol");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(write(true, groups));
+        }
+        try (ColumnarMessageReader reader = ColumnarMessageReader.open(file)) {
+            assertArrayEquals(new long[]{1000, 999, 998, 997, 996, 995, 994, 993, 992, 991}, reader.nextIds());
+            assertGroup(groups.get(1), reader.next());
+        }
+    }
+}
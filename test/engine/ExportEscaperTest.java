@@ -0,0 +1,137 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExportEscaperTest {
+
+    private static final String PAIR = "\uD83D\uDE02";
+    private static final char HIGH = '\uD83D';
+    private static final char LOW = '\uDE02';
+    private static final char REPLACEMENT = '\uFFFD';
+
+    // a Writer takes the String fast path, a StringBuilder the CharSequence one; both must agree
+    private static String csv(String field) throws IOException {
+        StringWriter writer = new StringWriter();
+        ExportEscaper.appendCsvField(writer, field);
+        StringBuilder builder = new StringBuilder();
+        ExportEscaper.appendCsvField(builder, field);
+        assertEquals(writer.toString(), builder.toString());
+        return writer.toString();
+    }
+
+    private static String json(String str) throws IOException {
+        StringWriter writer = new StringWriter();
+        ExportEscaper.appendJsonString(writer, str);
+        StringBuilder builder = new StringBuilder();
+        ExportEscaper.appendJsonString(builder, str);
+        assertEquals(writer.toString(), builder.toString());
+        return writer.toString();
+    }
+
+    @Test
+    public void csvLeavesPlainFieldsAsTheyAre() throws IOException {
+        assertEquals("", csv(null));
+        assertEquals("", csv(""));
+        assertEquals("hello world", csv("hello world"));
+        assertEquals("\u043F\u0440\u0438\u0432\u0435\u0442 \u1230\u120B\u121D \u4F60\u597D", csv("\u043F\u0440\u0438\u0432\u0435\u0442 \u1230\u120B\u121D \u4F60\u597D"));
+        assertEquals("tab\there", csv("tab\there"));
+    }
+
+    @Test
+    public void csvQuotesFieldsWithSeparatorsQuotesAndLineBreaks() throws IOException {
+        assertEquals("\"a,b\"", csv("a,b"));
+        assertEquals("\"line one\nline two\"", csv("line one\nline two"));
+        assertEquals("\"cr\r\"", csv("cr\r"));
+        assertEquals("\"she said \"\"fine\"\"\"", csv("she said \"fine\""));
+        assertEquals("\"\"\"\"", csv("\""));
+        assertEquals("\"\"\"\"\"\"", csv("\"\""));
+    }
+
+    // U+012C, U+0122, U+010A and U+010D share their low byte with ',', '"', '\n' and '\r'
+    @Test
+    public void csvDoesNotQuoteCharsThatOnlyShareALowByte() throws IOException {
+        assertEquals("\u012C\u0122\u010A\u010D", csv("\u012C\u0122\u010A\u010D"));
+    }
+
+    @Test
+    public void csvKeepsControlCharsAndLineSeparators() throws IOException {
+        assertEquals("\u0001\u0007\u001f", csv("\u0001\u0007\u001f"));
+        assertEquals("a\u2028b\u2029c", csv("a\u2028b\u2029c"));
+    }
+
+    @Test
+    public void csvKeepsValidPairs() throws IOException {
+        assertEquals(PAIR, csv(PAIR));
+        assertEquals("party " + PAIR + PAIR + " \u2764\uFE0F", csv("party " + PAIR + PAIR + " \u2764\uFE0F"));
+        assertEquals("\"" + PAIR + ",\"\"" + PAIR + "\"\"\"", csv(PAIR + ",\"" + PAIR + "\""));
+    }
+
+    @Test
+    public void csvReplacesLoneSurrogates() throws IOException {
+        assertEquals(REPLACEMENT + "ab", csv(HIGH + "ab"));
+        assertEquals(REPLACEMENT + "ab", csv(LOW + "ab"));
+        assertEquals("a" + REPLACEMENT + "b", csv("a" + HIGH + "b"));
+        assertEquals("a" + REPLACEMENT + "b", csv("a" + LOW + "b"));
+        assertEquals("ab" + REPLACEMENT, csv("ab" + HIGH));
+        assertEquals("ab" + REPLACEMENT, csv("ab" + LOW));
+        // a low surrogate before its high one is two lone surrogates, not a pair
+        assertEquals("" + REPLACEMENT + REPLACEMENT, csv("" + LOW + HIGH));
+        assertEquals(PAIR + REPLACEMENT + PAIR, csv(PAIR + HIGH + PAIR));
+        assertEquals(REPLACEMENT + PAIR, csv(HIGH + PAIR));
+        assertEquals(PAIR + REPLACEMENT, csv(PAIR + LOW));
+    }
+
+    @Test
+    public void csvQuotesAndRepairsTogether() throws IOException {
+        assertEquals("\"" + REPLACEMENT + "\"\"a\"\",b" + REPLACEMENT + "\"", csv(LOW + "\"a\",b" + HIGH));
+    }
+
+    @Test
+    public void jsonEscapesQuotesBackslashesAndShortEscapes() throws IOException {
+        assertEquals("", json(null));
+        assertEquals("plain", json("plain"));
+        assertEquals("\\\"a\\\\b\\\"", json("\"a\\b\""));
+        assertEquals("\\b\\f\\n\\r\\t", json("\b\f\n\r\t"));
+        assertEquals("a,b/c", json("a,b/c"));
+    }
+
+    @Test
+    public void jsonEscapesOtherControlCharsAndLineSeparators() throws IOException {
+        assertEquals("\\u0000\\u0001\\u0007\\u001f", json("\u0000\u0001\u0007\u001f"));
+        assertEquals(" \u007f", json(" \u007f"));
+        assertEquals("a\\u2028b\\u2029c", json("a\u2028b\u2029c"));
+        assertEquals("\u2027\u202A", json("\u2027\u202A"));
+    }
+
+    @Test
+    public void jsonKeepsValidPairs() throws IOException {
+        assertEquals(PAIR, json(PAIR));
+        assertEquals("\\\"" + PAIR + "\\\"", json("\"" + PAIR + "\""));
+        assertEquals("\u043F\u0440\u0438\u0432\u0435\u0442 " + PAIR + " \u2764\uFE0F", json("\u043F\u0440\u0438\u0432\u0435\u0442 " + PAIR + " \u2764\uFE0F"));
+    }
+
+    @Test
+    public void jsonReplacesLoneSurrogates() throws IOException {
+        assertEquals("\\ufffdab", json(HIGH + "ab"));
+        assertEquals("\\ufffdab", json(LOW + "ab"));
+        assertEquals("a\\ufffdb", json("a" + HIGH + "b"));
+        assertEquals("a\\ufffdb", json("a" + LOW + "b"));
+        assertEquals("ab\\ufffd", json("ab" + HIGH));
+        assertEquals("ab\\ufffd", json("ab" + LOW));
+        assertEquals("\\ufffd\\ufffd", json("" + LOW + HIGH));
+        assertEquals(PAIR + "\\ufffd" + PAIR, json(PAIR + HIGH + PAIR));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExportProgressBusTest {
+
+    private static final int CATEGORY = ExportProgressBus.CATEGORY_PRIVATE_CHATS;
+    private static final long FRAME_MS = 16;
+
+    // runs nothing by itself; a test decides when the scheduled flushes happen
+    private static class ManualScheduler implements ExportProgressBus.Scheduler {
+        final List<Runnable> runnables = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable runnable, long delayMs) {
+            runnables.add(runnable);
+            delays.add(delayMs);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(runnables);
+            runnables.clear();
+            delays.clear();
+            for (Runnable runnable : pending) {
+                runnable.run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements ExportProgressBus.Listener {
+        final List<ExportProgress> progress = new ArrayList<>();
+        final List<String> finished = new ArrayList<>();
+
+        @Override
+        public void onStatus(int category, String status, int colorKey) {}
+
+        @Override
+        public void onItem(int category, int order, String name, int total) {}
+
+        @Override
+        public void onProgress(ExportProgress progress) {
+            this.progress.add(progress);
+        }
+
+        @Override
+        public void onFinished(int category, String status, int colorKey) {
+            finished.add(status);
+        }
+    }
+
+    private ManualScheduler scheduler;
+    private RecordingListener listener;
+    private ExportProgressBus bus;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler();
+        listener = new RecordingListener();
+        bus = new ExportProgressBus(scheduler, FRAME_MS);
+        bus.addListener(listener);
+    }
+
+    @Test
+    public void updatesWithinOneFrameAreCoalesced() {
+        bus.addTotal(CATEGORY, 100);
+        for (int i = 0; i < 50; i++) {
+            bus.addCompleted(CATEGORY, 1);
+            bus.addMessages(CATEGORY, 10);
+        }
+
+        assertEquals(1, scheduler.runnables.size());
+        scheduler.runAll();
+
+        assertEquals(1, listener.progress.size());
+        ExportProgress progress = listener.progress.get(0);
+        assertEquals(50, progress.completed);
+        assertEquals(100, progress.total);
+        assertEquals(500, progress.messages);
+    }
+
+    @Test
+    public void nextFrameIsDeferredByTheInterval() {
+        bus.addCompleted(CATEGORY, 1);
+        scheduler.runAll();
+
+        bus.addCompleted(CATEGORY, 1);
+        assertEquals(1, scheduler.delays.size());
+        long delay = scheduler.delays.get(0);
+        assertTrue("delay " + delay, delay > 0 && delay <= FRAME_MS);
+    }
+
+    @Test
+    public void completedNeverMovesBackwards() {
+        bus.addTotal(CATEGORY, 10);
+        bus.addCompleted(CATEGORY, 5);
+        scheduler.runAll();
+
+        // more peers are discovered, which halves the plain completed / total ratio
+        bus.addTotal(CATEGORY, 10);
+        scheduler.runAll();
+
+        bus.addCompleted(CATEGORY, 1);
+        scheduler.runAll();
+
+        // completed can run ahead of a total that is still being counted
+        bus.addCompleted(CATEGORY, 20);
+        scheduler.runAll();
+
+        assertEquals(4, listener.progress.size());
+        for (int i = 1; i < listener.progress.size(); i++) {
+            ExportProgress previous = listener.progress.get(i - 1);
+            ExportProgress current = listener.progress.get(i);
+            assertTrue("completed went from " + previous.completed + " to " + current.completed, current.completed >= previous.completed);
+            assertTrue("fraction went from " + previous.fraction + " to " + current.fraction, current.fraction >= previous.fraction);
+        }
+        ExportProgress last = listener.progress.get(listener.progress.size() - 1);
+        assertEquals(last.total, last.completed);
+        assertEquals(1f, last.fraction, 0f);
+    }
+
+    @Test
+    public void finishFlushesImmediately() {
+        bus.addCompleted(CATEGORY, 1);
+        scheduler.runAll();
+
+        // a progress update now waits for the next frame ...
+        bus.addCompleted(CATEGORY, 1);
+        assertTrue(scheduler.delays.get(0) > 0);
+
+        // ... but finishing does not wait behind it
+        bus.finish(CATEGORY, "Export completed successfully", 0);
+        assertEquals(2, scheduler.delays.size());
+        assertEquals(0L, (long) scheduler.delays.get(1));
+
+        scheduler.runnables.get(1).run();
+        assertEquals(1, listener.finished.size());
+        assertEquals("Export completed successfully", listener.finished.get(0));
+        assertEquals(2, listener.progress.get(listener.progress.size() - 1).completed);
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import org.telegram.tgnet.RequestDelegate;
+import org.telegram.tgnet.TLObject;
+import org.telegram.tgnet.TLRPC;
+import org.telegram.tgnet.Vector;
+import org.telegram.tgnet.tl.TL_account;
+import org.telegram.tgnet.tl.TL_stories;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plus.takeout.TL_takeout;
+
+public class FakeTakeoutTransport implements TakeoutTransport {
+
+    public static final long SELF_USER_ID = 1;
+
+    private static final long USER_ID_BASE = 1_000_000L;
+    private static final long CHAT_ID_BASE = 2_000_000L;
+    private static final long CHANNEL_ID_BASE = 3_000_000L;
+    private static final int BASE_DATE = 1_500_000_000;
+    private static final int MESSAGE_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_RANGE_COUNT = 4;
+    private static final String[] SAMPLE_TEXTS = {
+            "Hello",
+            "See you at 10, ok?",
+            "She said \"fine\" and left",
+            "line one\nline two",
+            "\u041f\u0440\u0438\u0432\u0435\u0442, \u043c\u0438\u0440",
+            "\ud83d\ude00\ud83c\udf89 party",
+            "",
+            "A longer message that wraps across several lines in the client and is a bit closer to what people actually send each other in group chats"
+    };
+
+    private final int[] messageCounts;
+    private final int savedMessageCount;
+    private final int maxMessageCount;
+    private final long seed;
+    private final Random random;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FakeTakeoutTransport");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HashSet<Long> sessions = new HashSet<>();
+    private final HashMap<Integer, Integer> dialogCountByRange = new HashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong messageCount = new AtomicLong();
+
+    private int rangeCount = DEFAULT_RANGE_COUNT;
+    private int minLatencyMs;
+    private int maxLatencyMs;
+    private double floodWaitRate;
+    private int floodWaitSeconds = 1;
+    private double serverErrorRate;
+    private double fatalErrorRate;
+
+    public FakeTakeoutTransport(int dialogCount, int averageMessagesPerDialog, long seed) {
+        this.seed = seed;
+        random = new Random(seed);
+        messageCounts = new int[dialogCount];
+        int max = 0;
+        for (int i = 0; i < dialogCount; i++) {
+            messageCounts[i] = 1 + random.nextInt(Math.max(1, averageMessagesPerDialog * 2 - 1));
+            max = Math.max(max, messageCounts[i]);
+        }
+        savedMessageCount = averageMessagesPerDialog;
+        maxMessageCount = Math.max(max, savedMessageCount);
+    }
+
+    public void setRangeCount(int rangeCount) {
+        this.rangeCount = Math.max(1, rangeCount);
+    }
+
+    public void setLatency(int minMs, int maxMs) {
+        minLatencyMs = Math.max(0, minMs);
+        maxLatencyMs = Math.max(minLatencyMs, maxMs);
+    }
+
+    public void setFloodWait(double rate, int seconds) {
+        floodWaitRate = rate;
+        floodWaitSeconds = seconds;
+    }
+
+    public void setServerErrorRate(double rate) {
+        serverErrorRate = rate;
+    }
+
+    public void setFatalErrorRate(double rate) {
+        fatalErrorRate = rate;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public int getDialogCount() {
+        return messageCounts.length;
+    }
+
+    public long getTotalMessageCount() {
+        long total = savedMessageCount;
+        for (int count : messageCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void sendRequest(TLObject request, RequestDelegate delegate) {
+        requestCount.incrementAndGet();
+        TLObject response = null;
+        TLRPC.TL_error error;
+        long delay;
+        synchronized (this) {
+            delay = minLatencyMs + (maxLatencyMs > minLatencyMs ? random.nextInt(maxLatencyMs - minLatencyMs + 1) : 0);
+            error = injectError();
+            if (error == null) {
+                try {
+                    response = answer(request, null);
+                } catch (IllegalArgumentException e) {
+                    error = createError(400, e.getMessage());
+                }
+            }
+        }
+        TLObject finalResponse = response;
+        TLRPC.TL_error finalError = error;
+        executor.schedule(() -> {
+            if (delegate != null) {
+                delegate.run(finalResponse, finalError);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private TLRPC.TL_error injectError() {
+        double roll = random.nextDouble();
+        if (roll < floodWaitRate) {
+            return createError(420, "FLOOD_WAIT_" + floodWaitSeconds);
+        }
+        roll -= floodWaitRate;
+        if (roll < serverErrorRate) {
+            return createError(500, "INTERNAL_SERVER_ERROR");
+        }
+        roll -= serverErrorRate;
+        if (roll < fatalErrorRate) {
+            return createError(400, "CHAT_ADMIN_REQUIRED");
+        }
+        return null;
+    }
+
+    private TLObject answer(TLObject request, TLRPC.TL_messageRange range) {
+        if (request instanceof TL_takeout.TL_invokeWithTakeout) {
+            TL_takeout.TL_invokeWithTakeout invoke = (TL_takeout.TL_invokeWithTakeout) request;
+            if (!sessions.contains(invoke.takeout_id)) {
+                throw new IllegalArgumentException("TAKEOUT_INVALID");
+            }
+            return answer(invoke.query, range);
+        } else if (request instanceof TL_takeout.TL_invokeWithMessagesRange) {
+            TL_takeout.TL_invokeWithMessagesRange invoke = (TL_takeout.TL_invokeWithMessagesRange) request;
+            return answer(invoke.query, invoke.range);
+        } else if (request instanceof TL_takeout.TL_account_initTakeoutSession) {
+            TL_takeout.TL_account_takeout takeout = new TL_takeout.TL_account_takeout();
+            takeout.id = seed * 31 + sessions.size() + 1;
+            sessions.add(takeout.id);
+            return takeout;
+        } else if (request instanceof TL_takeout.TL_account_finishTakeoutSession) {
+            return new TLRPC.TL_boolTrue();
+        } else if (request instanceof TL_takeout.TL_messages_getSplitRanges) {
+            return getSplitRanges();
+        } else if (request instanceof TLRPC.TL_messages_getDialogs) {
+            return getDialogs((TLRPC.TL_messages_getDialogs) request, range);
+        } else if (request instanceof TLRPC.TL_messages_getHistory) {
+            TLRPC.TL_messages_getHistory getHistory = (TLRPC.TL_messages_getHistory) request;
+            return getHistory(getDialogIndex(getHistory.peer), range, getHistory.offset_id, getHistory.min_id, getHistory.limit);
+        } else if (request instanceof TLRPC.TL_messages_search) {
+            TLRPC.TL_messages_search search = (TLRPC.TL_messages_search) request;
+            return getHistory(getDialogIndex(search.peer), range, search.offset_id, search.min_id, search.limit);
+        } else if (request instanceof TL_takeout.TL_contacts_getSaved) {
+            return getSavedContacts();
+        } else if (request instanceof TLRPC.TL_users_getFullUser) {
+            TLRPC.TL_users_userFull userFull = new TLRPC.TL_users_userFull();
+            userFull.full_user = new TLRPC.UserFull();
+            userFull.full_user.about = SAMPLE_TEXTS[2];
+            return userFull;
+        } else if (request instanceof TLRPC.TL_photos_getUserPhotos) {
+            return new TLRPC.TL_photos_photos();
+        } else if (request instanceof TL_stories.TL_stories_getStoriesArchive) {
+            return new TL_stories.TL_stories_stories();
+        } else if (request instanceof TL_account.getAuthorizations) {
+            return new TL_account.authorizations();
+        } else if (request instanceof TL_account.getWebAuthorizations) {
+            return new TL_account.webAuthorizations();
+        }
+        throw new IllegalArgumentException("METHOD_INVALID");
+    }
+
+    private Vector<TLRPC.TL_messageRange> getSplitRanges() {
+        Vector<TLRPC.TL_messageRange> ranges = new Vector<>(TLRPC.TL_messageRange::TLdeserialize);
+        int step = (maxMessageCount + rangeCount - 1) / rangeCount;
+        for (int minId = 1; minId <= maxMessageCount; minId += step) {
+            TLRPC.TL_messageRange range = new TLRPC.TL_messageRange();
+            range.min_id = minId;
+            range.max_id = Math.min(maxMessageCount, minId + step - 1);
+            ranges.objects.add(range);
+        }
+        return ranges;
+    }
+
+    private TLRPC.messages_Dialogs getDialogs(TLRPC.TL_messages_getDialogs request, TLRPC.TL_messageRange range) {
+        int minId = range != null ? range.min_id : 1;
+        int start = 0;
+        if (request.offset_peer != null && !(request.offset_peer instanceof TLRPC.TL_inputPeerEmpty)) {
+            start = getDialogIndex(request.offset_peer) + 1;
+        }
+        TLRPC.TL_messages_dialogsSlice slice = new TLRPC.TL_messages_dialogsSlice();
+        slice.count = countDialogs(minId);
+        for (int i = start; i < messageCounts.length && slice.dialogs.size() < request.limit; i++) {
+            if (messageCounts[i] < minId) {
+                continue;
+            }
+            int topMessage = range != null ? Math.min(messageCounts[i], range.max_id) : messageCounts[i];
+            TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
+            dialog.peer = createPeer(i);
+            dialog.top_message = topMessage;
+            dialog.last_message_date = getDate(i, topMessage);
+            slice.dialogs.add(dialog);
+            if (i % 3 == 0) {
+                slice.users.add(createUser(i));
+            } else {
+                slice.chats.add(createChat(i));
+            }
+        }
+        return slice;
+    }
+
+    private int countDialogs(int minId) {
+        Integer cached = dialogCountByRange.get(minId);
+        if (cached == null) {
+            int count = 0;
+            for (int messages : messageCounts) {
+                if (messages >= minId) {
+                    count++;
+                }
+            }
+            dialogCountByRange.put(minId, cached = count);
+        }
+        return cached;
+    }
+
+    private TLRPC.messages_Messages getHistory(int dialogIndex, TLRPC.TL_messageRange range, int offsetId, int minId, int limit) {
+        int total = dialogIndex < 0 ? savedMessageCount : messageCounts[dialogIndex];
+        int top = range != null ? Math.min(total, range.max_id) : total;
+        int bottom = Math.max(1, minId + 1);
+        if (range != null) {
+            bottom = Math.max(bottom, range.min_id);
+        }
+        TLRPC.TL_messages_messagesSlice slice = new TLRPC.TL_messages_messagesSlice();
+        slice.count = Math.max(0, top - bottom + 1);
+        if (offsetId > 0) {
+            top = Math.min(top, offsetId - 1);
+        }
+        for (int id = top; id >= bottom && slice.messages.size() < limit; id--) {
+            slice.messages.add(createMessage(dialogIndex, id));
+        }
+        messageCount.addAndGet(slice.messages.size());
+        return slice;
+    }
+
+    private Vector<TL_takeout.TL_savedContact> getSavedContacts() {
+        Vector<TL_takeout.TL_savedContact> contacts = new Vector<>(TL_takeout.TL_savedContact::TLdeserialize);
+        for (int i = 0; i < messageCounts.length; i += 3) {
+            TL_takeout.TL_savedContact contact = new TL_takeout.TL_savedContact();
+            contact.first_name = "User";
+            contact.last_name = Integer.toString(i);
+            contact.phone = Long.toString(79_000_000_000L + i);
+            contact.date = BASE_DATE + i;
+            contacts.objects.add(contact);
+        }
+        return contacts;
+    }
+
+    private int getDialogIndex(TLRPC.InputPeer peer) {
+        if (peer instanceof TLRPC.TL_inputPeerSelf) {
+            return -1;
+        } else if (peer instanceof TLRPC.TL_inputPeerUser) {
+            return checkIndex(peer.user_id - USER_ID_BASE);
+        } else if (peer instanceof TLRPC.TL_inputPeerChat) {
+            return checkIndex(peer.chat_id - CHAT_ID_BASE);
+        } else if (peer instanceof TLRPC.TL_inputPeerChannel) {
+            return checkIndex(peer.channel_id - CHANNEL_ID_BASE);
+        }
+        throw new IllegalArgumentException("PEER_ID_INVALID");
+    }
+
+    private int checkIndex(long index) {
+        if (index < 0 || index >= messageCounts.length) {
+            throw new IllegalArgumentException("PEER_ID_INVALID");
+        }
+        return (int) index;
+    }
+
+    private TLRPC.Peer createPeer(int index) {
+        TLRPC.Peer peer;
+        switch (index % 3) {
+            case 0:
+                peer = new TLRPC.TL_peerUser();
+                peer.user_id = USER_ID_BASE + index;
+                break;
+            case 1:
+                peer = new TLRPC.TL_peerChat();
+                peer.chat_id = CHAT_ID_BASE + index;
+                break;
+            default:
+                peer = new TLRPC.TL_peerChannel();
+                peer.channel_id = CHANNEL_ID_BASE + index;
+                break;
+        }
+        return peer;
+    }
+
+    private TLRPC.User createUser(int index) {
+        TLRPC.TL_user user = new TLRPC.TL_user();
+        user.id = USER_ID_BASE + index;
+        user.access_hash = seed ^ index;
+        user.first_name = "User";
+        user.last_name = Integer.toString(index);
+        return user;
+    }
+
+    private TLRPC.Chat createChat(int index) {
+        TLRPC.Chat chat;
+        if (index % 3 == 1) {
+            chat = new TLRPC.TL_chat();
+            chat.id = CHAT_ID_BASE + index;
+            chat.title = "Group " + index;
+        } else {
+            chat = new TLRPC.TL_channel();
+            chat.id = CHANNEL_ID_BASE + index;
+            chat.access_hash = seed ^ index;
+            chat.title = "Channel " + index;
+            chat.broadcast = true;
+        }
+        return chat;
+    }
+
+    private TLRPC.Message createMessage(int dialogIndex, int id) {
+        TLRPC.TL_message message = new TLRPC.TL_message();
+        message.id = id;
+        message.date = getDate(dialogIndex, id);
+        message.peer_id = dialogIndex < 0 ? createSelfPeer() : createPeer(dialogIndex);
+        message.from_id = new TLRPC.TL_peerUser();
+        message.from_id.user_id = dialogIndex >= 0 && id % 2 == 0 ? USER_ID_BASE + dialogIndex : SELF_USER_ID;
+        message.out = message.from_id.user_id == SELF_USER_ID;
+        message.message = SAMPLE_TEXTS[(id + dialogIndex + SAMPLE_TEXTS.length) % SAMPLE_TEXTS.length];
+        return message;
+    }
+
+    private static TLRPC.Peer createSelfPeer() {
+        TLRPC.TL_peerUser peer = new TLRPC.TL_peerUser();
+        peer.user_id = SELF_USER_ID;
+        return peer;
+    }
+
+    private static int getDate(int dialogIndex, int id) {
+        return BASE_DATE + id * MESSAGE_INTERVAL_SECONDS + Math.max(0, dialogIndex);
+    }
+
+    private static TLRPC.TL_error createError(int code, String text) {
+        TLRPC.TL_error error = new TLRPC.TL_error();
+        error.code = code;
+        error.text = text;
+        return error;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import android.app.Application;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.telegram.tgnet.RequestDelegate;
+import org.telegram.tgnet.TLObject;
+import org.telegram.tgnet.TLRPC;
+import org.telegram.tgnet.Vector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import plus.takeout.TL_takeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// DispatchQueue needs a Looper, so the fetcher and the limiter run under Robolectric;
+// the plain Application keeps ApplicationLoader and its native libraries out of the test
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class HistoryFetcherTest {
+
+    private static final int ACCOUNT = 0;
+    private static final int DIALOG_COUNT = 1;
+    private static final int AVERAGE_MESSAGES = 350;
+    private static final long SEED = 42;
+    private static final long USER_ID = 1_000_000L;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    // fails the next history requests with the queued errors, everything else goes to the fake
+    private static class ScriptedTransport implements TakeoutTransport {
+        final FakeTakeoutTransport fake;
+        final ArrayDeque<TLRPC.TL_error> errors = new ArrayDeque<>();
+        final List<Long> historyRequestTimes = new ArrayList<>();
+        // released once the limiter has handled an injected error
+        final Semaphore errorsDelivered = new Semaphore(0);
+
+        ScriptedTransport(FakeTakeoutTransport fake) {
+            this.fake = fake;
+        }
+
+        synchronized void failNextHistory(int code, String text, int times) {
+            for (int i = 0; i < times; i++) {
+                TLRPC.TL_error error = new TLRPC.TL_error();
+                error.code = code;
+                error.text = text;
+                errors.add(error);
+            }
+        }
+
+        synchronized List<Long> getHistoryRequestTimes() {
+            return new ArrayList<>(historyRequestTimes);
+        }
+
+        @Override
+        public void sendRequest(TLObject request, RequestDelegate delegate) {
+            TLRPC.TL_error error = null;
+            if (isHistory(request)) {
+                synchronized (this) {
+                    historyRequestTimes.add(System.currentTimeMillis());
+                    error = errors.poll();
+                }
+            }
+            if (error != null) {
+                delegate.run(null, error);
+                errorsDelivered.release();
+            } else {
+                fake.sendRequest(request, delegate);
+            }
+        }
+
+        private static boolean isHistory(TLObject request) {
+            while (true) {
+                if (request instanceof TL_takeout.TL_invokeWithTakeout) {
+                    request = ((TL_takeout.TL_invokeWithTakeout) request).query;
+                } else if (request instanceof TL_takeout.TL_invokeWithMessagesRange) {
+                    request = ((TL_takeout.TL_invokeWithMessagesRange) request).query;
+                } else {
+                    return request instanceof TLRPC.TL_messages_getHistory;
+                }
+            }
+        }
+    }
+
+    private static class CollectingSink implements MessageSink {
+        final List<Integer> ids = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String error;
+
+        @Override
+        public boolean onBatch(List<TLRPC.Message> batch) {
+            for (TLRPC.Message message : batch) {
+                ids.add(message.id);
+            }
+            return true;
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String reason) {
+            error = reason;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("fetch did not finish", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private FakeTakeoutTransport fake;
+    private ScriptedTransport transport;
+    private long takeoutId;
+    private TLRPC.TL_messageRange range;
+    private TLRPC.TL_inputPeerUser peer;
+
+    @Before
+    public void setUp() throws Exception {
+        fake = new FakeTakeoutTransport(DIALOG_COUNT, AVERAGE_MESSAGES, SEED);
+        fake.setLatency(1, 5);
+        // one range over the whole history, so one fetch returns every message of the dialog
+        fake.setRangeCount(1);
+        transport = new ScriptedTransport(fake);
+        TakeoutRequestLimiter.getInstance(ACCOUNT).setTransport(transport);
+
+        takeoutId = ((TL_takeout.TL_account_takeout) send(new TL_takeout.TL_account_initTakeoutSession())).id;
+        TL_takeout.TL_invokeWithTakeout getRanges = new TL_takeout.TL_invokeWithTakeout();
+        getRanges.takeout_id = takeoutId;
+        getRanges.query = new TL_takeout.TL_messages_getSplitRanges();
+        Vector<?> ranges = (Vector<?>) send(getRanges);
+        assertEquals(1, ranges.objects.size());
+        range = (TLRPC.TL_messageRange) ranges.objects.get(0);
+
+        peer = new TLRPC.TL_inputPeerUser();
+        peer.user_id = USER_ID;
+    }
+
+    @After
+    public void tearDown() {
+        TakeoutRequestLimiter.getInstance(ACCOUNT).setTransport(null);
+        fake.shutdown();
+    }
+
+    @Test
+    public void fetchesEveryMessageOnce() throws Exception {
+        CollectingSink sink = fetch();
+
+        assertNull(sink.error);
+        assertHistoryComplete(sink);
+        assertTrue(transport.getHistoryRequestTimes().size() > 1);
+    }
+
+    @Test
+    public void floodWaitIsRequeuedAfterTheWait() throws Exception {
+        transport.failNextHistory(420, "FLOOD_WAIT_1", 1);
+
+        CollectingSink sink = fetch();
+
+        // the caller never sees the FLOOD_WAIT, only the pages sent after the pause
+        assertNull(sink.error);
+        assertHistoryComplete(sink);
+        List<Long> times = transport.getHistoryRequestTimes();
+        assertTrue("retried after " + (times.get(1) - times.get(0)) + " ms", times.get(1) - times.get(0) >= 1000);
+    }
+
+    @Test
+    public void floodWaitHoldsOtherRequests() throws Exception {
+        transport.failNextHistory(420, "FLOOD_WAIT_1", 1);
+        CollectingSink sink = new CollectingSink();
+        new HistoryFetcher(ACCOUNT, takeoutId).fetch(range, peer, sink);
+        assertTrue(transport.errorsDelivered.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long floodTime = transport.getHistoryRequestTimes().get(0);
+
+        // sent while the limiter is paused, so it only goes out once the wait is over
+        TL_takeout.TL_invokeWithTakeout getRanges = new TL_takeout.TL_invokeWithTakeout();
+        getRanges.takeout_id = takeoutId;
+        getRanges.query = new TL_takeout.TL_messages_getSplitRanges();
+        send(getRanges);
+        assertTrue(System.currentTimeMillis() - floodTime >= 1000);
+
+        sink.await();
+        assertNull(sink.error);
+        assertHistoryComplete(sink);
+    }
+
+    @Test
+    public void serverErrorsAreRetriedWithBackoff() throws Exception {
+        transport.failNextHistory(500, "INTERNAL_SERVER_ERROR", 2);
+
+        CollectingSink sink = fetch();
+
+        assertNull(sink.error);
+        assertHistoryComplete(sink);
+        List<Long> times = transport.getHistoryRequestTimes();
+        assertTrue(times.get(1) - times.get(0) >= 1000);
+        assertTrue(times.get(2) - times.get(1) >= 2000);
+    }
+
+    @Test
+    public void serverErrorIsReportedOnceRetriesRunOut() throws Exception {
+        // the first try and three retries
+        transport.failNextHistory(500, "INTERNAL_SERVER_ERROR", 4);
+
+        CollectingSink sink = fetch();
+
+        assertEquals("INTERNAL_SERVER_ERROR", sink.error);
+        assertTrue(sink.ids.isEmpty());
+        assertEquals(4, transport.getHistoryRequestTimes().size());
+    }
+
+    private CollectingSink fetch() throws InterruptedException {
+        CollectingSink sink = new CollectingSink();
+        new HistoryFetcher(ACCOUNT, takeoutId).fetch(range, peer, sink);
+        sink.await();
+        return sink;
+    }
+
+    // the fake numbers a dialog's messages 1..n and also counts the saved messages in its total
+    private void assertHistoryComplete(CollectingSink sink) {
+        int expected = (int) (fake.getTotalMessageCount() - AVERAGE_MESSAGES);
+        assertEquals(expected, sink.ids.size());
+        for (int i = 0; i < sink.ids.size(); i++) {
+            assertEquals(expected - i, (int) sink.ids.get(i));
+        }
+    }
+
+    private TLObject send(TLObject request) throws InterruptedException {
+        BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        TakeoutRequestLimiter.getInstance(ACCOUNT).sendRequest(request, (response, error) -> result.add(error != null ? error : response));
+        Object answer = result.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue("unexpected answer " + answer, answer instanceof TLObject && !(answer instanceof TLRPC.TL_error));
+        return (TLObject) answer;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Created by Tesfamariam Gebre.
+ */
+
+package plus.takeout.engine;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.telegram.tgnet.TLRPC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// the writer runs on a DispatchQueue, which needs a Looper
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SearchIndexTest {
+
+    private static final String PLAIN_FILE = "chat.csv";
+    private static final String GZIP_FILE = "chat.csv.gz";
+    private static final int PAGES = 40;
+    private static final int WORDS = 300;
+    private static final int WORDS_PER_PAGE = 60;
+    private static final long SEED = 42;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File exportRoot;
+    private File segmentRoot;
+    private final List<List<TLRPC.Message>> pages = new ArrayList<>();
+    private final List<String> pageFiles = new ArrayList<>();
+    private final List<Long> pageOffsets = new ArrayList<>();
+    private final List<String> pageTexts = new ArrayList<>();
+    // term -> "file@offset" of every page that contains it, sorted by term
+    private final TreeMap<String, Set<String>> expected = new TreeMap<>();
+
+    private static TLRPC.Message message(String text) {
+        TLRPC.TL_message message = new TLRPC.TL_message();
+        message.message = text;
+        return message;
+    }
+
+    private void expect(String term, int page) {
+        Set<String> hits = expected.get(term);
+        if (hits == null) {
+            hits = new HashSet<>();
+            expected.put(term, hits);
+        }
+        hits.add(pageFiles.get(page) + "@" + pageOffsets.get(page));
+    }
+
+    // even pages go to a plain file and odd pages to a gzip file with one member per page, as the
+    // exporter writes them
+    @Before
+    public void setUp() throws IOException {
+        exportRoot = folder.newFolder("export");
+        segmentRoot = folder.newFolder("segments");
+        Random random = new Random(SEED);
+        try (FileOutputStream plain = new FileOutputStream(new File(exportRoot, PLAIN_FILE));
+             FileOutputStream gzip = new FileOutputStream(new File(exportRoot, GZIP_FILE))) {
+            for (int p = 0; p < PAGES; p++) {
+                StringBuilder words = new StringBuilder();
+                for (int i = 0; i < WORDS_PER_PAGE; i++) {
+                    words.append(String.format(Locale.US, "W%03d", random.nextInt(WORDS))).append(i % 3 == 0 ? ", " : " ");
+                }
+                List<TLRPC.Message> page = new ArrayList<>();
+                page.add(message("Page" + p + " common" + (p % 2 == 0 ? " even" : "")));
+                page.add(message(null));
+                page.add(message(words.toString()));
+                pages.add(page);
+
+                StringBuilder text = new StringBuilder();
+                for (TLRPC.Message message : page) {
+                    text.append(message.message).append('\n');
+                }
+                byte[] bytes = text.toString().getBytes(ColumnarMessageReader.UTF_8);
+                pageTexts.add(text.toString());
+                FileOutputStream out = p % 2 == 0 ? plain : gzip;
+                pageFiles.add(p % 2 == 0 ? PLAIN_FILE : GZIP_FILE);
+                pageOffsets.add(out.getChannel().position());
+                if (out == gzip) {
+                    GZIPOutputStream member = new GZIPOutputStream(out);
+                    member.write(bytes);
+                    member.finish();
+                } else {
+                    out.write(bytes);
+                }
+
+                ArrayList<String> terms = new ArrayList<>();
+                for (TLRPC.Message message : page) {
+                    if (message.message != null) {
+                        SearchIndexWriter.tokenize(message.message, terms);
+                    }
+                }
+                for (String term : terms) {
+                    expect(term, p);
+                }
+            }
+        }
+    }
+
+    private File writeIndex(String name, long maxBufferBytes) throws IOException, InterruptedException {
+        SearchIndexWriter writer = SearchIndexWriter.create(exportRoot, name, segmentRoot, maxBufferBytes);
+        for (int p = 0; p < PAGES; p++) {
+            writer.addPage(pageFiles.get(p), pageOffsets.get(p), pages.get(p));
+        }
+        CountDownLatch closed = new CountDownLatch(1);
+        writer.close(closed::countDown);
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(writer.getFile().exists());
+        return writer.getFile();
+    }
+
+    private static Set<String> toSet(List<SearchIndexReader.Hit> hits) {
+        Set<String> set = new HashSet<>();
+        for (SearchIndexReader.Hit hit : hits) {
+            set.add(hit.fileName + "@" + hit.offset);
+        }
+        assertEquals(hits.size(), set.size());
+        return set;
+    }
+
+    private void assertEveryTerm(File indexFile) throws IOException {
+        try (SearchIndexReader reader = SearchIndexReader.open(indexFile)) {
+            assertEquals(expected.size(), reader.getTermCount());
+            for (Map.Entry<String, Set<String>> entry : expected.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue(), toSet(reader.lookup(entry.getKey())));
+            }
+        }
+    }
+
+    @Test
+    public void oneSegmentFindsEveryTerm() throws Exception {
+        assertEveryTerm(writeIndex("single", Long.MAX_VALUE));
+    }
+
+    // a one-byte buffer spills after every page, so close() merges one segment per page
+    @Test
+    public void mergedSegmentsFindEveryTerm() throws Exception {
+        File indexFile = writeIndex("spilled", 1);
+        assertEveryTerm(indexFile);
+        assertFalse(new File(segmentRoot, "spilled").exists());
+    }
+
+    @Test
+    public void findsFirstLastAndBlockBoundaryTerms() throws Exception {
+        List<String> terms = new ArrayList<>(expected.keySet());
+        assertTrue(terms.size() > 3 * SearchIndexWriter.BLOCK_TERMS);
+        try (SearchIndexReader reader = SearchIndexReader.open(writeIndex("blocks", 1))) {
+            for (int i = 0; i < terms.size(); i++) {
+                int inBlock = i % SearchIndexWriter.BLOCK_TERMS;
+                if (i == 0 || i == terms.size() - 1 || inBlock == 0 || inBlock == SearchIndexWriter.BLOCK_TERMS - 1) {
+                    String term = terms.get(i);
+                    assertEquals(term, expected.get(term), toSet(reader.lookup(term)));
+                }
+            }
+            // before the first term, after the last and between two terms of a block
+            assertTrue(reader.lookup("aa").isEmpty());
+            assertTrue(reader.lookup("zzz").isEmpty());
+            assertTrue(reader.lookup(terms.get(SearchIndexWriter.BLOCK_TERMS) + "0").isEmpty());
+        }
+    }
+
+    @Test
+    public void searchMatchesPagesWithEveryWord() throws Exception {
+        try (SearchIndexReader reader = SearchIndexReader.open(writeIndex("search", 1))) {
+            Set<String> evenPages = new HashSet<>();
+            for (int p = 0; p < PAGES; p += 2) {
+                evenPages.add(pageFiles.get(p) + "@" + pageOffsets.get(p));
+            }
+            assertEquals(evenPages, toSet(reader.search("Common, EVEN")));
+
+            Random random = new Random(SEED);
+            for (int i = 0; i < 50; i++) {
+                String a = String.format(Locale.US, "w%03d", random.nextInt(WORDS));
+                String b = String.format(Locale.US, "w%03d", random.nextInt(WORDS));
+                Set<String> both = new HashSet<>(expected.containsKey(a) ? expected.get(a) : new HashSet<>());
+                both.retainAll(expected.containsKey(b) ? expected.get(b) : new HashSet<>());
+                assertEquals(a + " " + b, both, toSet(reader.search(a + " " + b)));
+            }
+
+            assertTrue(reader.search("common missing").isEmpty());
+            assertTrue(reader.search(" ,. ").isEmpty());
+        }
+    }
+
+    @Test
+    public void openPageStartsAtThePageInPlainAndGzipFiles() throws Exception {
+        try (SearchIndexReader reader = SearchIndexReader.open(writeIndex("pages", 1))) {
+            for (int p = 0; p < PAGES; p++) {
+                List<SearchIndexReader.Hit> hits = reader.lookup("page" + p);
+                assertEquals(1, hits.size());
+                assertEquals(pageFiles.get(p), hits.get(0).fileName);
+                ByteArrayOutputStream read = new ByteArrayOutputStream();
+                try (InputStream in = SearchIndexReader.openPage(exportRoot, hits.get(0))) {
+                    byte[] buffer = new byte[4096];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        read.write(buffer, 0, n);
+                    }
+                }
+                String rest = new String(read.toByteArray(), ColumnarMessageReader.UTF_8);
+                assertTrue("page " + p, rest.startsWith(pageTexts.get(p)));
+            }
+        }
+    }
+}